@@ -0,0 +1,385 @@
+package oy.tol.chatclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChannelAnalytics follows the messages received on each channel: messages per
+ * minute and per hour, the most active nicks, and bursts of messages. Each
+ * received message updates the statistics of its channel in constant time,
+ * and each channel takes the same, fixed amount of memory however busy it is.
+ * <p>
+ * Rates are counted by the sent time of the messages in rings of time slots,
+ * a minute of seconds and an hour of minutes, the oldest slot reused for the
+ * newest. A burst is ten seconds with at least BURST_MIN messages and
+ * BURST_FACTOR times the average of the past hour.
+ * <p>
+ * The most active nicks are estimated with the Space-Saving algorithm: up to
+ * TOP_NICKS counters, and a nick without one takes over the smallest counter,
+ * adding one to its count. A count is then at most the error too high, and
+ * every nick with more than total / TOP_NICKS messages is among the counters.
+ */
+class ChannelAnalytics {
+
+	static final int TOP_NICKS = 32;
+	private static final int MAX_CHANNELS = 64;
+	private static final int BURST_SECONDS = 10;
+	private static final int BURST_MIN = 10;
+	private static final int BURST_FACTOR = 3;
+
+	/**
+	 * An estimated message count of a nick.
+	 */
+	static class NickCount {
+		final String nick;
+		final long count;
+		// The count is at most this much too high.
+		final long error;
+
+		NickCount(String nick, long count, long error) {
+			this.nick = nick;
+			this.count = count;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Statistics of one channel, read from a snapshot.
+	 */
+	static class Summary {
+		final String channel;
+		final long total;
+		final int lastMinute;
+		final int lastHour;
+		final long bursts;
+		// Epoch ms of the latest burst, 0 if none.
+		final long lastBurstMillis;
+		final List<NickCount> topNicks;
+
+		private Summary(String channel, long total, int lastMinute, int lastHour, long bursts, long lastBurstMillis,
+				List<NickCount> topNicks) {
+			this.channel = channel;
+			this.total = total;
+			this.lastMinute = lastMinute;
+			this.lastHour = lastHour;
+			this.bursts = bursts;
+			this.lastBurstMillis = lastBurstMillis;
+			this.topNicks = topNicks;
+		}
+	}
+
+	// Least recently active channel first.
+	private final LinkedHashMap<String, ChannelStats> channels = new LinkedHashMap<String, ChannelStats>(16, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ChannelStats> eldest) {
+			return size() > MAX_CHANNELS;
+		}
+	};
+
+	/**
+	 * Counts messages received on a channel.
+	 *
+	 * @param channelName The channel, null for the main channel.
+	 */
+	void record(String channelName, List<ChatMessage> messages) {
+		record(channelName, messages, System.currentTimeMillis());
+	}
+
+	/**
+	 * Counts messages received on a channel at the time, in epoch ms.
+	 */
+	void record(String channelName, List<ChatMessage> messages, long now) {
+		if (null == messages || messages.isEmpty()) {
+			return;
+		}
+		ChannelStats stats = stats(ChatHttpClient.channelKey(channelName));
+		synchronized (stats) {
+			for (ChatMessage message : messages) {
+				stats.add(message, now);
+			}
+		}
+	}
+
+	/**
+	 * @param channelName The channel, null for the main channel.
+	 * @return Statistics of the channel, null if nothing was received on it.
+	 */
+	Summary summary(String channelName) {
+		return summary(channelName, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return Statistics of the channel at the time, in epoch ms.
+	 */
+	Summary summary(String channelName, long now) {
+		String key = ChatHttpClient.channelKey(channelName);
+		ChannelStats stats;
+		synchronized (channels) {
+			stats = channels.get(key);
+		}
+		return null == stats ? null : stats.summary(key, now);
+	}
+
+	/**
+	 * @return Statistics of all channels followed, the busiest first.
+	 */
+	List<Summary> summaries() {
+		List<Map.Entry<String, ChannelStats>> entries;
+		synchronized (channels) {
+			entries = new ArrayList<Map.Entry<String, ChannelStats>>(channels.entrySet());
+		}
+		long now = System.currentTimeMillis();
+		List<Summary> summaries = new ArrayList<Summary>(entries.size());
+		for (Map.Entry<String, ChannelStats> entry : entries) {
+			summaries.add(entry.getValue().summary(entry.getKey(), now));
+		}
+		summaries.sort((lhs, rhs) -> lhs.lastMinute != rhs.lastMinute
+				? Integer.compare(rhs.lastMinute, lhs.lastMinute)
+				: Integer.compare(rhs.lastHour, lhs.lastHour));
+		return summaries;
+	}
+
+	private ChannelStats stats(String key) {
+		synchronized (channels) {
+			ChannelStats stats = channels.get(key);
+			if (null == stats) {
+				stats = new ChannelStats();
+				channels.put(key, stats);
+			}
+			return stats;
+		}
+	}
+
+	private static class ChannelStats {
+		private final Window seconds = new Window(60, 1000);
+		private final Window minutes = new Window(60, 60 * 1000);
+		private final TopNicks nicks = new TopNicks(TOP_NICKS);
+		private long total = 0;
+		private long bursts = 0;
+		private long lastBurstMillis = 0;
+		// A burst is counted once, until the rate falls below the minimum.
+		private boolean inBurst = false;
+		// During a burst it is checked once a second whether it goes on.
+		private long burstCheckedAt = Long.MIN_VALUE;
+
+		void add(ChatMessage message, long now) {
+			total++;
+			nicks.add(message.getNick());
+			// A clock ahead of ours must not put messages in the future.
+			long sent = Math.min(message.sentEpochMillis(), now);
+			if (!minutes.add(sent, now)) {
+				return;
+			}
+			if (!seconds.add(sent, now)) {
+				return;
+			}
+			long second = Math.floorDiv(sent, 1000);
+			if (inBurst && second == burstCheckedAt) {
+				return;
+			}
+			burstCheckedAt = second;
+			int recent = seconds.sum(now, BURST_SECONDS);
+			if (recent < BURST_MIN) {
+				inBurst = false;
+				return;
+			}
+			// The average ten seconds of the past hour.
+			double usual = minutes.sum(now, 60) / (3600.0 / BURST_SECONDS);
+			boolean burst = recent >= BURST_FACTOR * usual;
+			if (burst && !inBurst) {
+				bursts++;
+				lastBurstMillis = sent;
+			}
+			inBurst = burst;
+		}
+
+		synchronized Summary summary(String key, long now) {
+			return new Summary(key, total, seconds.sum(now, 60), minutes.sum(now, 60), bursts, lastBurstMillis,
+					nicks.top());
+		}
+	}
+
+	/**
+	 * Message counts in a ring of time slots.
+	 */
+	private static class Window {
+		private final long[] slots;
+		private final int[] counts;
+		private final long slotMillis;
+
+		Window(int size, long slotMillis) {
+			slots = new long[size];
+			counts = new int[size];
+			this.slotMillis = slotMillis;
+			Arrays.fill(slots, Long.MIN_VALUE);
+		}
+
+		/**
+		 * @return False if the time is too old for the window.
+		 */
+		boolean add(long timeMillis, long now) {
+			long slot = Math.floorDiv(timeMillis, slotMillis);
+			if (slot <= Math.floorDiv(now, slotMillis) - slots.length) {
+				return false;
+			}
+			int index = (int) Math.floorMod(slot, (long) slots.length);
+			if (slots[index] != slot) {
+				if (slots[index] > slot) {
+					// Older than what the slot now counts.
+					return false;
+				}
+				slots[index] = slot;
+				counts[index] = 0;
+			}
+			counts[index]++;
+			return true;
+		}
+
+		/**
+		 * @return Messages in the latest count slots up to now.
+		 */
+		int sum(long now, int count) {
+			long current = Math.floorDiv(now, slotMillis);
+			int sum = 0;
+			for (long slot = current - Math.min(count, slots.length) + 1; slot <= current; slot++) {
+				int index = (int) Math.floorMod(slot, (long) slots.length);
+				if (slots[index] == slot) {
+					sum += counts[index];
+				}
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Space-Saving counters for the most frequent nicks, in the Stream-Summary
+	 * layout: counters with the same count share a bucket, and the buckets are
+	 * in a list by count. Adding one to a counter moves it to the next bucket,
+	 * and the smallest counter is in the first bucket, so both take constant
+	 * time.
+	 */
+	private static class TopNicks {
+		private static class Bucket {
+			final long count;
+			Bucket previous;
+			Bucket next;
+			Counter first;
+
+			Bucket(long count) {
+				this.count = count;
+			}
+		}
+
+		private static class Counter {
+			String nick;
+			long error;
+			Bucket bucket;
+			Counter previous;
+			Counter next;
+		}
+
+		private final int capacity;
+		private final Map<String, Counter> counters;
+		private Bucket smallest = null;
+
+		TopNicks(int capacity) {
+			this.capacity = capacity;
+			counters = new HashMap<String, Counter>(capacity * 2);
+		}
+
+		void add(String nick) {
+			Counter counter = counters.get(nick);
+			if (null != counter) {
+				increment(counter);
+				return;
+			}
+			if (counters.size() < capacity) {
+				counter = new Counter();
+				counter.nick = nick;
+				counters.put(nick, counter);
+				if (null == smallest || smallest.count != 1) {
+					Bucket first = new Bucket(1);
+					first.next = smallest;
+					if (null != smallest) {
+						smallest.previous = first;
+					}
+					smallest = first;
+				}
+				attach(counter, smallest);
+				return;
+			}
+			// The new nick takes over a smallest counter.
+			counter = smallest.first;
+			counters.remove(counter.nick);
+			counter.nick = nick;
+			counter.error = counter.bucket.count;
+			counters.put(nick, counter);
+			increment(counter);
+		}
+
+		List<NickCount> top() {
+			List<NickCount> top = new ArrayList<NickCount>(counters.size());
+			for (Counter counter : counters.values()) {
+				top.add(new NickCount(counter.nick, counter.bucket.count, counter.error));
+			}
+			top.sort((lhs, rhs) -> Long.compare(rhs.count, lhs.count));
+			return top;
+		}
+
+		private void increment(Counter counter) {
+			Bucket from = counter.bucket;
+			Bucket to = from.next;
+			if (null == to || to.count != from.count + 1) {
+				to = new Bucket(from.count + 1);
+				to.previous = from;
+				to.next = from.next;
+				if (null != from.next) {
+					from.next.previous = to;
+				}
+				from.next = to;
+			}
+			detach(counter);
+			attach(counter, to);
+		}
+
+		private static void attach(Counter counter, Bucket bucket) {
+			counter.bucket = bucket;
+			counter.previous = null;
+			counter.next = bucket.first;
+			if (null != bucket.first) {
+				bucket.first.previous = counter;
+			}
+			bucket.first = counter;
+		}
+
+		// Removes the counter from its bucket, and the bucket if left empty.
+		private void detach(Counter counter) {
+			Bucket bucket = counter.bucket;
+			if (null != counter.previous) {
+				counter.previous.next = counter.next;
+			} else {
+				bucket.first = counter.next;
+			}
+			if (null != counter.next) {
+				counter.next.previous = counter.previous;
+			}
+			if (null == bucket.first) {
+				if (null != bucket.previous) {
+					bucket.previous.next = bucket.next;
+				} else {
+					smallest = bucket.next;
+				}
+				if (null != bucket.next) {
+					bucket.next.previous = bucket.previous;
+				}
+			}
+		}
+	}
+}
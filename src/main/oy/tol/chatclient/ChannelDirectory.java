@@ -0,0 +1,146 @@
+package oy.tol.chatclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * ChannelDirectory caches the metadata of channels the client has changed to
+ * or created: name, description and creator, with the ETag and Last-Modified
+ * of the response they came in. An entry younger than the time to live is used
+ * as is. An older one is revalidated with If-None-Match or If-Modified-Since,
+ * and a 304 response makes it fresh again without reading the metadata.
+ */
+class ChannelDirectory {
+
+	static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Metadata of one channel.
+	 */
+	static class Entry {
+		final String name;
+		final String description;
+		final String createdBy;
+		// Validators from the response, null if the server sent none.
+		final String etag;
+		final String lastModified;
+		final long validatedAtNanos;
+
+		Entry(String name, String description, String createdBy, String etag, String lastModified) {
+			this(name, description, createdBy, etag, lastModified, System.nanoTime());
+		}
+
+		private Entry(String name, String description, String createdBy, String etag, String lastModified,
+				long validatedAtNanos) {
+			this.name = name;
+			this.description = description;
+			this.createdBy = createdBy;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.validatedAtNanos = validatedAtNanos;
+		}
+
+		long ageMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - validatedAtNanos);
+		}
+
+		/**
+		 * @return The entry as a /changeChannel response would have it.
+		 */
+		JSONObject toJSON() {
+			JSONObject object = new JSONObject();
+			object.put("channelName", name);
+			object.put("description", null == description ? "" : description);
+			object.put("createdBy", null == createdBy ? "" : createdBy);
+			return object;
+		}
+	}
+
+	private volatile long ttlMillis;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong fetches = new AtomicLong();
+
+	ChannelDirectory() {
+		this(DEFAULT_TTL_MILLIS);
+	}
+
+	ChannelDirectory(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param ttlMillis How long entries are used without revalidating them, 0
+	 *                  to revalidate on every change to the channel.
+	 */
+	void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return The entry of the channel, fresh or not, null if there is none.
+	 */
+	Entry get(String channelName) {
+		return entries.get(channelName);
+	}
+
+	boolean isFresh(Entry entry) {
+		return entry.ageMillis() < ttlMillis;
+	}
+
+	/**
+	 * Stores metadata read from the server or known from creating the channel.
+	 */
+	Entry put(String channelName, String description, String createdBy, String etag, String lastModified) {
+		Entry entry = new Entry(channelName, description, createdBy, etag, lastModified);
+		entries.put(channelName, entry);
+		return entry;
+	}
+
+	/**
+	 * Marks the entry fresh after the server said it has not changed.
+	 */
+	Entry revalidated(Entry entry) {
+		Entry fresh = new Entry(entry.name, entry.description, entry.createdBy, entry.etag, entry.lastModified);
+		entries.put(entry.name, fresh);
+		revalidations.incrementAndGet();
+		return fresh;
+	}
+
+	void remove(String channelName) {
+		entries.remove(channelName);
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	void recordFetch() {
+		fetches.incrementAndGet();
+	}
+
+	/**
+	 * @return The entries sorted by channel name.
+	 */
+	List<Entry> list() {
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		list.sort((lhs, rhs) -> lhs.name.compareTo(rhs.name));
+		return list;
+	}
+
+	String describe() {
+		return String.format("Channel directory: %d channels, %d served from cache, %d revalidated, %d fetched",
+				entries.size(), hits.get(), revalidations.get(), fetches.get());
+	}
+}
@@ -0,0 +1,177 @@
+package oy.tol.chatclient;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ChannelSubscriptions holds the channels the user follows in addition to the
+ * current one. The channels are fetched in parallel, each with its own
+ * If-Modified-Since watermark kept by ChatHttpClient, and the new messages of
+ * all channels are merged into one stream in time order.
+ */
+class ChannelSubscriptions {
+
+	private static final int MAX_PARALLEL_FETCHES = 8;
+
+	private final ChatHttpClient httpClient;
+	private final Set<String> channels = new ConcurrentSkipListSet<String>();
+	private ExecutorService executor = null;
+
+	ChannelSubscriptions(ChatHttpClient client) {
+		httpClient = client;
+	}
+
+	/**
+	 * @return True if the channel was not subscribed before.
+	 */
+	boolean subscribe(String channelName) {
+		return channels.add(ChatHttpClient.channelKey(channelName));
+	}
+
+	/**
+	 * @return True if the channel was subscribed.
+	 */
+	boolean unsubscribe(String channelName) {
+		return channels.remove(ChatHttpClient.channelKey(channelName));
+	}
+
+	boolean isEmpty() {
+		return channels.isEmpty();
+	}
+
+	Set<String> getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Fetches the given channels in parallel.
+	 *
+	 * @param channelKeys Channels to fetch, "main" for the main channel.
+	 * @return Results in the same order as the channels. A channel whose request
+	 *         failed has the exception in the result.
+	 */
+	List<ChannelResult> fetch(Collection<String> channelKeys) throws InterruptedException {
+		List<Future<ChatFetchResult>> futures = new ArrayList<Future<ChatFetchResult>>(channelKeys.size());
+		List<String> names = new ArrayList<String>(channelKeys);
+		ExecutorService pool = executor();
+		for (String key : names) {
+			final String channelName = ChatHttpClient.MAIN_CHANNEL.equals(key) ? null : key;
+			futures.add(pool.submit(() -> httpClient.fetchChatMessages(channelName)));
+		}
+		List<ChannelResult> results = new ArrayList<ChannelResult>(futures.size());
+		for (int index = 0; index < futures.size(); index++) {
+			try {
+				results.add(new ChannelResult(names.get(index), futures.get(index).get(), null));
+			} catch (ExecutionException e) {
+				Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				results.add(new ChannelResult(names.get(index), null, cause));
+			}
+		}
+		return results;
+	}
+
+	void close() {
+		if (null != executor) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private synchronized ExecutorService executor() {
+		if (null == executor) {
+			executor = Executors.newFixedThreadPool(MAX_PARALLEL_FETCHES, runnable -> {
+				Thread thread = new Thread(runnable, "channel-fetch");
+				// Do not keep the app running if user exits while a fetch is going on.
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Merges the per channel message lists, each already in time order, into one
+	 * list in time order. Uses a heap holding the next message of each channel,
+	 * so merging n messages from k channels takes O(n log k). Messages sent at the
+	 * same time in different channels are ordered by channel key.
+	 *
+	 * @param perChannel Messages by channel key.
+	 * @return All messages, tagged with their channel.
+	 */
+	static List<TaggedMessage> merge(Map<String, List<ChatMessage>> perChannel) {
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, perChannel.size()));
+		int total = 0;
+		for (Map.Entry<String, List<ChatMessage>> entry : perChannel.entrySet()) {
+			List<ChatMessage> messages = entry.getValue();
+			if (null != messages && !messages.isEmpty()) {
+				heap.add(new Cursor(entry.getKey(), messages));
+				total += messages.size();
+			}
+		}
+		List<TaggedMessage> merged = new ArrayList<TaggedMessage>(total);
+		while (!heap.isEmpty()) {
+			Cursor cursor = heap.poll();
+			merged.add(new TaggedMessage(cursor.channel, cursor.current()));
+			if (cursor.advance()) {
+				heap.add(cursor);
+			}
+		}
+		return merged;
+	}
+
+	static class ChannelResult {
+		final String channel;
+		final ChatFetchResult result;
+		final Exception error;
+
+		ChannelResult(String channel, ChatFetchResult result, Exception error) {
+			this.channel = channel;
+			this.result = result;
+			this.error = error;
+		}
+	}
+
+	static class TaggedMessage {
+		final String channel;
+		final ChatMessage message;
+
+		TaggedMessage(String channel, ChatMessage message) {
+			this.channel = channel;
+			this.message = message;
+		}
+	}
+
+	private static class Cursor implements Comparable<Cursor> {
+		final String channel;
+		final List<ChatMessage> messages;
+		int position = 0;
+
+		Cursor(String channel, List<ChatMessage> messages) {
+			this.channel = channel;
+			this.messages = messages;
+		}
+
+		ChatMessage current() {
+			return messages.get(position);
+		}
+
+		boolean advance() {
+			return ++position < messages.size();
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			int result = ChatMessage.BY_SENT.compare(current(), other.current());
+			return result != 0 ? result : channel.compareTo(other.channel);
+		}
+	}
+}
@@ -0,0 +1,644 @@
+package oy.tol.chatclient;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * ChatBatch runs the client without a console, for use from scripts and pipes.
+ * <p>
+ * post mode reads messages from stdin or a file, one per line or as NDJSON
+ * objects with "message" and optional "user" and "channel", and posts them
+ * with several senders in parallel.
+ * <p>
+ * tail mode polls a channel and writes the received messages to stdout as
+ * NDJSON, one {"channel","user","message","sent"} object per line.
+ * <p>
+ * export mode writes the whole history of a channel in the same format, to
+ * stdout or a file. Messages are written as they are parsed from the response,
+ * so memory use does not grow with the size of the channel.
+ * <p>
+ * import mode posts a file written by export or tail, keeping the original nick
+ * and sent time of each message, at an optional rate. The number of lines
+ * handled so far is saved in a file next to the input, so that an interrupted
+ * import can be resumed from where it stopped.
+ * <p>
+ * replay mode sends the requests of a traffic recording again, one made with
+ * -record in any mode or in the interactive client, at the recorded pace or
+ * up to 100 times faster. See TrafficRecorder and TrafficReplay.
+ * <p>
+ * Username and password are taken from the environment variables
+ * CHAT_USERNAME and CHAT_PASSWORD, the nick from CHAT_NICK or -nick. Throughput
+ * is reported to stderr at exit, so that stdout only has the messages.
+ */
+class ChatBatch implements ChatClientDataProvider {
+
+	static final String MODE_POST = "post";
+	static final String MODE_TAIL = "tail";
+	static final String MODE_EXPORT = "export";
+	static final String MODE_IMPORT = "import";
+	static final String MODE_REPLAY = "replay";
+
+	private static final int DEFAULT_PARALLELISM = 4;
+	private static final int DEFAULT_TAIL_INTERVAL = 1000; // ms
+	// Lines read ahead of the senders, per sender.
+	private static final int QUEUE_PER_SENDER = 64;
+	private static final long OFFSET_SAVE_INTERVAL = 1000; // ms
+	private static final String OFFSET_SUFFIX = ".offset";
+
+	private final int serverVersion;
+	private final String certificateFile;
+	private boolean useHttps = true;
+	private String server = null;
+	private String username = System.getenv("CHAT_USERNAME");
+	private String password = System.getenv("CHAT_PASSWORD");
+	private String nick = System.getenv("CHAT_NICK");
+	private String channel = null;
+	private String inputFile = null;
+	private boolean ndjson = false;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private long tailInterval = DEFAULT_TAIL_INTERVAL;
+	private long tailCount = Long.MAX_VALUE;
+	private String outputFile = null;
+	private double rate = 0;
+	private long startOffset = 0;
+	private boolean resume = false;
+	private boolean preserveSent = false;
+	private double speed = 1;
+	private String recordFile = null;
+	private boolean recordBodies = false;
+
+	// Import progress: every line up to completedOffset is done, the lines in
+	// completedAhead are done but follow a line still in flight.
+	private long completedOffset = 0;
+	private final TreeSet<Long> completedAhead = new TreeSet<Long>();
+	private long offsetSavedAt = 0;
+
+	private final AtomicLong succeeded = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	static boolean isBatchMode(String mode) {
+		return MODE_POST.equals(mode) || MODE_TAIL.equals(mode) || MODE_EXPORT.equals(mode)
+				|| MODE_IMPORT.equals(mode) || MODE_REPLAY.equals(mode);
+	}
+
+	static void printUsage() {
+		System.err.println(
+				"Usage: java -jar chat-client-jar-file version certificate post|tail|export|import|replay [options]");
+		System.err.println("  -server url     Server address, default https://localhost:8001/, http without a certificate");
+		System.err.println("  -http           Use http instead of https");
+		System.err.println("  -channel name   Channel to use, default main channel");
+		System.err.println("  -nick name      Nick for posted messages, default username");
+		System.err.println("  -file path      post, import: read messages from the file instead of stdin");
+		System.err.println("                  export: write messages to the file instead of stdout");
+		System.err.println("                  replay: the traffic recording to replay");
+		System.err.println("  -ndjson         post: input lines are JSON objects");
+		System.err.println(
+				"  -parallel n     post, import, replay: number of parallel senders, default " + DEFAULT_PARALLELISM);
+		System.err.println("  -rate n         post, import: at most n messages per second");
+		System.err.println("  -offset n       import: skip the first n lines");
+		System.err.println("  -resume         import: continue from the offset saved in path" + OFFSET_SUFFIX);
+		System.err.println("  -interval ms    tail: poll interval, default " + DEFAULT_TAIL_INTERVAL);
+		System.err.println("  -count n        tail: exit after n messages");
+		System.err.println("  -speed n        replay: 1 is the recorded pace, up to 100 times faster, default 1");
+		System.err.println("  -record path    Record the requests made to the file, for replay");
+		System.err.println("  -recordbodies   Record the request and response bodies too");
+		System.err.println("Credentials are read from CHAT_USERNAME and CHAT_PASSWORD.");
+	}
+
+	ChatBatch(int serverVersion, String certificateFile) {
+		this.serverVersion = serverVersion;
+		this.certificateFile = certificateFile;
+	}
+
+	/**
+	 * Runs the given mode.
+	 *
+	 * @param mode    post or tail.
+	 * @param options Options after the mode, see printUsage.
+	 * @return Exit status, 0 if all went well.
+	 */
+	int run(String mode, String[] options) {
+		try {
+			parseOptions(options);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			return 2;
+		}
+		if (null == username || null == password) {
+			System.err.println("Set CHAT_USERNAME and CHAT_PASSWORD for the batch mode.");
+			return 2;
+		}
+		TrafficRecorder recorder = null;
+		if (null != recordFile) {
+			try {
+				recorder = new TrafficRecorder(new File(recordFile), recordBodies);
+			} catch (IOException e) {
+				System.err.println("Cannot record to " + recordFile + ": " + e.getMessage());
+				return 2;
+			}
+			ChatHttpClient.setTrafficRecorder(recorder);
+		}
+		try {
+			return runMode(mode);
+		} finally {
+			if (null != recorder) {
+				ChatHttpClient.setTrafficRecorder(null);
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					System.err.println("Writing the recording failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private int runMode(String mode) {
+		if (MODE_POST.equals(mode)) {
+			return post();
+		} else if (MODE_IMPORT.equals(mode)) {
+			ndjson = true;
+			preserveSent = true;
+			if (resume) {
+				if (null == inputFile) {
+					System.err.println("-resume needs -file.");
+					return 2;
+				}
+				startOffset = readOffset();
+			}
+			return post();
+		} else if (MODE_EXPORT.equals(mode)) {
+			outputFile = inputFile;
+			return export();
+		} else if (MODE_REPLAY.equals(mode)) {
+			return replay();
+		}
+		return tail();
+	}
+
+	private void parseOptions(String[] options) {
+		for (int index = 0; index < options.length; index++) {
+			String option = options[index];
+			if ("-help".equalsIgnoreCase(option)) {
+				throw new IllegalArgumentException("Options for the batch mode:");
+			} else if ("-http".equalsIgnoreCase(option)) {
+				useHttps = false;
+			} else if ("-ndjson".equalsIgnoreCase(option)) {
+				ndjson = true;
+			} else if ("-resume".equalsIgnoreCase(option)) {
+				resume = true;
+			} else if ("-recordbodies".equalsIgnoreCase(option)) {
+				recordBodies = true;
+			} else if (index + 1 < options.length) {
+				String value = options[++index];
+				switch (option) {
+					case "-server":
+						server = value;
+						break;
+					case "-channel":
+						channel = "main".equals(value) ? null : value;
+						break;
+					case "-nick":
+						nick = value;
+						break;
+					case "-file":
+						inputFile = value;
+						break;
+					case "-parallel":
+						parallelism = Math.max(1, Integer.parseInt(value));
+						break;
+					case "-interval":
+						tailInterval = Math.max(1, Long.parseLong(value));
+						break;
+					case "-count":
+						tailCount = Long.parseLong(value);
+						break;
+					case "-rate":
+						rate = Double.parseDouble(value);
+						break;
+					case "-offset":
+						startOffset = Math.max(0, Long.parseLong(value));
+						break;
+					case "-speed":
+						speed = Double.parseDouble(value);
+						if (speed < TrafficReplay.MIN_SPEED || speed > TrafficReplay.MAX_SPEED) {
+							throw new IllegalArgumentException("-speed must be from 1 to 100");
+						}
+						break;
+					case "-record":
+						recordFile = value;
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + option);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown option or missing value: " + option);
+			}
+		}
+		if (null == certificateFile) {
+			// ChatHttpClient uses http without a certificate, so does the default server.
+			useHttps = false;
+		}
+		if (null == server) {
+			server = useHttps ? "https://localhost:8001/" : "http://localhost:8001/";
+		}
+		if (null == nick) {
+			nick = username;
+		}
+	}
+
+	/**
+	 * Reads messages and hands them to the senders through a bounded queue, so
+	 * reading stays at most a little ahead of posting.
+	 */
+	private int post() {
+		BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(parallelism * QUEUE_PER_SENDER);
+		List<Thread> senders = new ArrayList<Thread>(parallelism);
+		for (int count = 0; count < parallelism; count++) {
+			Thread sender = new Thread(() -> send(queue), "sender-" + count);
+			senders.add(sender);
+			sender.start();
+		}
+		long start = System.nanoTime();
+		long lineNumber = 0;
+		completedOffset = startOffset;
+		// With a rate, each message is due a fixed interval after the previous one.
+		long intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+		long nextDue = start;
+		try (InputStream input = (null == inputFile ? System.in : new FileInputStream(inputFile));
+				BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8),
+						64 * 1024)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (lineNumber <= startOffset) {
+					continue;
+				}
+				if (line.trim().isEmpty()) {
+					lineCompleted(lineNumber);
+					continue;
+				}
+				Item item = parseLine(line, lineNumber);
+				if (null == item) {
+					// Invalid, counted as failed and not done, like a failed post.
+					continue;
+				}
+				if (intervalNanos > 0) {
+					long wait = nextDue - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					nextDue += intervalNanos;
+				}
+				queue.put(item);
+			}
+		} catch (IOException e) {
+			System.err.println("Reading messages failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			for (int count = 0; count < parallelism; count++) {
+				queue.put(Item.END);
+			}
+			for (Thread sender : senders) {
+				sender.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		report("Posted", System.nanoTime() - start);
+		if (preserveSent && null != inputFile) {
+			long offset = saveOffset(true);
+			System.err.println("Lines done: " + offset + ", resume with -resume or -offset " + offset);
+		}
+		return failed.get() == 0 ? 0 : 1;
+	}
+
+	private Item parseLine(String line, long lineNumber) {
+		if (!ndjson) {
+			return new Item(line, channel, nick, System.currentTimeMillis(), lineNumber);
+		}
+		try {
+			JSONObject object = new JSONObject(line);
+			String itemChannel = object.has("channel") ? object.getString("channel") : channel;
+			if ("main".equals(itemChannel)) {
+				itemChannel = null;
+			}
+			long sentMillis = System.currentTimeMillis();
+			if (preserveSent && object.has("sent")) {
+				sentMillis = OffsetDateTime.parse(object.getString("sent")).toInstant().toEpochMilli();
+			}
+			return new Item(object.getString("message"), itemChannel, object.optString("user", nick), sentMillis,
+					lineNumber);
+		} catch (JSONException | DateTimeParseException e) {
+			System.err.println("Skipping invalid line " + lineNumber + ": " + e.getMessage());
+			failed.incrementAndGet();
+			return null;
+		}
+	}
+
+	// Each sender has its own client, since a client sends one request at a time.
+	private void send(BlockingQueue<Item> queue) {
+		ChatHttpClient client = new ChatHttpClient(this, certificateFile, useHttps);
+		try {
+			while (true) {
+				Item item = queue.take();
+				if (item == Item.END) {
+					return;
+				}
+				long start = System.nanoTime();
+				try {
+					long sentMillis = preserveSent ? item.sentMillis : System.currentTimeMillis();
+					int code = client.postChatMessage(item.message, item.channel, item.nick, sentMillis);
+					if (code >= 200 && code < 300) {
+						succeeded.incrementAndGet();
+						totalLatencyNanos.addAndGet(System.nanoTime() - start);
+						lineCompleted(item.lineNumber);
+					} else {
+						failed.incrementAndGet();
+						System.err.println("Server returned " + code + client.getServerNotification());
+					}
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					System.err.println("Posting failed: " + e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Marks a line as handled. A failed line is never marked, so the saved offset
+	 * stops before it and resuming posts it again. Lines after it that did get
+	 * posted are then posted again too, as the offset is a single number.
+	 */
+	private synchronized void lineCompleted(long lineNumber) {
+		if (lineNumber == completedOffset + 1) {
+			completedOffset = lineNumber;
+			while (!completedAhead.isEmpty() && completedAhead.first() == completedOffset + 1) {
+				completedOffset = completedAhead.pollFirst();
+			}
+		} else {
+			completedAhead.add(lineNumber);
+		}
+		if (preserveSent && null != inputFile) {
+			saveOffset(false);
+		}
+	}
+
+	// Writes a temporary file and renames it, so that the offset file is never
+	// left half written.
+	private synchronized long saveOffset(boolean force) {
+		long now = System.currentTimeMillis();
+		if (force || now - offsetSavedAt >= OFFSET_SAVE_INTERVAL) {
+			offsetSavedAt = now;
+			Path file = Paths.get(inputFile + OFFSET_SUFFIX);
+			Path temp = Paths.get(inputFile + OFFSET_SUFFIX + ".tmp");
+			try {
+				Files.write(temp, Long.toString(completedOffset).getBytes(StandardCharsets.UTF_8));
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.err.println("Saving the offset failed: " + e.getMessage());
+			}
+		}
+		return completedOffset;
+	}
+
+	private long readOffset() {
+		Path file = Paths.get(inputFile + OFFSET_SUFFIX);
+		if (!Files.exists(file)) {
+			return startOffset;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("Could not read " + file + ", starting from " + startOffset);
+			return startOffset;
+		}
+	}
+
+	/**
+	 * Sends the requests of the recording in -file to the server again.
+	 */
+	private int replay() {
+		if (null == inputFile) {
+			System.err.println("replay needs the recording with -file.");
+			return 2;
+		}
+		List<TrafficRecorder.Exchange> exchanges;
+		try {
+			exchanges = TrafficRecorder.read(new File(inputFile));
+		} catch (IOException e) {
+			System.err.println("Reading the recording failed: " + e.getMessage());
+			return 1;
+		}
+		TrafficReplay replay = new TrafficReplay(new ChatHttpClient(this, certificateFile, useHttps), exchanges, speed,
+				parallelism);
+		try {
+			replay.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.err.print(replay.describe());
+		return replay.getFailedCount() == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Writes all messages of the channel as NDJSON, in the order the server
+	 * sends them.
+	 */
+	private int export() {
+		long start = System.nanoTime();
+		ChatHttpClient client = new ChatHttpClient(this, certificateFile, useHttps);
+		String channelKey = ChatHttpClient.channelKey(channel);
+		int status = 0;
+		try (OutputStream out = new BufferedOutputStream(
+				null == outputFile ? System.out : new FileOutputStream(outputFile), 64 * 1024)) {
+			int code = client.streamChatMessages(channel, message -> {
+				writeMessage(out, channelKey, message.getNick(), message.getMessage(), message.sentEpochMillis());
+				succeeded.incrementAndGet();
+			});
+			if (code >= 300) {
+				failed.incrementAndGet();
+				System.err.println("Server returned " + code);
+				status = 1;
+			}
+		} catch (Exception e) {
+			System.err.println("Exporting messages failed: " + e.getMessage());
+			status = 1;
+		}
+		report("Exported", System.nanoTime() - start);
+		return status;
+	}
+
+	/**
+	 * Polls the channel and writes new messages to stdout until the count is
+	 * reached or the process is stopped.
+	 */
+	private int tail() {
+		final long start = System.nanoTime();
+		Thread reporter = new Thread(() -> report("Received", System.nanoTime() - start));
+		Runtime.getRuntime().addShutdownHook(reporter);
+		ChatHttpClient client = new ChatHttpClient(this, certificateFile, useHttps);
+		OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
+		String channelKey = ChatHttpClient.channelKey(channel);
+		// Responses may repeat messages of the previous one at the
+		// If-Modified-Since boundary, so remember the previous batch.
+		LongHashSet previousBatch = new LongHashSet();
+		LongHashSet currentBatch = new LongHashSet();
+		int status = 0;
+		try {
+			while (succeeded.get() < tailCount) {
+				ChatFetchResult result = client.fetchChatMessages(channel);
+				if (result.responseCode >= 200 && result.responseCode < 300) {
+					currentBatch.clear();
+					if (null != result.messages) {
+						for (ChatMessage message : result.messages) {
+							long fingerprint = ChatTimeline.fingerprint(message);
+							currentBatch.add(fingerprint);
+							if (!previousBatch.contains(fingerprint) && succeeded.get() < tailCount) {
+								writeMessage(out, channelKey, message.getNick(), message.getMessage(), message.sentEpochMillis());
+								succeeded.incrementAndGet();
+							}
+						}
+					} else if (null != result.plainStringMessages) {
+						for (String message : result.plainStringMessages) {
+							writeMessage(out, channelKey, null, message, Long.MIN_VALUE);
+							succeeded.incrementAndGet();
+						}
+					}
+					out.flush();
+					if (null != result.messages) {
+						LongHashSet swap = previousBatch;
+						previousBatch = currentBatch;
+						currentBatch = swap;
+					}
+				} else {
+					failed.incrementAndGet();
+					System.err.println("Server returned " + result.responseCode + result.serverNotification);
+				}
+				if (succeeded.get() < tailCount) {
+					TimeUnit.MILLISECONDS.sleep(tailInterval);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			System.err.println("Getting messages failed: " + e.getMessage());
+			status = 1;
+		}
+		try {
+			out.flush();
+		} catch (IOException e) {
+			status = 1;
+		}
+		return status;
+	}
+
+	private static void writeMessage(OutputStream out, String channelKey, String user, String message, long sentMillis)
+			throws IOException {
+		JsonBodyWriter line = JsonBodyWriter.acquire();
+		try {
+			line.beginObject()
+				.field("channel", channelKey)
+				.field("user", user)
+				.field("message", message);
+			if (sentMillis != Long.MIN_VALUE) {
+				line.timestampField("sent", sentMillis);
+			}
+			line.endObject();
+			line.writeTo(out);
+			out.write('\n');
+		} finally {
+			line.release();
+		}
+	}
+
+	private void report(String what, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		long count = succeeded.get();
+		StringBuilder report = new StringBuilder();
+		report.append(what).append(' ').append(count).append(" messages in ")
+				.append(String.format("%.2f s, %.1f msg/s", seconds, seconds > 0 ? count / seconds : 0.0));
+		if (count > 0 && totalLatencyNanos.get() > 0) {
+			report.append(String.format(", avg latency %.1f ms", totalLatencyNanos.get() / 1e6 / count));
+		}
+		report.append(", ").append(failed.get()).append(" failed");
+		System.err.println(report);
+	}
+
+	private static class Item {
+		static final Item END = new Item(null, null, null, 0, 0);
+
+		final String message;
+		final String channel;
+		final String nick;
+		final long sentMillis;
+		final long lineNumber;
+
+		Item(String message, String channel, String nick, long sentMillis, long lineNumber) {
+			this.message = message;
+			this.channel = channel;
+			this.nick = nick;
+			this.sentMillis = sentMillis;
+			this.lineNumber = lineNumber;
+		}
+	}
+
+	@Override
+	public String getServer() {
+		return server;
+	}
+
+	@Override
+	public String getUsername() {
+		return username;
+	}
+
+	@Override
+	public String getPassword() {
+		return password;
+	}
+
+	@Override
+	public String getNick() {
+		return nick;
+	}
+
+	@Override
+	public String getEmail() {
+		return null;
+	}
+
+	@Override
+	public int getServerVersion() {
+		return serverVersion;
+	}
+}
@@ -1,20 +1,41 @@
 package oy.tol.chatclient;
 
 import java.io.Console;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URL;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeSet;
+
+import javax.net.ssl.SSLContext;
 
 import com.diogonunes.jcolor.Ansi;
 import com.diogonunes.jcolor.Attribute;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -38,8 +59,21 @@ public class ChatClient implements ChatClientDataProvider {
 	private static final String CMD_UPDATE_USER_INFO = "/update";
 	private static final String CMD_CREATE = "/create";
 	private static final String CMD_CHANGE = "/change";
+	private static final String CMD_SEARCH = "/search";
+	private static final String CMD_SUBSCRIBE = "/subscribe";
+	private static final String CMD_UNSUBSCRIBE = "/unsubscribe";
+	private static final String CMD_ERRORS = "/errors";
+	private static final String CMD_CHANNELS = "/channels";
+	private static final String CMD_HISTORY = "/history";
+	private static final String CMD_FILTER = "/filter";
+	private static final String CMD_TOP = "/top";
 
 	private static final int AUTO_FETCH_INTERVAL = 1000; // ms
+	private static final int SEARCH_RESULT_LIMIT = 20;
+	private static final int TOP_NICKS_SHOWN = 10;
+	private static final int DEFAULT_PAGE_ROWS = 20;
+	// Messages on a page of /history, and printed when entering a channel.
+	private static final int PAGE_ROWS = pageRows();
 
 	private String currentServer = SERVER; // URL of the server without paths.
 	private String username = null; // Registered & logged user.
@@ -49,16 +83,55 @@ public class ChatClient implements ChatClientDataProvider {
 	private String channel = null; //Current channel
 
 	private ChatHttpClient httpClient = null; // Client handling the requests & responses.
+	private ServerPool serverPool = null; // Servers in use, if more than one was given.
+	private ChatSearchIndex searchIndex = new ChatSearchIndex(); // Index of received messages.
+	private ChannelSubscriptions subscriptions = null; // Channels followed in addition to the current one.
+	private HistoryCache history = new HistoryCache(searchIndex, this::streamHistory); // Received messages by channel.
+	private MessageFilter filter = new MessageFilter(); // Mutes, hides and highlights received messages.
+	private SyncState syncState = null; // Watermarks saved for the next session.
+	private ChannelAnalytics analytics = new ChannelAnalytics(); // Message rates and active nicks by channel.
+	private ChatLogSink chatLog = null; // Received messages written to a file, if set with -log.
 
 	private boolean autoFetch = false;
+	// Set when entering a channel, the first fetch then prints only a page.
+	private volatile boolean catchingUp = true;
 	private Timer autoFetchTimer = null;
 	private boolean useColorOutput = false;
 
-	static final Attribute colorDate = Attribute.GREEN_TEXT();
-	static final Attribute colorNick = Attribute.BRIGHT_BLUE_TEXT();
-	static final Attribute colorMsg = Attribute.CYAN_TEXT();
-	static final Attribute colorError = Attribute.BRIGHT_RED_TEXT();
-	static final Attribute colorInfo = Attribute.YELLOW_TEXT();
+	// Output colors. The JColor attributes for these are created only when color
+	// output is first used, so the library is not loaded at startup.
+	enum OutputColor {
+		DATE, NICK, MSG, ERROR, INFO, HIGHLIGHT
+	}
+
+	static final OutputColor colorDate = OutputColor.DATE;
+	static final OutputColor colorNick = OutputColor.NICK;
+	static final OutputColor colorMsg = OutputColor.MSG;
+	static final OutputColor colorError = OutputColor.ERROR;
+	static final OutputColor colorInfo = OutputColor.INFO;
+	static final OutputColor colorHighlight = OutputColor.HIGHLIGHT;
+
+	private static class AnsiColors {
+		static final Attribute[] attributes = {
+			Attribute.GREEN_TEXT(),
+			Attribute.BRIGHT_BLUE_TEXT(),
+			Attribute.CYAN_TEXT(),
+			Attribute.BRIGHT_RED_TEXT(),
+			Attribute.YELLOW_TEXT(),
+			Attribute.BRIGHT_MAGENTA_TEXT()
+		};
+	}
+
+	private static final String CDS_TRAINING = "-cdstraining";
+	// Startup timing is printed when launched with -timing.
+	private static boolean printStartupTiming = false;
+	private static long startupMillis = 0;
+	// Where the watermarks are saved, set with -state.
+	private static Path syncStateFile = null;
+	// Where the received messages are logged and how often synced, set with -log and -logsync.
+	private static Path chatLogFile = null;
+	private static ChatLogSink.SyncPolicy chatLogSync = ChatLogSink.SyncPolicy.INTERVAL;
+	private boolean firstMessageTimed = false;
 
 	/**
 	 * 2: Exercise 2 testing 3: Exercise 3 testing 4: Exercise 4 - only internal
@@ -68,10 +141,29 @@ public class ChatClient implements ChatClientDataProvider {
 	public static int serverVersion = 3;
 
 	public static void main(String[] args) {
+		// Measure startup from the launch of the JVM if the OS tells when it was.
+		startupMillis = ProcessHandle.current().info().startInstant().map(instant -> instant.toEpochMilli())
+				.orElse(System.currentTimeMillis());
+		if (args.length == 1 && CDS_TRAINING.equals(args[0])) {
+			trainClassDataSharing();
+			return;
+		}
 
 		// Run the client.
 		// Undocumented feature: use third arg "-http" to use http instead of https.
+		// Arg "-timing" prints the time to the first prompt and the first message.
+		// Args "-record file" and "-recordbodies" record the requests for replay.
+		// Arg "-state file" sets where the watermarks of the channels are saved.
+		// Args "-log file" and "-logsync none|batch|interval" log the received messages.
 		boolean useHttps = true;
+		String recordFile = null;
+		boolean recordBodies = false;
+		if (args.length >= 3 && ChatBatch.isBatchMode(args[2])) {
+			// Headless post or tail mode, stdout is for the messages only.
+			ChatBatch batch = new ChatBatch(Math.max(2, Math.min(5, Integer.parseInt(args[0]))),
+					args[1].equals("-") ? null : args[1]);
+			System.exit(batch.run(args[2], Arrays.copyOfRange(args, 3, args.length)));
+		}
 		if (args.length >= 2) {
 			System.out.println("Launching ChatClient with args " + args[0] + " " + args[1]);
 			serverVersion = Integer.parseInt(args[0]);
@@ -80,17 +172,86 @@ public class ChatClient implements ChatClientDataProvider {
 			} else if (serverVersion > 5) {
 				serverVersion = 5;
 			}
-			if (args.length == 3 && "-http".equalsIgnoreCase(args[2])) {
-				useHttps = false;
+			for (int index = 2; index < args.length; index++) {
+				if ("-http".equalsIgnoreCase(args[index])) {
+					useHttps = false;
+				} else if ("-timing".equalsIgnoreCase(args[index])) {
+					printStartupTiming = true;
+				} else if ("-record".equalsIgnoreCase(args[index]) && index + 1 < args.length) {
+					recordFile = args[++index];
+				} else if ("-recordbodies".equalsIgnoreCase(args[index])) {
+					recordBodies = true;
+				} else if ("-state".equalsIgnoreCase(args[index]) && index + 1 < args.length) {
+					syncStateFile = Paths.get(args[++index]);
+				} else if ("-log".equalsIgnoreCase(args[index]) && index + 1 < args.length) {
+					chatLogFile = Paths.get(args[++index]);
+				} else if ("-logsync".equalsIgnoreCase(args[index]) && index + 1 < args.length) {
+					try {
+						chatLogSync = ChatLogSink.SyncPolicy.valueOf(args[++index].toUpperCase(Locale.ROOT));
+					} catch (IllegalArgumentException e) {
+						System.out.println("Unknown -logsync " + args[index] + ", use none, batch or interval");
+						return;
+					}
+				}
 			}
 		} else {
 			System.out.println("Usage: java -jar chat-client-jar-file 2 ../localhost.cer");
 			System.out.println("Where first parameter is the server version number (exercise number),");
 			System.out.println("and the 2nd parameter is the server's client certificate file with path.");
+			System.out.println("To post from stdin or tail a channel to stdout without a console, add post or tail");
+			System.out.println("after the certificate file. Use - as the certificate file with http.");
 			return;
 		}
+		TrafficRecorder recorder = null;
+		if (null != recordFile) {
+			try {
+				recorder = new TrafficRecorder(new File(recordFile), recordBodies);
+				ChatHttpClient.setTrafficRecorder(recorder);
+			} catch (IOException e) {
+				System.out.println("Cannot record to " + recordFile + ": " + e.getMessage());
+			}
+		}
 		ChatClient client = new ChatClient();
 		client.run(args[1], useHttps);
+		if (null != recorder) {
+			ChatHttpClient.setTrafficRecorder(null);
+			try {
+				recorder.close();
+			} catch (IOException e) {
+				System.out.println("Writing the recording failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Runs the code used at startup and when the first messages arrive, without
+	 * a console or a server. The build launches the client with -cdstraining
+	 * and -XX:ArchiveClassesAtExit to create a class data sharing archive of the
+	 * classes loaded here, which makes later launches start faster.
+	 */
+	private static void trainClassDataSharing() {
+		try {
+			ChatClient client = new ChatClient();
+			client.httpClient = new ChatHttpClient(client, null, false);
+			client.subscriptions = new ChannelSubscriptions(client.httpClient);
+			client.printInfo();
+			JSONArray sample = new JSONArray("[{\"user\":\"o3\",\"message\":\"Hello\",\"sent\":\"2021-01-01T12:00:00.000Z\"}]");
+			List<ChatMessage> messages = new ArrayList<ChatMessage>();
+			messages.add(ChatMessage.from(sample.getJSONObject(0)));
+			messages = client.history.merge(null, messages);
+			client.searchIndex.search(null, "hello", SEARCH_RESULT_LIMIT);
+			client.printMessage(messages.get(0));
+			client.useColorOutput = true;
+			client.printMessage(messages.get(0));
+			JsonBodyWriter body = JsonBodyWriter.acquire();
+			body.beginObject().field("user", "o3").timestampField("sent", System.currentTimeMillis()).endObject();
+			body.release();
+			SSLContext.getInstance("TLS").init(null, null, null);
+			new URL(SERVER).openConnection();
+			client.subscriptions.close();
+		} catch (Exception e) {
+			System.out.println("Class data sharing training failed: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -102,12 +263,25 @@ public class ChatClient implements ChatClientDataProvider {
 			currentServer = "http://localhost:8001";
 		}
 		httpClient = new ChatHttpClient(this, certificateFileWithPath, useHttps);
+		syncState = new SyncState(null == syncStateFile ? SyncState.defaultFile() : syncStateFile);
+		httpClient.setSyncState(syncState);
+		if (null != chatLogFile) {
+			chatLog = new ChatLogSink(chatLogFile, chatLogSync);
+		}
+		// Connect while the user is still reading the menu and logging in.
+		httpClient.prewarm();
+		httpClient.keepWarm(true);
+		history.startHeapMonitoring();
+		subscriptions = new ChannelSubscriptions(httpClient);
 		printCommands();
 		printInfo();
 		Console console = System.console();
 		if (null == username) {
 			println("!! Register or login to server first.", colorInfo);
 		}
+		if (printStartupTiming) {
+			println("Time to first prompt: " + (System.currentTimeMillis() - startupMillis) + " ms", colorInfo);
+		}
 		boolean running = true;
 		while (running) {
 			try {
@@ -148,6 +322,14 @@ public class ChatClient implements ChatClientDataProvider {
 						break;
 					case CMD_EXIT:
 						cancelAutoFetch();
+						httpClient.keepWarm(false);
+						history.stopHeapMonitoring();
+						subscriptions.close();
+						closeSyncState();
+						closeChatLog();
+						if (null != serverPool) {
+							serverPool.close();
+						}
 						running = false;
 						break;
 					case CMD_UPDATE_USER_INFO:
@@ -159,6 +341,30 @@ public class ChatClient implements ChatClientDataProvider {
 					case CMD_CHANGE:
 						changeChannel(console);
 						break;
+					case CMD_SEARCH:
+						searchMessages(console);
+						break;
+					case CMD_SUBSCRIBE:
+						subscribeChannel(console, true);
+						break;
+					case CMD_UNSUBSCRIBE:
+						subscribeChannel(console, false);
+						break;
+					case CMD_ERRORS:
+						printErrors();
+						break;
+					case CMD_CHANNELS:
+						printChannels();
+						break;
+					case CMD_HISTORY:
+						scrollHistory(console);
+						break;
+					case CMD_FILTER:
+						editFilters(console);
+						break;
+					case CMD_TOP:
+						printTop();
+						break;
 					default:
 						if (command.length() > 0 && !command.startsWith("/")) {
 							postMessage(command);
@@ -180,6 +386,8 @@ public class ChatClient implements ChatClientDataProvider {
 		String channelName = console.readLine().trim();
 		if (channelName.equals("main")) { //Change back to main channel by making channel null
 			channel = null;
+			println("You are now chatting on channel main", colorInfo);
+			printLatestPage();
 		} else {
 			try {
 				JSONObject response = httpClient.changeChannel(channelName);
@@ -191,6 +399,7 @@ public class ChatClient implements ChatClientDataProvider {
 					println("Channel description: " + response.getString("description"), colorInfo);
 					println("This channel was created by " + response.getString("createdBy"), colorInfo);
 					channel = response.getString("channelName");
+					printLatestPage();
 				} else {
 					println("*** System responded with  " + responseCode + " ***", colorError);
 				}
@@ -199,6 +408,166 @@ public class ChatClient implements ChatClientDataProvider {
 			}
 		}
 	}
+	/**
+	 * Prints the latest page of messages already received on the channel just
+	 * entered, fetching evicted ones again if needed. Messages missing only
+	 * from an earlier session are not fetched, the next fetch brings those sent
+	 * since. Of the messages the next fetch brings, only the latest page is
+	 * printed too.
+	 */
+	private void printLatestPage() {
+		catchingUp = true;
+		try {
+			Scrollback scrollback = new Scrollback(history, channel, PAGE_ROWS);
+			List<ChatMessage> page = history.isMissingOnlyFromEarlier(channel) ? scrollback.latestInMemory()
+					: scrollback.latest();
+			for (ChatMessage message : page) {
+				printFiltered(message, false);
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			println(" *** ERROR : " + e.getMessage(), colorError);
+		}
+	}
+
+	/**
+	 * Pages through the messages received on the current channel, starting from
+	 * the newest. Only the messages of the page shown are read, older ones than
+	 * those in memory from the server.
+	 */
+	private void scrollHistory(Console console) throws IOException, GeneralSecurityException {
+		Scrollback scrollback = new Scrollback(history, channel, PAGE_ROWS);
+		List<ChatMessage> page = scrollback.latest();
+		if (page.isEmpty()) {
+			println("No messages received on this channel yet.", colorInfo);
+			return;
+		}
+		while (true) {
+			for (ChatMessage message : page) {
+				printFiltered(message, false);
+			}
+			if (scrollback.atStart()) {
+				println("-- Start of the channel --", colorInfo);
+			}
+			print("History: Enter or u for older, d newer, e newest, q quit > ", colorInfo);
+			String command = console.readLine().trim();
+			if (command.equalsIgnoreCase("q")) {
+				return;
+			} else if (command.equalsIgnoreCase("d")) {
+				page = scrollback.newer();
+			} else if (command.equalsIgnoreCase("e")) {
+				page = scrollback.latest();
+			} else {
+				page = scrollback.older();
+				if (page.isEmpty()) {
+					println("No older messages.", colorInfo);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints the channels in the channel directory, without asking the server.
+	 */
+	private void printChannels() {
+		ChannelDirectory directory = httpClient.getChannelDirectory();
+		List<ChannelDirectory.Entry> entries = directory.list();
+		if (entries.isEmpty()) {
+			println("No channels visited or created yet.", colorInfo);
+		}
+		for (ChannelDirectory.Entry entry : entries) {
+			print((entry.name.equals(channel) ? "* " : "  ") + entry.name, colorNick);
+			println(" by " + entry.createdBy + ": " + entry.description, colorMsg);
+			String watermark = httpClient.getLastModified(entry.name);
+			println("    checked " + entry.ageMillis() / 1000 + " s ago, messages since "
+					+ (null == watermark ? "the start" : watermark), colorInfo);
+		}
+		println(directory.describe(), colorInfo);
+	}
+
+	/**
+	 * Prints the message rates of the channels followed, and the most active
+	 * nicks of the current channel.
+	 */
+	private void printTop() {
+		List<ChannelAnalytics.Summary> summaries = analytics.summaries();
+		if (summaries.isEmpty()) {
+			println("No messages received yet.", colorInfo);
+			return;
+		}
+		DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+		for (ChannelAnalytics.Summary summary : summaries) {
+			String bursts = "";
+			if (summary.bursts > 0) {
+				bursts = ", " + summary.bursts + " bursts, latest at " + LocalTime
+						.ofInstant(Instant.ofEpochMilli(summary.lastBurstMillis), ZoneId.systemDefault()).format(formatter);
+			}
+			println(String.format("%-16s %5d/min %6d/hour %8d received%s", summary.channel, summary.lastMinute,
+					summary.lastHour, summary.total, bursts), colorInfo);
+		}
+		ChannelAnalytics.Summary current = analytics.summary(channel);
+		if (null == current) {
+			return;
+		}
+		println("Most active on " + current.channel + ":", colorInfo);
+		for (int index = 0; index < Math.min(TOP_NICKS_SHOWN, current.topNicks.size()); index++) {
+			ChannelAnalytics.NickCount nick = current.topNicks.get(index);
+			print(String.format("  %-20s", nick.nick), colorNick);
+			println(nick.count + (nick.error > 0 ? " (at most " + nick.error + " too many)" : ""), colorMsg);
+		}
+	}
+
+	/**
+	 * Prints the latest failed requests, oldest first.
+	 */
+	private void printErrors() {
+		ServerDiagnostics diagnostics = httpClient.getDiagnostics();
+		List<ServerDiagnostics.Entry> entries = diagnostics.getEntries();
+		if (entries.isEmpty()) {
+			println("No failed requests.", colorInfo);
+			return;
+		}
+		DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+		for (ServerDiagnostics.Entry entry : entries) {
+			String time = LocalTime.ofInstant(Instant.ofEpochMilli(entry.timeMillis), ZoneId.systemDefault())
+					.format(formatter);
+			print(time + " ", colorDate);
+			print(entry.endpoint + " " + (entry.status < 0 ? "no response" : Integer.toString(entry.status)) + " ",
+					colorError);
+			println(entry.message, colorMsg);
+		}
+		if (diagnostics.getRecordedCount() > entries.size()) {
+			println("Showing the latest " + entries.size() + " of " + diagnostics.getRecordedCount() + " errors.",
+					colorInfo);
+		}
+	}
+
+	/**
+	 * Searches the messages received on the current channel. See ChatSearchIndex
+	 * for the query syntax.
+	 */
+	private void searchMessages(Console console) {
+		print("Enter search (words, prefix*, @nick, from:yyyy-MM-dd, to:yyyy-MM-dd) > ", colorInfo);
+		String query = console.readLine().trim();
+		if (query.length() == 0) {
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			// Messages the filter hides are not shown in the results either.
+			List<ChatMessage> found = searchIndex.search(channel, query, SEARCH_RESULT_LIMIT,
+					message -> filter.apply(message, false) != MessageFilter.Action.HIDE);
+			long elapsed = System.nanoTime() - start;
+			// Results are newest first, print them in chat order.
+			for (int index = found.size() - 1; index >= 0; index--) {
+				printFiltered(found.get(index), false);
+			}
+			println("Found " + found.size() + (found.size() == SEARCH_RESULT_LIMIT ? " (or more)" : "")
+					+ " messages from " + searchIndex.size(channel) + " in " + (elapsed / 1000) + " us", colorInfo);
+		} catch (IllegalArgumentException e) {
+			println(e.getMessage(), colorError);
+		}
+	}
+
 	/**
 	 * Create a new chat channel
 	 */
@@ -320,7 +689,7 @@ public class ChatClient implements ChatClientDataProvider {
 	 * username and password must be given again (register and/or login).
 	 */
 	private void changeServer(Console console) {
-		print("Enter server address > ", colorInfo);
+		print("Enter server address (or several, separated with commas) > ", colorInfo);
 		String newServer = console.readLine().trim();
 		if (newServer.length() > 0) {
 			print("Change server from " + currentServer + " to " + newServer + "Y/n? > ", colorInfo);
@@ -328,7 +697,9 @@ public class ChatClient implements ChatClientDataProvider {
 			if (confirmation.length() == 0 || confirmation.equalsIgnoreCase("Y")) {
 				// Need to cancel autofetch since must register/login first.
 				cancelAutoFetch();
-				currentServer = newServer;
+				setServers(newServer);
+				// Channels of the old server are not those of the new one.
+				httpClient.getChannelDirectory().clear();
 				username = null;
 				nick = null;
 				password = null;
@@ -338,6 +709,33 @@ public class ChatClient implements ChatClientDataProvider {
 		println("Server in use is " + currentServer, colorInfo);
 	}
 
+	/**
+	 * Sets the server address. Several addresses separated by commas are used as a
+	 * pool of equivalent servers: requests go to the fastest working one and fail
+	 * over to the others.
+	 */
+	private void setServers(String addresses) {
+		List<String> servers = new ArrayList<String>();
+		for (String address : addresses.split(",")) {
+			if (address.trim().length() > 0) {
+				servers.add(address.trim());
+			}
+		}
+		if (null != serverPool) {
+			serverPool.close();
+			serverPool = null;
+		}
+		if (servers.size() > 1) {
+			serverPool = new ServerPool(servers);
+			// Sorted, so the same servers in another order keep their sync state.
+			currentServer = String.join(",", new TreeSet<String>(servers));
+		} else if (servers.size() == 1) {
+			currentServer = servers.get(0);
+		}
+		httpClient.setServerPool(serverPool);
+		httpClient.prewarm();
+	}
+
 	/**
 	 * Get user credentials from console (i.e. login or register). Registering a new
 	 * user actually communicates with the server. When logging in, user enters the
@@ -391,9 +789,74 @@ public class ChatClient implements ChatClientDataProvider {
 			}
 		} else {
 			if (null != username && null != password) {
-				getNewMessages();
+				catchingUp = true;
+				restoreSyncState();
+				loadHistory();
+			}
+		}
+	}
+
+	/**
+	 * Continues from the watermarks saved in an earlier session of the user, so
+	 * that only messages sent since are fetched. The older ones are fetched
+	 * from the server only if the history needs them.
+	 */
+	private void restoreSyncState() {
+		Map<String, String> restored = httpClient.restoreWatermarks();
+		for (Map.Entry<String, String> watermark : restored.entrySet()) {
+			long upTo = SyncState.toEpochMillis(watermark.getValue());
+			if (upTo != Long.MIN_VALUE) {
+				history.markMissing(watermark.getKey(), upTo);
 			}
 		}
+		String current = restored.get(ChatHttpClient.channelKey(channel));
+		if (null != current) {
+			println("Continuing from the previous session, fetching messages since " + current, colorInfo);
+		}
+	}
+
+	private void closeSyncState() {
+		try {
+			syncState.close();
+		} catch (IOException e) {
+			println("Saving " + syncState.getFile() + " failed: " + e.getMessage(), colorError);
+		}
+	}
+
+	private void closeChatLog() {
+		if (null == chatLog) {
+			return;
+		}
+		try {
+			chatLog.close();
+		} catch (IOException e) {
+			println("Writing the log failed: " + e.getMessage(), colorError);
+		}
+	}
+
+	/**
+	 * Counts the new messages of a channel and queues them for the log.
+	 */
+	private void received(String channelName, List<ChatMessage> messages) {
+		analytics.record(channelName, messages);
+		if (null != chatLog) {
+			chatLog.log(channelName, messages);
+		}
+	}
+
+	/**
+	 * Gets the messages after login in the background, so that the prompt can be
+	 * used while they download. Messages are printed as they arrive, like with
+	 * autofetch.
+	 */
+	private void loadHistory() {
+		Thread loader = new Thread(() -> {
+			if (getNewMessages() > 0) {
+				print("O3-chat > ", colorInfo);
+			}
+		}, "history-load");
+		loader.setDaemon(true);
+		loader.start();
 	}
 
 	/**
@@ -450,23 +913,25 @@ public class ChatClient implements ChatClientDataProvider {
 	private int getNewMessages() {
 		int count = 0;
 		try {
-			if (null != username && null != password) {
-				int response = httpClient.getChatMessages(channel);
-				if (response >= 200 || response < 300) {
+			if (null != username && null != password && serverVersion >= 3 && !subscriptions.isEmpty()) {
+				count = getSubscribedMessages();
+			} else if (null != username && null != password) {
+				// The result of this fetch, not the client's latest, which the history
+				// loader and /get may both be updating at the same time.
+				ChatFetchResult result = httpClient.fetchChatMessages(channel);
+				int response = result.responseCode;
+				if (response >= 200 && response < 300) {
 					if (serverVersion >= 3) {
-						List<ChatMessage> messages = httpClient.getNewMessages();
-						if (null != messages) {
-							count = messages.size();
-							for (ChatMessage message : messages) {
-								print(message.sentAsString(), colorDate);
-								System.out.print(" ");
-								print(message.nick, colorNick);
-								System.out.print(" ");
-								println(message.message, colorMsg);
-							}
+						// Responses may repeat messages at the If-Modified-Since boundary,
+						// the timeline returns only the ones not seen before.
+						List<ChatMessage> messages = history.merge(channel, result.messages);
+						received(channel, messages);
+						count = messages.size();
+						for (int index = skipToLatestPage(count); index < count; index++) {
+							printFiltered(messages.get(index), true);
 						}
 					} else {
-						List<String> messages = httpClient.getPlainStringMessages();
+						List<String> messages = result.plainStringMessages;
 						if (null != messages) {
 							count = messages.size();
 							for (String message : messages) {
@@ -475,7 +940,7 @@ public class ChatClient implements ChatClientDataProvider {
 						}
 					}
 				} else {
-					println(" **** Error from server: " + response + " " + httpClient.getServerNotification(), colorError);
+					println(" **** Error from server: " + response + result.serverNotification, colorError);
 				}
 			} else {
 				println("Not yet registered or logged in!", colorError);
@@ -488,20 +953,228 @@ public class ChatClient implements ChatClientDataProvider {
 			println(" **** ERROR in getting messages from server " + currentServer,colorError);
 			println(e.getLocalizedMessage(), colorError);
 		}
+		if (count > 0 && printStartupTiming && !firstMessageTimed) {
+			firstMessageTimed = true;
+			println("Time to first message: " + (System.currentTimeMillis() - startupMillis) + " ms", colorInfo);
+		}
 		return count;
 	}
 
+	/**
+	 * Fetches the current and the subscribed channels in parallel and prints their
+	 * new messages in time order, tagged with the channel name.
+	 *
+	 * @return The count of new messages from server.
+	 */
+	private int getSubscribedMessages() {
+		Set<String> channelKeys = new LinkedHashSet<String>();
+		channelKeys.add(ChatHttpClient.channelKey(channel));
+		channelKeys.addAll(subscriptions.getChannels());
+		List<ChannelSubscriptions.ChannelResult> results;
+		try {
+			results = subscriptions.fetch(channelKeys);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+		Map<String, List<ChatMessage>> newByChannel = new HashMap<String, List<ChatMessage>>();
+		for (ChannelSubscriptions.ChannelResult result : results) {
+			if (null != result.error) {
+				println(" **** ERROR in getting messages of channel " + result.channel + ": "
+						+ result.error.getLocalizedMessage(), colorError);
+			} else if (result.result.responseCode >= 200 && result.result.responseCode < 300) {
+				List<ChatMessage> messages = history.merge(result.channel, result.result.messages);
+				received(result.channel, messages);
+				newByChannel.put(result.channel, messages);
+			} else {
+				println(" **** Error from server for channel " + result.channel + ": " + result.result.responseCode
+						+ result.result.serverNotification, colorError);
+			}
+		}
+		List<ChannelSubscriptions.TaggedMessage> merged = ChannelSubscriptions.merge(newByChannel);
+		for (int index = skipToLatestPage(merged.size()); index < merged.size(); index++) {
+			ChannelSubscriptions.TaggedMessage tagged = merged.get(index);
+			MessageFilter.Action action = filter.apply(tagged.message);
+			if (action != MessageFilter.Action.HIDE) {
+				print("[" + tagged.channel + "] ", colorInfo);
+				printMessage(tagged.message, action == MessageFilter.Action.HIGHLIGHT);
+			}
+		}
+		return merged.size();
+	}
+
+	/**
+	 * On the first fetch after entering a channel, tells how many of the new
+	 * messages are not printed, so that a long history does not flood the
+	 * terminal.
+	 *
+	 * @return Index of the first new message to print.
+	 */
+	private int skipToLatestPage(int count) {
+		if (!catchingUp || count == 0) {
+			return 0;
+		}
+		catchingUp = false;
+		int skipped = Math.max(0, count - PAGE_ROWS);
+		if (skipped > 0) {
+			println("... " + skipped + " earlier messages, use /history to scroll back", colorInfo);
+		}
+		return skipped;
+	}
+
+	private static int pageRows() {
+		// LINES is the terminal height if the shell exports it.
+		try {
+			return Math.max(5, Integer.parseInt(System.getenv("LINES")) - 2);
+		} catch (NumberFormatException e) {
+			return DEFAULT_PAGE_ROWS;
+		}
+	}
+
+	/**
+	 * Subscribes to or unsubscribes from a channel. Messages of subscribed
+	 * channels are fetched together with the current channel.
+	 */
+	private void subscribeChannel(Console console, boolean subscribe) {
+		print("Enter channel name > ", colorInfo);
+		String channelName = console.readLine().trim();
+		if (channelName.length() > 0) {
+			if (subscribe) {
+				if (subscriptions.subscribe(channelName)) {
+					println("Following channel " + channelName, colorInfo);
+				}
+			} else if (subscriptions.unsubscribe(channelName)) {
+				println("Stopped following channel " + channelName, colorInfo);
+			}
+		}
+		println("Following channels: " + subscriptions.getChannels(), colorInfo);
+	}
+
+	/**
+	 * Reads all messages of a channel from the server, for fetching messages
+	 * evicted from the history again.
+	 */
+	private void streamHistory(String channelKey, ChatHttpClient.ChatMessageConsumer consumer)
+			throws IOException, GeneralSecurityException {
+		String channelName = ChatHttpClient.MAIN_CHANNEL.equals(channelKey) ? null : channelKey;
+		int response = httpClient.streamChatMessages(channelName, consumer);
+		if (response < 200 || response >= 300) {
+			throw new IOException("Could not read the history of channel " + channelKey + ": " + response
+					+ httpClient.getServerNotification());
+		}
+	}
+
+	private void printMessage(ChatMessage message) {
+		printMessage(message, false);
+	}
+
+	private void printMessage(ChatMessage message, boolean highlight) {
+		print(message.sentAsString(), colorDate);
+		if (highlight) {
+			System.out.print(" * ");
+		} else if (message.isPending()) {
+			System.out.print(" ~ ");
+		} else {
+			System.out.print(" ");
+		}
+		print(message.getNick(), colorNick);
+		System.out.print(" ");
+		println(message.getMessage(), highlight ? colorHighlight : colorMsg);
+	}
+
+	/**
+	 * Prints the message unless a filter rule hides it.
+	 *
+	 * @param received True if just received, counted in the rule hits.
+	 */
+	private void printFiltered(ChatMessage message, boolean received) {
+		MessageFilter.Action action = filter.apply(message, received);
+		if (action != MessageFilter.Action.HIDE) {
+			printMessage(message, action == MessageFilter.Action.HIGHLIGHT);
+		}
+	}
+
+	/**
+	 * Adds or removes a rule of the message filter.
+	 */
+	private void editFilters(Console console) {
+		printFilters();
+		print("Filter (mute nick, allow nick, hide word, highlight word, remove number, clear) > ", colorInfo);
+		String command = console.readLine().trim();
+		if (command.length() == 0) {
+			return;
+		}
+		String[] parts = command.split("\\s+", 2);
+		String verb = parts[0].toLowerCase();
+		String argument = parts.length > 1 ? parts[1] : "";
+		try {
+			switch (verb) {
+				case "mute":
+				case "allow":
+				case "hide":
+				case "highlight":
+					if (!filter.add(MessageFilter.RuleType.valueOf(verb.toUpperCase()), argument)) {
+						println("The rule is already there.", colorInfo);
+					}
+					break;
+				case "remove":
+					if (!filter.remove(Integer.parseInt(argument) - 1)) {
+						println("No rule " + argument, colorError);
+					}
+					break;
+				case "clear":
+					filter.clear();
+					break;
+				default:
+					println("Unknown filter command " + verb, colorError);
+					return;
+			}
+		} catch (IllegalArgumentException e) {
+			println(e.getMessage(), colorError);
+			return;
+		}
+		printFilters();
+	}
+
+	private void printFilters() {
+		List<MessageFilter.Rule> rules = filter.getRules();
+		if (rules.isEmpty()) {
+			println("No filter rules, all messages are shown.", colorInfo);
+			return;
+		}
+		for (int index = 0; index < rules.size(); index++) {
+			MessageFilter.Rule rule = rules.get(index);
+			println((index + 1) + ". " + rule + ", " + rule.getHits() + " hits", colorInfo);
+		}
+		println(filter.getExamined() + " messages filtered", colorInfo);
+	}
+
 	/**
 	 * Sends a new chat message to the server. User must be logged in to the server.
+	 * <p>
+	 * The message is added to the history and printed right away, marked with ~
+	 * until the server accepts it. The copy the server sends back later has the
+	 * same nick, text and sent time, so the history recognizes it and it is not
+	 * printed again. If the server does not accept the message, it is removed.
 	 * 
 	 * @param message The chat message to send.
 	 */
 	private void postMessage(String message) {
 		if (null != username) {
+			long sentMillis = System.currentTimeMillis();
+			ChatMessage echo = null;
+			if (serverVersion >= 3) {
+				echo = ChatMessage.pending(nick, message, sentMillis);
+				history.merge(channel, Collections.singletonList(echo));
+				printMessage(echo);
+			}
+			boolean sent = false;
 			try {
-				int response = httpClient.postChatMessage(message, channel);
+				int response = httpClient.postChatMessage(message, channel, nick, sentMillis);
 				if (response < 200 || response >= 300) {
 					println("Error from server: " + response + " " + httpClient.getServerNotification(), colorError);
+				} else {
+					sent = true;
 				}
 			} catch (KeyManagementException | KeyStoreException | CertificateException | NoSuchAlgorithmException
 					| FileNotFoundException e) {
@@ -511,6 +1184,15 @@ public class ChatClient implements ChatClientDataProvider {
 				println(" **** ERROR in posting message to server " + currentServer, colorError);
 				println(e.getLocalizedMessage(), colorError);
 			}
+			if (null != echo) {
+				if (sent) {
+					echo.confirm();
+					// The copy from the server is a duplicate, this is counted instead.
+					received(channel, Collections.singletonList(echo));
+				} else if (history.remove(channel, echo)) {
+					println("Message was not sent: " + message, colorError);
+				}
+			}
 		} else {
 			println("Must register/login to server before posting messages!", colorInfo);
 		}
@@ -527,6 +1209,13 @@ public class ChatClient implements ChatClientDataProvider {
 		println("/nick      -- Specify a nickname to use in chat server", colorInfo);
 		println("/get       -- Get new messages from server", colorInfo);
 		println("/auto      -- Toggles automatic /get in " + AUTO_FETCH_INTERVAL / 1000.0 + " sec intervals", colorInfo);
+		println("/search    -- Search received messages on the current channel", colorInfo);
+		println("/subscribe -- Follow also another channel, /unsubscribe to stop", colorInfo);
+		println("/channels  -- List the channels visited or created", colorInfo);
+		println("/history   -- Page through the messages of the current channel", colorInfo);
+		println("/filter    -- Mute nicks, hide or highlight messages with keywords", colorInfo);
+		println("/top       -- Message rates of the channels and the most active nicks", colorInfo);
+		println("/errors    -- Show the latest failed requests", colorInfo);
 		println("/color     -- Toggles color output on/off", colorInfo);
 		println("/help      -- Prints out this information", colorInfo);
 		println("/info      -- Prints out settings and user information", colorInfo);
@@ -539,24 +1228,36 @@ public class ChatClient implements ChatClientDataProvider {
 	 */
 	private void printInfo() {
 		println("Server: " + currentServer, colorInfo);
+		if (null != serverPool) {
+			print(serverPool.describe(), colorInfo);
+		}
+		print(ChatHttpClient.describeServerHealth(), colorInfo);
+		println(history.describe(), colorInfo);
+		if (null != chatLog) {
+			println(chatLog.describe(), colorInfo);
+		}
 		println("Server version assumed: " + serverVersion, colorInfo);
 		println("User: " + username, colorInfo);
 		println("Nick: " + nick, colorInfo);
+		println("Channel: " + ChatHttpClient.channelKey(channel), colorInfo);
+		if (null != subscriptions && !subscriptions.isEmpty()) {
+			println("Following channels: " + subscriptions.getChannels(), colorInfo);
+		}
 		println("Autofetch is " + (autoFetch ? "on" : "off"), colorInfo);
 		println("Using color in output: " + (useColorOutput ? "yes" : "no"), colorInfo);
 	}
 
-	private void print(String item, Attribute withAttribute) {
+	private void print(String item, OutputColor withColor) {
 		if (useColorOutput) {
-			System.out.print(Ansi.colorize(item, withAttribute));
+			System.out.print(Ansi.colorize(item, AnsiColors.attributes[withColor.ordinal()]));
 		} else {
 			System.out.print(item);
 		}
 	}
 
-	private void println(String item, Attribute withAttribute) {
+	private void println(String item, OutputColor withColor) {
 		if (useColorOutput) {
-			System.out.println(Ansi.colorize(item, withAttribute));
+			System.out.println(Ansi.colorize(item, AnsiColors.attributes[withColor.ordinal()]));
 		} else {
 			System.out.println(item);
 		}
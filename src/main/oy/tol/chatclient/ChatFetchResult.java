@@ -0,0 +1,35 @@
+package oy.tol.chatclient;
+
+import java.util.List;
+
+/**
+ * The outcome of one GET /chat request for a channel. Unlike the fields of
+ * ChatHttpClient updated by getChatMessages, a result belongs to a single
+ * request, so several channels can be fetched at the same time. Results may be
+ * shared by several callers, so they must not be modified.
+ */
+public class ChatFetchResult {
+	public final String channelName;
+	public final int responseCode;
+	// Messages sorted by sent time, null if there were none (e.g. 204).
+	public final List<ChatMessage> messages;
+	// Messages from servers not yet supporting JSON, otherwise null.
+	public final List<String> plainStringMessages;
+	// Last-Modified header of the response, if any.
+	public final String lastModified;
+	// Error text from the server, empty if the request succeeded.
+	public final String serverNotification;
+	// The error recorded for the request, null if it succeeded.
+	public final ServerDiagnostics.Entry error;
+
+	ChatFetchResult(String channelName, int responseCode, List<ChatMessage> messages, List<String> plainStringMessages,
+			String lastModified, String serverNotification, ServerDiagnostics.Entry error) {
+		this.channelName = channelName;
+		this.responseCode = responseCode;
+		this.messages = messages;
+		this.plainStringMessages = plainStringMessages;
+		this.lastModified = lastModified;
+		this.serverNotification = serverNotification;
+		this.error = error;
+	}
+}
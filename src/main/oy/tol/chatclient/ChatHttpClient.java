@@ -1,6 +1,7 @@
 package oy.tol.chatclient;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -8,6 +9,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
@@ -17,20 +20,31 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 public class ChatHttpClient {
 
@@ -46,19 +60,84 @@ public class ChatHttpClient {
 	private List<ChatMessage> newMessages = null;
 	private List<String> plainStringMessages = null;
 
-	private String serverNotification = "";
+	// Failed requests of this client, and the error of the latest request if it
+	// failed. Reset by a successful get, post or registration.
+	private final ServerDiagnostics diagnostics = new ServerDiagnostics();
+	private volatile ServerDiagnostics.Entry lastError = null;
 
 	private ChatClientDataProvider dataProvider = null;
 
+	// Timeouts are a few times the server's recent p99 response time, kept
+	// between the floor and these ceilings. Until there are enough samples the
+	// ceilings are used.
 	private static final int CONNECT_TIMEOUT = 10 * 1000;
 	private static final int REQUEST_TIMEOUT = 30 * 1000;
-
-	private static final DateTimeFormatter jsonDateFormatter = DateTimeFormatter
-			.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
-
-	private String latestDataFromServerIsFrom = null;
+	private static final int CONNECT_TIMEOUT_FLOOR = 1000;
+	private static final int REQUEST_TIMEOUT_FLOOR = 2000;
+	private static final int TIMEOUT_P99_FACTOR = 4;
+	private static final int TIMEOUT_MIN_SAMPLES = 20;
+
+	static final String MAIN_CHANNEL = "main";
+
+	// GET /chat requests in flight, shared by all clients in the process.
+	private static final SingleFlight<String, ChatFetchResult> chatRequests = new SingleFlight<String, ChatFetchResult>();
+
+	// Circuit breakers and recent response times, by server, shared by all
+	// clients in the process.
+	private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private static final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+	// Durations of whole GET /chat requests, including reading the messages.
+	private static final Map<String, LatencyHistogram> fetchLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final int LATENCY_WINDOW = 1000;
+
+	// Retries of GET /chat with exponential backoff.
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long MIN_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 2000;
+	private static final AtomicLong retries = new AtomicLong();
+
+	// Hedged GET /chat requests, sent after enough samples to know the p95.
+	private static final int HEDGE_MIN_SAMPLES = 20;
+	private static final long HEDGE_MIN_DELAY_NANOS = 5 * 1000 * 1000;
+	private static final AtomicLong hedges = new AtomicLong();
+	private static final AtomicLong hedgeWins = new AtomicLong();
+	private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "chat-hedge");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Last-Modified of the latest response, by channel.
+	private final Map<String, String> latestDataFromServerIsFrom = new ConcurrentHashMap<String, String>();
+
+	// Saves the watermarks for the next session when set.
+	private volatile SyncState syncState = null;
+
+	// Metadata of channels changed to or created.
+	private final ChannelDirectory channelDirectory = new ChannelDirectory();
+
+	// Records the requests of all clients when set.
+	private static volatile TrafficRecorder trafficRecorder = null;
+
+	// Optional set of servers to use instead of the data provider's server.
+	private volatile ServerPool serverPool = null;
+
+	// Connections are warmed up in the background. While the client is idle, a
+	// HEAD request every few seconds keeps a connection to the server in the
+	// JDK's keep-alive cache, which by default drops idle ones after 5 s. After
+	// a long idle time this stops, so an unattended client does not poll forever.
+	private static final long KEEP_WARM_INTERVAL = 4 * 1000; // ms
+	private static final long KEEP_WARM_MAX_IDLE = 10 * 60 * 1000; // ms
+	private static final ScheduledExecutorService warmer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "connection-warmer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private volatile long lastRequestNanos = System.nanoTime();
+	private ScheduledFuture<?> keepWarmTask = null;
 
 	private String certificateFile;
+	private SSLSocketFactory sslSocketFactory = null;
 
 	private boolean useHttpsInRequests = true;
 
@@ -75,8 +154,32 @@ public class ChatHttpClient {
 		}
 	}
 
+	/**
+	 * Key used for a channel in per channel bookkeeping. The main channel has no
+	 * name in requests (null), here it is called "main".
+	 */
+	static String channelKey(String channelName) {
+		return null == channelName ? MAIN_CHANNEL : channelName;
+	}
+
+	/**
+	 * @return The error body of the latest failed request, empty if the latest
+	 *         request succeeded. Starts with a space, for appending to a message.
+	 */
 	public String getServerNotification() {
-		return serverNotification;
+		ServerDiagnostics.Entry error = lastError;
+		return null == error ? "" : " " + error.message;
+	}
+
+	/**
+	 * @return The error of the latest request, or null if it succeeded.
+	 */
+	public ServerDiagnostics.Entry getLastError() {
+		return lastError;
+	}
+
+	public ServerDiagnostics getDiagnostics() {
+		return diagnostics;
 	}
 
 	public List<ChatMessage> getNewMessages() {
@@ -87,19 +190,81 @@ public class ChatHttpClient {
 		return plainStringMessages;
 	}
 
+	public ChannelDirectory getChannelDirectory() {
+		return channelDirectory;
+	}
+
+	void setSyncState(SyncState syncState) {
+		this.syncState = syncState;
+	}
+
+	/**
+	 * Replaces the watermarks with those saved for the current server and user
+	 * in the sync state, so that fetches continue from the previous session.
+	 *
+	 * @return The restored watermarks by channel key, empty if none.
+	 */
+	Map<String, String> restoreWatermarks() {
+		latestDataFromServerIsFrom.clear();
+		SyncState state = syncState;
+		if (null == state) {
+			return new HashMap<String, String>();
+		}
+		Map<String, String> restored = state.restore(dataProvider.getServer(), dataProvider.getUsername());
+		latestDataFromServerIsFrom.putAll(restored);
+		return restored;
+	}
+
+	private void setWatermark(String channelKey, String lastModified) {
+		if (null == lastModified) {
+			latestDataFromServerIsFrom.remove(channelKey);
+		} else {
+			latestDataFromServerIsFrom.put(channelKey, lastModified);
+		}
+		SyncState state = syncState;
+		if (null != state) {
+			state.update(dataProvider.getServer(), dataProvider.getUsername(), channelKey, lastModified);
+		}
+	}
+
+	/**
+	 * @return The Last-Modified watermark of the channel's messages, null if
+	 *         the next fetch gets all of them.
+	 */
+	public String getLastModified(String channelName) {
+		return latestDataFromServerIsFrom.get(channelKey(channelName));
+	}
+
+	/**
+	 * Changes to a channel, getting its metadata from the channel directory if
+	 * it is fresh there, otherwise from the server, revalidating the cached
+	 * metadata if there is some. Only a channel neither in the directory nor
+	 * with a watermark has its If-Modified-Since watermark reset, to get all
+	 * messages of a new channel; a channel visited before, in this session or
+	 * a restored one, continues from where it was.
+	 *
+	 * @return The channel's metadata and the response code, 200 if served from
+	 *         the directory or revalidated.
+	 */
 	public synchronized JSONObject changeChannel(String channelName) throws KeyManagementException,
 	KeyStoreException, CertificateException, IOException, NoSuchAlgorithmException {
-		String addr = dataProvider.getServer();
-		if (!addr.endsWith("/")) {
-			addr += "/";
+		ChannelDirectory.Entry cached = channelDirectory.get(channelName);
+		if (null != cached && channelDirectory.isFresh(cached)) {
+			channelDirectory.recordHit();
+			return cached.toJSON().put("responseCode", 200);
 		}
-		addr += CHANGE; 
-		URL url = new URL(addr);
+		String server = selectServer();
+		URL url = endpointUrl(server, CHANGE);
 
-		HttpURLConnection connection = createTrustingConnectionDebug(url);
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, Deadline.NONE);
 		connection.setUseCaches(false);
 		connection.setDefaultUseCaches(false);
 		connection.setRequestProperty("Cache-Control", "no-cache");
+		if (null != cached && null != cached.etag) {
+			connection.setRequestProperty("If-None-Match", cached.etag);
+		} else if (null != cached && null != cached.lastModified) {
+			connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+		}
 
 		connection.setRequestMethod("POST");
 		connection.setRequestProperty("Content-Type", "application/json");
@@ -109,23 +274,25 @@ public class ChatHttpClient {
 		String authHeaderValue = "Basic " + new String(encodedAuth);
 		connection.setRequestProperty("Authorization", authHeaderValue);
 
-		byte msgBytes[];
-		JSONObject msg = new JSONObject();
-		
-		msg.put("channelName", channelName);
-		msgBytes = msg.toString().getBytes(StandardCharsets.UTF_8);
-
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setRequestProperty("Content-Length", String.valueOf(msgBytes.length));
-
-		OutputStream writer = connection.getOutputStream();
-		writer.write(msgBytes);
-		writer.close();
+		int responseCode;
+		JsonBodyWriter body = JsonBodyWriter.acquire();
+		try {
+			body.beginObject()
+				.field("channelName", channelName)
+				.endObject();
+			responseCode = execute(connection, server, body, Deadline.NONE);
+		} finally {
+			body.release();
+		}
 
-		int responseCode = connection.getResponseCode();
+		if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && null != cached) {
+			return channelDirectory.revalidated(cached).toJSON().put("responseCode", 200);
+		}
 		if (responseCode == 200 || responseCode == 204) {
-			latestDataFromServerIsFrom = null; //Set latest data to null to get all messages in new channels
+			String key = channelKey(channelName);
+			if (null == cached && null == latestDataFromServerIsFrom.get(key)) {
+				setWatermark(key, null); //Set latest data to null to get all messages in new channels
+			}
 			String input;
 			BufferedReader in = new BufferedReader(
 					new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
@@ -134,9 +301,17 @@ public class ChatHttpClient {
 				totalInput += input;
 			}
 			JSONObject jsonObject = new JSONObject(totalInput);
+			channelDirectory.recordFetch();
+			channelDirectory.put(jsonObject.optString("channelName", channelName), jsonObject.optString("description"),
+					jsonObject.optString("createdBy"), connection.getHeaderField("ETag"),
+					connection.getHeaderField("Last-Modified"));
 			jsonObject.put("responseCode", responseCode);
 			return jsonObject;
 		} else {
+			if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+				channelDirectory.remove(channelName);
+			}
+			lastError = diagnostics.record(connection, responseCode);
 			JSONObject errorObject = new JSONObject();
 			errorObject.put("responseCode", responseCode);
 			return errorObject;
@@ -147,14 +322,10 @@ public class ChatHttpClient {
 
 	public synchronized int createChannel(String newChannelName, String description, String username) throws KeyManagementException,
 	KeyStoreException, CertificateException, IOException, NoSuchAlgorithmException {
-		String addr = dataProvider.getServer();
-		if (!addr.endsWith("/")) {
-			addr += "/";
-		}
-		addr += CREATE; 
-		URL url = new URL(addr);
+		String server = selectServer();
+		URL url = endpointUrl(server, CREATE);
 
-		HttpURLConnection connection = createTrustingConnectionDebug(url);
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, Deadline.NONE);
 		connection.setUseCaches(false);
 		connection.setDefaultUseCaches(false);
 		connection.setRequestProperty("Cache-Control", "no-cache");
@@ -167,37 +338,35 @@ public class ChatHttpClient {
 		String authHeaderValue = "Basic " + new String(encodedAuth);
 		connection.setRequestProperty("Authorization", authHeaderValue);
 
-		byte msgBytes[];
-		JSONObject msg = new JSONObject();
-		
-		msg.put("newChannelName", newChannelName);
-		msg.put("description", description);
-		msg.put("createdBy", username);
-		msgBytes = msg.toString().getBytes(StandardCharsets.UTF_8);
-
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setRequestProperty("Content-Length", String.valueOf(msgBytes.length));
-
-		OutputStream writer = connection.getOutputStream();
-		writer.write(msgBytes);
-		writer.close();
+		int responseCode;
+		JsonBodyWriter body = JsonBodyWriter.acquire();
+		try {
+			body.beginObject()
+				.field("newChannelName", newChannelName)
+				.field("description", description)
+				.field("createdBy", username)
+				.endObject();
+			responseCode = execute(connection, server, body, Deadline.NONE);
+		} finally {
+			body.release();
+		}
+		if (responseCode < 200 || responseCode >= 300) {
+			lastError = diagnostics.record(connection, responseCode);
+		} else {
+			// The metadata is known, changing to the channel needs no request.
+			channelDirectory.put(newChannelName, description, username, null, null);
+		}
 
-		int responseCode = connection.getResponseCode();
 		return responseCode;
 
 	}
 
 	public synchronized int updateUserData(String oldUsername, String username, String password, String email) throws KeyManagementException, 
 	KeyStoreException, CertificateException, IOException, NoSuchAlgorithmException {
-		String addr = dataProvider.getServer();
-		if (!addr.endsWith("/")) {
-			addr += "/";
-		}
-		addr += UPDATE; 
-		URL url = new URL(addr);
+		String server = selectServer();
+		URL url = endpointUrl(server, UPDATE);
 
-		HttpURLConnection connection = createTrustingConnectionDebug(url);
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, Deadline.NONE);
 		connection.setUseCaches(false);
 		connection.setDefaultUseCaches(false);
 		connection.setRequestProperty("Cache-Control", "no-cache");
@@ -210,37 +379,169 @@ public class ChatHttpClient {
 		String authHeaderValue = "Basic " + new String(encodedAuth);
 		connection.setRequestProperty("Authorization", authHeaderValue);
 
-		byte msgBytes[];
-		JSONObject msg = new JSONObject();
-		
-		msg.put("oldUsername", oldUsername);
-		msg.put("user", username);
-		msg.put("password", password);
-		msg.put("email", email);
-		msgBytes = msg.toString().getBytes(StandardCharsets.UTF_8);
-
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setRequestProperty("Content-Length", String.valueOf(msgBytes.length));
-
-		OutputStream writer = connection.getOutputStream();
-		writer.write(msgBytes);
-		writer.close();
+		int responseCode;
+		JsonBodyWriter body = JsonBodyWriter.acquire();
+		try {
+			body.beginObject()
+				.field("oldUsername", oldUsername)
+				.field("user", username)
+				.field("password", password)
+				.field("email", email)
+				.endObject();
+			responseCode = execute(connection, server, body, Deadline.NONE);
+		} finally {
+			body.release();
+		}
+		if (responseCode < 200 || responseCode >= 300) {
+			lastError = diagnostics.record(connection, responseCode);
+		}
 
-		int responseCode = connection.getResponseCode();
 		return responseCode;
 	}
 
 	public synchronized int getChatMessages(String channelName) throws KeyManagementException, KeyStoreException, CertificateException,
 			NoSuchAlgorithmException, IOException {
-		String addr = dataProvider.getServer();
-		if (!addr.endsWith("/")) {
-			addr += "/";
+		ChatFetchResult result = fetchChatMessages(channelName);
+		if (result.responseCode >= 200 && result.responseCode < 300) {
+			// Results are shared and read-only, callers of getNewMessages get their
+			// own list.
+			newMessages = null == result.messages ? null : new ArrayList<ChatMessage>(result.messages);
+			if (null != result.plainStringMessages) {
+				plainStringMessages = result.plainStringMessages;
+			}
+			if (result.responseCode != 204) {
+				lastError = null;
+			}
+		} else {
+			newMessages = null;
+			plainStringMessages = null;
+			lastError = result.error;
+		}
+		return result.responseCode;
+	}
+
+	/**
+	 * Gets the new messages of a channel. Each channel has its own
+	 * If-Modified-Since watermark, and this method does not touch the shared
+	 * state read by getNewMessages and getServerNotification, so several channels
+	 * may be fetched in parallel.
+	 *
+	 * <p>
+	 * Identical requests in flight at the same time, from this or another client
+	 * in the process, are sent only once and the callers share the response. This
+	 * happens e.g. when /get is given while an /auto fetch is going on.
+	 *
+	 * @param channelName The channel, null for the main channel.
+	 * @return The response code and the messages of the channel.
+	 */
+	public ChatFetchResult fetchChatMessages(String channelName) throws KeyManagementException, KeyStoreException,
+			CertificateException, NoSuchAlgorithmException, IOException {
+		return fetchChatMessages(channelName, Deadline.NONE);
+	}
+
+	/**
+	 * Gets the new messages of a channel, like fetchChatMessages(String), but
+	 * fails with a SocketTimeoutException if that takes longer than the deadline
+	 * allows. Retries and hedged requests are only made while there is time left.
+	 *
+	 * @param channelName The channel, null for the main channel.
+	 * @param deadline    When the fetch must be done.
+	 * @return The response code and the messages of the channel.
+	 */
+	public ChatFetchResult fetchChatMessages(String channelName, Deadline deadline) throws KeyManagementException,
+			KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
+		deadline.check();
+		String channelKey = channelKey(channelName);
+		String modifiedSince = latestDataFromServerIsFrom.get(channelKey);
+		// A caller without a deadline must not get the timeout of a caller with one.
+		// The password is left out, so it is not kept in the key while in flight.
+		String flightKey = dataProvider.getServer() + '\n' + dataProvider.getUsername() + '\n'
+				+ dataProvider.getServerVersion() + '\n' + channelKey + '\n' + modifiedSince
+				+ (deadline.isNone() ? "" : "\ndeadline");
+		long waitNanos = deadline.isNone() ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(deadline.remainingMillis());
+		ChatFetchResult result;
+		try {
+			result = chatRequests.execute(flightKey, () -> requestChatMessages(channelName, modifiedSince, deadline),
+					waitNanos);
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException("Deadline exceeded");
+		} catch (KeyManagementException | KeyStoreException | CertificateException | NoSuchAlgorithmException
+				| IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		if (dataProvider.getServerVersion() >= 5 && result.responseCode >= 200 && result.responseCode < 300
+				&& result.responseCode != 204) {
+			setWatermark(channelKey, result.lastModified);
+		}
+		return result;
+	}
+
+	/**
+	 * Consumes messages one at a time as they are parsed from a response.
+	 */
+	public interface ChatMessageConsumer {
+		void accept(ChatMessage message) throws IOException;
+	}
+
+	/**
+	 * Gets all messages of a channel and passes each one to the consumer as soon
+	 * as it has been parsed from the response, without collecting them in memory.
+	 * The messages come in the order the server sent them. Does not use or update
+	 * the If-Modified-Since watermark of the channel.
+	 *
+	 * @param channelName The channel, null for the main channel.
+	 * @param consumer    Receives the messages.
+	 * @return The response code from the server.
+	 */
+	public int streamChatMessages(String channelName, ChatMessageConsumer consumer) throws KeyManagementException,
+			KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
+		String server = selectServer();
+		HttpURLConnection connection = openChatGet(server, channelName, null, Deadline.NONE);
+		// The whole history may take the server much longer than the polls the
+		// adaptive timeout is based on.
+		connection.setReadTimeout(REQUEST_TIMEOUT);
+		int responseCode = execute(connection, server, null, Deadline.NONE);
+		if (responseCode >= 200 && responseCode < 300 && responseCode != 204) {
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8), 64 * 1024)) {
+				// The tokener reads from the stream only as far as it needs for the
+				// next value.
+				JSONTokener tokener = new JSONTokener(in);
+				if (tokener.nextClean() != '[') {
+					throw tokener.syntaxError("Expected an array of messages");
+				}
+				char next = tokener.nextClean();
+				if (next != ']') {
+					tokener.back();
+					while (true) {
+						Object value = tokener.nextValue();
+						if (!(value instanceof JSONObject)) {
+							throw tokener.syntaxError("Expected a message object");
+						}
+						consumer.accept(ChatMessage.from((JSONObject) value));
+						next = tokener.nextClean();
+						if (next == ']') {
+							break;
+						} else if (next != ',') {
+							throw tokener.syntaxError("Expected , or ]");
+						}
+					}
+				}
+			}
+		} else if (responseCode >= 300) {
+			lastError = diagnostics.record(connection, responseCode);
 		}
-		addr += CHAT;
-		URL url = new URL(addr);
+		return responseCode;
+	}
 
-		HttpURLConnection connection = createTrustingConnectionDebug(url);
+	private HttpURLConnection openChatGet(String server, String channelName, String modifiedSince, Deadline deadline)
+			throws KeyManagementException, KeyStoreException, CertificateException, NoSuchAlgorithmException,
+			IOException {
+		URL url = endpointUrl(server, CHAT);
+
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, deadline);
 		connection.setUseCaches(false);
 		connection.setDefaultUseCaches(false);
 		connection.setRequestProperty("Cache-Control", "no-cache");
@@ -251,8 +552,8 @@ public class ChatHttpClient {
 		} else {
 			connection.setRequestProperty("Content-Type", "text/plain");
 		}
-		if (dataProvider.getServerVersion() >= 5 && null != latestDataFromServerIsFrom) {
-			connection.setRequestProperty("If-Modified-Since", latestDataFromServerIsFrom);
+		if (dataProvider.getServerVersion() >= 5 && null != modifiedSince) {
+			connection.setRequestProperty("If-Modified-Since", modifiedSince);
 		}
 
 		if (channelName != null) {
@@ -263,192 +564,609 @@ public class ChatHttpClient {
 		byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
 		String authHeaderValue = "Basic " + new String(encodedAuth);
 		connection.setRequestProperty("Authorization", authHeaderValue);
+		return connection;
+	}
+
+	// Getting messages is idempotent, so failed requests and responses telling
+	// the server is temporarily unable to serve are retried a few times, with
+	// a growing, randomized delay so that clients do not retry in step. With a
+	// server pool, the retry goes to another server if there is one.
+	private ChatFetchResult requestChatMessages(String channelName, String modifiedSince, Deadline deadline)
+			throws Exception {
+		String server = selectServer();
+		for (int attempt = 1;; attempt++) {
+			ChatFetchResult result = null;
+			IOException failure = null;
+			try {
+				result = hedgedRequestChatMessages(server, channelName, modifiedSince, deadline);
+				if (attempt >= MAX_ATTEMPTS || !isRetryable(result.responseCode)) {
+					return result;
+				}
+			} catch (IOException e) {
+				if (attempt >= MAX_ATTEMPTS || (e instanceof CircuitBreaker.OpenException && null == otherServer(server))) {
+					throw e;
+				}
+				failure = e;
+			}
+			long ceiling = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << (attempt - 1));
+			long delay = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+			if (delay >= deadline.remainingMillis()) {
+				// No time for another attempt.
+				if (null != failure) {
+					throw failure;
+				}
+				return result;
+			}
+			retries.incrementAndGet();
+			Thread.sleep(delay);
+			String other = otherServer(server);
+			if (null != other) {
+				server = other;
+			}
+		}
+	}
+
+	private static boolean isRetryable(int responseCode) {
+		return responseCode == 502 || responseCode == 503 || responseCode == 504;
+	}
+
+	private String otherServer(String server) {
+		ServerPool pool = serverPool;
+		return null == pool ? null : pool.selectOtherThan(server);
+	}
+
+	// When a response is slower than 95 % of the earlier ones from the server, a
+	// second, hedged request is sent, to another server of the pool if there is
+	// one, and the first usable response is taken. The other one is still read
+	// to the end in the background, so its timing and health are recorded.
+	private ChatFetchResult hedgedRequestChatMessages(String server, String channelName, String modifiedSince,
+			Deadline deadline) throws Exception {
+		LatencyHistogram latency = fetchLatencies.computeIfAbsent(server, key -> new LatencyHistogram(LATENCY_WINDOW));
+		long hedgeAfter = Math.max(HEDGE_MIN_DELAY_NANOS, latency.percentile(0.95));
+		if (latency.getCount() < HEDGE_MIN_SAMPLES
+				|| TimeUnit.NANOSECONDS.toMillis(hedgeAfter) >= deadline.remainingMillis()) {
+			return requestChatMessages(server, channelName, modifiedSince, deadline);
+		}
+		CompletableFuture<ChatFetchResult> first = hedgeAttempt(server, channelName, modifiedSince, deadline);
+		try {
+			// Whatever comes in time, including a failure, is left to the caller.
+			return first.get(hedgeAfter, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			hedges.incrementAndGet();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+		CompletableFuture<ChatFetchResult> winner = new CompletableFuture<ChatFetchResult>();
+		AtomicInteger pending = new AtomicInteger(2);
+		first.whenComplete((result, error) -> completeHedge(winner, pending, result, error));
+		String hedgeServer = otherServer(server);
+		CompletableFuture<ChatFetchResult> second = hedgeAttempt(null == hedgeServer ? server : hedgeServer,
+				channelName, modifiedSince, deadline);
+		second.whenComplete((result, error) -> {
+			if (completeHedge(winner, pending, result, error)) {
+				hedgeWins.incrementAndGet();
+			}
+		});
+		try {
+			return winner.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private CompletableFuture<ChatFetchResult> hedgeAttempt(String server, String channelName, String modifiedSince,
+			Deadline deadline) {
+		CompletableFuture<ChatFetchResult> attempt = new CompletableFuture<ChatFetchResult>();
+		hedgeExecutor.execute(() -> {
+			try {
+				attempt.complete(requestChatMessages(server, channelName, modifiedSince, deadline));
+			} catch (Exception e) {
+				attempt.completeExceptionally(e);
+			}
+		});
+		return attempt;
+	}
+
+	// A response without a server error wins at once. A failure or a server
+	// error is only passed on if the other attempt does no better.
+	private static boolean completeHedge(CompletableFuture<ChatFetchResult> winner, AtomicInteger pending,
+			ChatFetchResult result, Throwable error) {
+		boolean last = pending.decrementAndGet() == 0;
+		if (null == error && result.responseCode < 500) {
+			return winner.complete(result);
+		} else if (last) {
+			return null == error ? winner.complete(result) : winner.completeExceptionally(error);
+		}
+		return false;
+	}
+
+	private static Exception unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof Exception) {
+			return (Exception) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return e;
+	}
+
+	private ChatFetchResult requestChatMessages(String server, String channelName, String modifiedSince,
+			Deadline deadline) throws KeyManagementException, KeyStoreException, CertificateException,
+			NoSuchAlgorithmException, IOException {
+		long start = System.nanoTime();
+		HttpURLConnection connection = openChatGet(server, channelName, modifiedSince, deadline);
+		Deadline.Guard guard = deadline.guard(connection);
+		try {
+			return readChatMessages(connection, server, channelName, deadline, start);
+		} catch (IOException e) {
+			if (deadline.isExpired() && !(e instanceof SocketTimeoutException)) {
+				// Disconnected by the guard.
+				SocketTimeoutException timeout = new SocketTimeoutException("Deadline exceeded");
+				timeout.initCause(e);
+				throw timeout;
+			}
+			throw e;
+		} finally {
+			guard.close();
+		}
+	}
 
-		int responseCode = connection.getResponseCode();
+	private ChatFetchResult readChatMessages(HttpURLConnection connection, String server, String channelName,
+			Deadline deadline, long start) throws IOException {
+
+		List<ChatMessage> messages = null;
+		List<String> plainMessages = null;
+		String lastModified = null;
+		String notification = "";
+		ServerDiagnostics.Entry error = null;
+		int responseCode = execute(connection, server, null, deadline);
 		if (responseCode == 204) {
-			newMessages = null;
+			messages = null;
 		} else if (responseCode >= 200 && responseCode < 300) {
-			if (dataProvider.getServerVersion() >= 5) {
-				latestDataFromServerIsFrom = connection.getHeaderField("Last-Modified");
-			}
-			String input;
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+			lastModified = connection.getHeaderField("Last-Modified");
 			if (dataProvider.getServerVersion() >= 3) {
-				String totalInput = "";
-				while ((input = in.readLine()) != null) {
-					totalInput += input;
+				// Large histories are decoded in parallel, see ChatMessageDecoder.
+				byte[] body;
+				try (InputStream in = connection.getInputStream()) {
+					body = in.readAllBytes();
 				}
-				JSONArray jsonArray = new JSONArray(totalInput);
-				if (jsonArray.length() > 0) {
-					newMessages = new ArrayList<ChatMessage>();
-					for (int index = 0; index < jsonArray.length(); index++) {
-						JSONObject object = jsonArray.getJSONObject(index);
-						ChatMessage msg = ChatMessage.from(object);
-						newMessages.add(msg);
-					}
-					Collections.sort(newMessages, new Comparator<ChatMessage>() {
-						@Override
-						public int compare(ChatMessage lhs, ChatMessage rhs) {
-							return lhs.sent.compareTo(rhs.sent);
-						}
-					});
+				TrafficRecorder recorder = trafficRecorder;
+				if (null != recorder) {
+					recorder.recordResponseBody(body);
+				}
+				List<ChatMessage> decoded = ChatMessageDecoder.decode(body);
+				if (!decoded.isEmpty()) {
+					messages = Collections.unmodifiableList(decoded);
 				}
 			} else { // Server not yet supports JSON.
-				plainStringMessages = new ArrayList<String>();
+				String input;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+				plainMessages = new ArrayList<String>();
 				while ((input = in.readLine()) != null) {
-					plainStringMessages.add(input);
-				}
-			}
-			in.close();
-			serverNotification = "";
-		} else {
-			newMessages = null;
-			plainStringMessages = null;
-			InputStream in = connection.getInputStream();
-			if (null != in) {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-				String inputLine;
-				while ((inputLine = reader.readLine()) != null) {
-					serverNotification += " " + inputLine;
+					plainMessages.add(input);
 				}
 				in.close();
 			}
+		} else {
+			error = diagnostics.record(connection, responseCode);
+			notification = " " + error.message;
 		}
-		return responseCode;
+		if (responseCode < 500) {
+			fetchLatencies.computeIfAbsent(server, key -> new LatencyHistogram(LATENCY_WINDOW))
+					.record(System.nanoTime() - start);
+		}
+		return new ChatFetchResult(channelName, responseCode, messages, plainMessages, lastModified, notification,
+				error);
 	}
 
 	public synchronized int postChatMessage(String message, String channelName) throws KeyManagementException, KeyStoreException, CertificateException,
 			NoSuchAlgorithmException, IOException {
-		String addr = dataProvider.getServer();
-		if (!addr.endsWith("/")) {
-			addr += "/";
-		}
-		addr += CHAT;
-		URL url = new URL(addr);
+		return postChatMessage(message, channelName, dataProvider.getNick(), System.currentTimeMillis());
+	}
+
+	/**
+	 * Posts a message with the given nick and sent time, e.g. when replaying
+	 * messages. The time is also what the server echoes back as sent, so it
+	 * identifies the message together with the nick and the text.
+	 */
+	public synchronized int postChatMessage(String message, String channelName, String nick, long sentMillis)
+			throws KeyManagementException, KeyStoreException, CertificateException, NoSuchAlgorithmException,
+			IOException {
+		return postChatMessage(message, channelName, nick, sentMillis, Deadline.NONE);
+	}
+
+	/**
+	 * Posts a message, failing with a SocketTimeoutException if the server has
+	 * not answered by the deadline. The message may still have been posted then.
+	 */
+	public synchronized int postChatMessage(String message, String channelName, String nick, long sentMillis,
+			Deadline deadline) throws KeyManagementException, KeyStoreException, CertificateException,
+			NoSuchAlgorithmException, IOException {
+		String server = selectServer();
+		URL url = endpointUrl(server, CHAT);
 
 		String auth = dataProvider.getUsername() + ":" + dataProvider.getPassword();
 
-		HttpURLConnection connection = createTrustingConnectionDebug(url);
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, deadline);
+		Deadline.Guard guard = deadline.guard(connection);
+		try {
+			return postChatMessage(connection, server, auth, message, channelName, nick, sentMillis, deadline);
+		} catch (IOException e) {
+			if (deadline.isExpired() && !(e instanceof SocketTimeoutException)) {
+				SocketTimeoutException timeout = new SocketTimeoutException("Deadline exceeded");
+				timeout.initCause(e);
+				throw timeout;
+			}
+			throw e;
+		} finally {
+			guard.close();
+		}
+	}
+
+	private int postChatMessage(HttpURLConnection connection, String server, String auth, String message,
+			String channelName, String nick, long sentMillis, Deadline deadline) throws IOException {
 
-		byte[] msgBytes;
-		if (dataProvider.getServerVersion() >= 3) {
-			JSONObject msg = new JSONObject();
-			msg.put("user", dataProvider.getNick());
-			msg.put("message", message);
-			if (channelName != null) {
-				msg.put("channelName", channelName);
+		int responseCode;
+		JsonBodyWriter body = JsonBodyWriter.acquire();
+		try {
+			if (dataProvider.getServerVersion() >= 3) {
+				body.beginObject()
+					.field("user", nick)
+					.field("message", message)
+					.field("channelName", channelName != null ? channelName : "null")
+					.timestampField("sent", sentMillis)
+					.endObject();
+				connection.setRequestProperty("Content-Type", "application/json");
 			} else {
-				msg.put("channelName", "null");
+				body.text(message);
+				connection.setRequestProperty("Content-Type", "text/plain");
 			}
-
-			ZonedDateTime now = ZonedDateTime.now(ZoneId.of("UTC"));
-			String dateText = now.format(jsonDateFormatter);
-			msg.put("sent", dateText);
-			msgBytes = msg.toString().getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Type", "application/json");
-		} else {
-			msgBytes = message.getBytes("UTF-8");
-			connection.setRequestProperty("Content-Type", "text/plain");
+			connection.setRequestMethod("POST");
+			byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
+			String authHeaderValue = "Basic " + new String(encodedAuth);
+			connection.setRequestProperty("Authorization", authHeaderValue);
+
+			responseCode = execute(connection, server, body, deadline);
+		} finally {
+			body.release();
 		}
-		connection.setRequestMethod("POST");
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setRequestProperty("Content-Length", String.valueOf(msgBytes.length));
-		byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
-		String authHeaderValue = "Basic " + new String(encodedAuth);
-		connection.setRequestProperty("Authorization", authHeaderValue);
-
-		OutputStream writer = connection.getOutputStream();
-		writer.write(msgBytes);
-		writer.close();
 
-		int responseCode = connection.getResponseCode();
 		if (responseCode >= 200 && responseCode < 300) {
 			// Successfully posted.
-			serverNotification = "";
+			lastError = null;
 		} else {
-			// Sometimes -- no idea why! -- connection.getInputStream() throws IOExeption
-			// when conducting parallell chat post tests. This is no fault of the server,
-			// so as a temporary fix catch exceptions here and put an indication about this
-			// in the serverNotification. This way the tests do not fail to indicate server error
-			// because this is not a server error.
-			try {
-				InputStream in = connection.getErrorStream();
-				if (null != in) {
-					BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-					String inputLine;
-					while ((inputLine = reader.readLine()) != null) {
-						serverNotification += " " + inputLine;
-					}
-					in.close();
-				}	
-			} catch (IOException e) {
-				serverNotification = "Could not read server error message from connection input stream " + e.getMessage();
-			}
+			// The error body is read from the error stream, the input stream throws
+			// an IOException for error responses. Failing to read it is recorded in
+			// the entry, not thrown, as the response code already tells the outcome.
+			lastError = diagnostics.record(connection, responseCode);
 		}
 		return responseCode;
 	}
 
 	public synchronized int registerUser() throws KeyManagementException, KeyStoreException, CertificateException,
 			NoSuchAlgorithmException, IOException {
-		String addr = dataProvider.getServer();
-		if (!addr.endsWith("/")) {
-			addr += "/";
-		}
-		addr += REGISTRATION;
-		URL url = new URL(addr);
+		String server = selectServer();
+		URL url = endpointUrl(server, REGISTRATION);
 
-		HttpURLConnection connection = createTrustingConnectionDebug(url);
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, Deadline.NONE);
 
-		byte[] msgBytes;
-		if (dataProvider.getServerVersion() >= 3) {
-			JSONObject registrationMsg = new JSONObject();
-			registrationMsg.put("username", dataProvider.getUsername());
-			registrationMsg.put("password", dataProvider.getPassword());
-			registrationMsg.put("email", dataProvider.getEmail());
-			msgBytes = registrationMsg.toString().getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Type", "application/json");
-		} else {
-			String registrationMsg = dataProvider.getUsername() + ":" + dataProvider.getPassword();
-			msgBytes = registrationMsg.getBytes("UTF-8");
-			connection.setRequestProperty("Content-Type", "text/plain");
+		int responseCode;
+		JsonBodyWriter body = JsonBodyWriter.acquire();
+		try {
+			if (dataProvider.getServerVersion() >= 3) {
+				body.beginObject()
+					.field("username", dataProvider.getUsername())
+					.field("password", dataProvider.getPassword())
+					.field("email", dataProvider.getEmail())
+					.endObject();
+				connection.setRequestProperty("Content-Type", "application/json");
+			} else {
+				body.text(dataProvider.getUsername() + ":" + dataProvider.getPassword());
+				connection.setRequestProperty("Content-Type", "text/plain");
+			}
+			connection.setRequestMethod("POST");
+			responseCode = execute(connection, server, body, Deadline.NONE);
+		} finally {
+			body.release();
 		}
 
-		connection.setRequestMethod("POST");
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setRequestProperty("Content-Length", String.valueOf(msgBytes.length));
-
-		OutputStream writer = connection.getOutputStream();
-		writer.write(msgBytes);
-		writer.close();
-
-		int responseCode = connection.getResponseCode();
 		if (responseCode >= 200 && responseCode < 300) {
 			// Successfully registered.
-			serverNotification = "";
+			lastError = null;
 		} else {
-			InputStream in = connection.getInputStream();
+			lastError = diagnostics.record(connection, responseCode);
+		}
+		return responseCode;
+	}
+
+	/**
+	 * Uses a server pool instead of the single server from the data provider.
+	 * Requests then go to the fastest healthy server of the pool.
+	 *
+	 * @param pool The pool, or null to use the data provider's server.
+	 */
+	public void setServerPool(ServerPool pool) {
+		serverPool = pool;
+		if (null != pool) {
+			pool.startProbing(this::probe);
+		}
+	}
+
+	private String selectServer() {
+		ServerPool pool = serverPool;
+		return null != pool ? pool.select() : dataProvider.getServer();
+	}
+
+	private static URL endpointUrl(String server, String path) throws IOException {
+		if (!server.endsWith("/")) {
+			server += "/";
+		}
+		return new URL(server + path);
+	}
+
+	// Sends the request and gets the response code. The time taken, or the
+	// failure, is recorded for the server's circuit breaker and latency
+	// percentiles, and for the server pool if one is in use. While the server's
+	// circuit is open, fails at once without sending. Running out of the
+	// caller's deadline is not held against the server.
+	private int execute(HttpURLConnection connection, String server, JsonBodyWriter body, Deadline deadline)
+			throws IOException {
+		ServerPool pool = serverPool;
+		CircuitBreaker breaker = breaker(server);
+		deadline.check();
+		breaker.acquire();
+		TrafficRecorder recorder = trafficRecorder;
+		// Request headers can only be read before the request is sent.
+		Map<String, List<String>> requestHeaders = null == recorder ? null : connection.getRequestProperties();
+		long start = System.nanoTime();
+		lastRequestNanos = start;
+		try {
+			if (null != body) {
+				writeBody(connection, body);
+			}
+			int responseCode = connection.getResponseCode();
+			long elapsed = System.nanoTime() - start;
+			if (null != recorder) {
+				record(recorder, connection, server, body, requestHeaders, start, responseCode);
+			}
+			if (responseCode >= 500) {
+				breaker.recordFailure();
+			} else {
+				breaker.recordSuccess();
+				latency(server).record(elapsed);
+			}
+			if (null != pool) {
+				if (responseCode >= 500) {
+					pool.recordFailure(server);
+				} else {
+					pool.recordSuccess(server, elapsed);
+				}
+			}
+			return responseCode;
+		} catch (IOException e) {
+			if (null != recorder) {
+				record(recorder, connection, server, body, requestHeaders, start, -1);
+			}
+			if (deadline.isExpired()) {
+				breaker.recordAbandoned();
+				throw e;
+			}
+			diagnostics.record(connection.getRequestMethod() + " " + connection.getURL(), -1, e.toString());
+			if (e instanceof SocketTimeoutException) {
+				// The response took at least this long. Counting it keeps the
+				// adaptive timeout from staying below a server that has slowed down.
+				latency(server).record(System.nanoTime() - start);
+			}
+			breaker.recordFailure();
+			if (null != pool) {
+				pool.recordFailure(server);
+			}
+			throw e;
+		} catch (RuntimeException | Error e) {
+			// Not the server's fault either, but a trial must not stay unsettled.
+			breaker.recordAbandoned();
+			throw e;
+		}
+	}
+
+	private static void record(TrafficRecorder recorder, HttpURLConnection connection, String server,
+			JsonBodyWriter body, Map<String, List<String>> requestHeaders, long start, int responseCode)
+			throws IOException {
+		byte[] requestBody = null;
+		// Registration and user info bodies carry the password, only their size is recorded.
+		String path = connection.getURL().getPath();
+		if (null != body && recorder.isRecordingBodies() && !path.endsWith("/" + REGISTRATION)
+				&& !path.endsWith("/" + UPDATE)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length());
+			body.writeTo(bytes);
+			requestBody = bytes.toByteArray();
+		}
+		recorder.recordExchange(start, connection.getRequestMethod(), server, path, requestHeaders, requestBody, null == body ? 0 : body.length(), responseCode,
+				responseCode < 0 ? null : connection.getHeaderFields());
+	}
+
+	/**
+	 * Records the traffic of all clients in the process, or stops recording if
+	 * null. The caller closes the recorder.
+	 */
+	static void setTrafficRecorder(TrafficRecorder recorder) {
+		trafficRecorder = recorder;
+	}
+
+	/**
+	 * Sends a recorded request again, to this client's server instead of the
+	 * recorded one, for TrafficReplay. Sends the recorded body if there is one,
+	 * otherwise a message of the recorded size. The response is read and
+	 * dropped.
+	 *
+	 * @return The response code.
+	 */
+	int replay(TrafficRecorder.Exchange exchange) throws KeyManagementException, KeyStoreException,
+			CertificateException, NoSuchAlgorithmException, IOException {
+		String server = selectServer();
+		URL url = new URL(endpointUrl(server, ""), exchange.path);
+		HttpURLConnection connection = createTrustingConnectionDebug(url, server, Deadline.NONE);
+		connection.setUseCaches(false);
+		connection.setRequestMethod(exchange.method);
+		for (Map.Entry<String, String> header : exchange.requestHeaders.entrySet()) {
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+		String auth = dataProvider.getUsername() + ":" + dataProvider.getPassword();
+		byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
+		connection.setRequestProperty("Authorization", "Basic " + new String(encodedAuth));
+
+		JsonBodyWriter body = null;
+		if (null != exchange.requestBody) {
+			body = JsonBodyWriter.acquire().bytes(exchange.requestBody);
+		} else if (exchange.requestBodySize > 0) {
+			// Padded to about the recorded size.
+			int padding = Math.max(1, exchange.requestBodySize - 80);
+			body = JsonBodyWriter.acquire();
+			body.beginObject().field("user", "replay").field("message", "x".repeat(padding))
+					.timestampField("sent", System.currentTimeMillis()).endObject();
+		}
+		try {
+			int responseCode = execute(connection, server, body, Deadline.NONE);
+			InputStream in = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
 			if (null != in) {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-				String inputLine;
-				while ((inputLine = reader.readLine()) != null) {
-					serverNotification += " " + inputLine;
+				try (InputStream response = in) {
+					response.transferTo(OutputStream.nullOutputStream());
 				}
-				in.close();
+			}
+			return responseCode;
+		} finally {
+			if (null != body) {
+				body.release();
 			}
 		}
-		return responseCode;
+	}
+
+	private static int connectTimeout(String server) {
+		return adaptiveTimeout(server, CONNECT_TIMEOUT_FLOOR, CONNECT_TIMEOUT);
+	}
+
+	private static int requestTimeout(String server) {
+		return adaptiveTimeout(server, REQUEST_TIMEOUT_FLOOR, REQUEST_TIMEOUT);
+	}
+
+	private static int adaptiveTimeout(String server, int floor, int ceiling) {
+		LatencyHistogram latency = latency(server);
+		if (latency.getCount() < TIMEOUT_MIN_SAMPLES) {
+			return ceiling;
+		}
+		long millis = TIMEOUT_P99_FACTOR * TimeUnit.NANOSECONDS.toMillis(latency.percentile(0.99));
+		return (int) Math.max(floor, Math.min(ceiling, millis));
+	}
+
+	private static CircuitBreaker breaker(String server) {
+		return breakers.computeIfAbsent(server, CircuitBreaker::new);
+	}
+
+	private static LatencyHistogram latency(String server) {
+		return latencies.computeIfAbsent(server, key -> new LatencyHistogram(LATENCY_WINDOW));
+	}
+
+	/**
+	 * @return One line per server used in the process: circuit state, median and
+	 *         95th percentile response time, and the retry and hedge counts.
+	 */
+	static String describeServerHealth() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+			LatencyHistogram latency = latency(entry.getKey());
+			builder.append(entry.getKey()).append(' ').append(entry.getValue().getState())
+					.append(String.format(" p50 %.1f ms p95 %.1f ms", latency.percentile(0.5) / 1e6,
+							latency.percentile(0.95) / 1e6))
+					.append(" timeouts ").append(connectTimeout(entry.getKey())).append('/')
+					.append(requestTimeout(entry.getKey())).append(" ms")
+					.append('\n');
+		}
+		builder.append("Retries ").append(retries.get()).append(", hedged requests ").append(hedges.get())
+				.append(" (").append(hedgeWins.get()).append(" faster)\n");
+		return builder.toString();
+	}
+
+	/**
+	 * Gets a connection to the server ready before it is needed: resolves the
+	 * host name, sets up TLS and connects with a HEAD request, after which the
+	 * connection waits in the keep-alive cache for the first real request. Runs
+	 * in the background and ignores failures, the real request reports them.
+	 */
+	public void prewarm() {
+		String server = selectServer();
+		warmer.execute(() -> warm(server));
+	}
+
+	/**
+	 * Starts or stops keeping the connection warm while the client is idle. Not
+	 * needed with a server pool, as the pool probes its servers anyway.
+	 */
+	public synchronized void keepWarm(boolean on) {
+		if (null != keepWarmTask) {
+			keepWarmTask.cancel(false);
+			keepWarmTask = null;
+		}
+		if (on) {
+			keepWarmTask = warmer.scheduleWithFixedDelay(() -> {
+				long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRequestNanos);
+				if (null == serverPool && idleMillis >= KEEP_WARM_INTERVAL && idleMillis < KEEP_WARM_MAX_IDLE) {
+					warm(selectServer());
+				}
+			}, KEEP_WARM_INTERVAL, KEEP_WARM_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void warm(String server) {
+		try {
+			InetAddress.getAllByName(endpointUrl(server, "").getHost());
+			probe(server);
+		} catch (Exception e) {
+			// The next request will fail too and tell why.
+		}
+	}
+
+	// Health check for the server pool: any HTTP response to a HEAD request
+	// means the server is up. Returns the time taken in nanoseconds.
+	private long probe(String server) throws Exception {
+		HttpURLConnection connection = createTrustingConnectionDebug(endpointUrl(server, ""), server, Deadline.NONE);
+		connection.setRequestMethod("HEAD");
+		long start = System.nanoTime();
+		connection.getResponseCode();
+		long elapsed = System.nanoTime() - start;
+		InputStream error = connection.getErrorStream();
+		if (null != error) {
+			error.readAllBytes();
+			error.close();
+		}
+		return elapsed;
+	}
+
+	// Writes the serialized request body straight from the pooled buffer. Fixed
+	// length streaming mode also keeps HttpURLConnection from buffering the body
+	// into yet another copy before sending it.
+	private void writeBody(HttpURLConnection connection, JsonBodyWriter body) throws IOException {
+		connection.setDoOutput(true);
+		connection.setDoInput(true);
+		connection.setFixedLengthStreamingMode(body.length());
+		OutputStream writer = connection.getOutputStream();
+		body.writeTo(writer);
+		writer.close();
 	}
 
 	// For accepting self signed certificates. Not to be used in production
 	// software!
 
-	private HttpURLConnection createTrustingConnectionDebug(URL url) throws KeyStoreException, CertificateException,
+	// The TLS setup is done on the first HTTPS request, not when the client is
+	// created, and then reused. Using the same socket factory also lets
+	// HttpsURLConnection reuse kept alive connections between requests.
+	private synchronized SSLSocketFactory socketFactory() throws KeyStoreException, CertificateException,
 			NoSuchAlgorithmException, FileNotFoundException, KeyManagementException, IOException {
-		if (useHttpsInRequests) {
-			Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(new FileInputStream(certificateFile));
+		if (null == sslSocketFactory) {
+			Certificate certificate;
+			try (FileInputStream certificateStream = new FileInputStream(certificateFile)) {
+				certificate = CertificateFactory.getInstance("X.509").generateCertificate(certificateStream);
+			}
 			KeyStore keyStore = KeyStore.getInstance("JKS");
 			keyStore.load(null, null);
 			keyStore.setCertificateEntry("localhost", certificate);
@@ -458,16 +1176,25 @@ public class ChatHttpClient {
 	
 			SSLContext sslContext = SSLContext.getInstance("TLS");
 			sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
-	
-			HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-			connection.setSSLSocketFactory(sslContext.getSocketFactory());
-			// All requests use these common timeouts.
-			connection.setConnectTimeout(CONNECT_TIMEOUT);
-			connection.setReadTimeout(REQUEST_TIMEOUT);
-			return connection;
+			sslSocketFactory = sslContext.getSocketFactory();
+		}
+		return sslSocketFactory;
+	}
+
+	private HttpURLConnection createTrustingConnectionDebug(URL url, String server, Deadline deadline)
+			throws KeyStoreException, CertificateException, NoSuchAlgorithmException, FileNotFoundException,
+			KeyManagementException, IOException {
+		HttpURLConnection connection;
+		if (useHttpsInRequests) {
+			HttpsURLConnection httpsConnection = (HttpsURLConnection) url.openConnection();
+			httpsConnection.setSSLSocketFactory(socketFactory());
+			connection = httpsConnection;
 		} else {
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			return connection;
+			connection = (HttpURLConnection) url.openConnection();
 		}
+		// All requests use the server's adaptive timeouts, cut to the deadline.
+		connection.setConnectTimeout(deadline.timeoutMillis(connectTimeout(server)));
+		connection.setReadTimeout(deadline.timeoutMillis(requestTimeout(server)));
+		return connection;
 	}
 }
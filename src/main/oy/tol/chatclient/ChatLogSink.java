@@ -0,0 +1,292 @@
+package oy.tol.chatclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ChatLogSink writes every message the client receives to a log file, one
+ * NDJSON object per line in the format of the export and tail batch modes, so
+ * a log can also be imported back.
+ * <p>
+ * The receiving threads only add the batch of new messages to a lock-free
+ * queue and never wait for the disk. A writer thread wakes up every
+ * FLUSH_INTERVAL, or sooner when BATCH_MESSAGES are waiting, and writes what
+ * is queued in sequential writes of up to MAX_BATCH_BYTES. The file is
+ * rotated when it grows past the size limit or gets older than the time
+ * limit: it is renamed with the time of rotation appended, and a new file is
+ * started.
+ * <p>
+ * How often the log is forced to disk is set by the sync policy: never, by
+ * leaving it to the operating system; after each batch, so that a batch is
+ * committed with one sync however many messages it has; or at most once per
+ * SYNC_INTERVAL. If the disk cannot keep up and more than MAX_QUEUED messages
+ * are waiting, new ones are dropped and counted rather than slowing down the
+ * client.
+ */
+class ChatLogSink implements AutoCloseable {
+
+	enum SyncPolicy {
+		NONE, BATCH, INTERVAL
+	}
+
+	static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+	private static final long FLUSH_INTERVAL = 200; // ms
+	private static final long SYNC_INTERVAL = 1000; // ms
+	private static final int BATCH_MESSAGES = 4096;
+	private static final int MAX_BATCH_BYTES = 1024 * 1024;
+	private static final int MAX_QUEUED = 1000000;
+	private static final DateTimeFormatter ROTATED_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	private static class Batch {
+		final String channelKey;
+		final List<ChatMessage> messages;
+
+		Batch(String channelKey, List<ChatMessage> messages) {
+			this.channelKey = channelKey;
+			this.messages = messages;
+		}
+	}
+
+	private final Path file;
+	private final SyncPolicy syncPolicy;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+
+	private final ConcurrentLinkedQueue<Batch> queue = new ConcurrentLinkedQueue<Batch>();
+	// Messages in the queue, and since the writer was last woken up.
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong sinceWakeup = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	// Used by the writer thread only.
+	private FileOutputStream out = null;
+	private long fileBytes = 0;
+	private long openedAt = 0;
+	private long syncedAt = 0;
+	private boolean unsynced = false;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 * 1024);
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong rotations = new AtomicLong();
+	private volatile String lastError = null;
+
+	ChatLogSink(Path file, SyncPolicy syncPolicy) {
+		this(file, syncPolicy, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Starts the writer thread. The file is appended to if it exists.
+	 *
+	 * @param maxBytes     Size after which the file is rotated.
+	 * @param maxAgeMillis Time after which the file is rotated.
+	 */
+	ChatLogSink(Path file, SyncPolicy syncPolicy, long maxBytes, long maxAgeMillis) {
+		this.file = file;
+		this.syncPolicy = syncPolicy;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		writer = new Thread(this::writeLoop, "chat-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues received messages for writing, without waiting. The list is
+	 * copied, unless it already is immutable, so the caller may reuse it.
+	 *
+	 * @param channelName The channel, null for the main channel.
+	 */
+	void log(String channelName, List<ChatMessage> messages) {
+		if (null == messages || messages.isEmpty() || !running) {
+			return;
+		}
+		int count = messages.size();
+		long current;
+		do {
+			current = queued.get();
+			if (current + count > MAX_QUEUED) {
+				dropped.addAndGet(count);
+				return;
+			}
+		} while (!queued.compareAndSet(current, current + count));
+		queue.offer(new Batch(ChatHttpClient.channelKey(channelName), List.copyOf(messages)));
+		if (sinceWakeup.addAndGet(count) >= BATCH_MESSAGES) {
+			sinceWakeup.set(0);
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writes what is queued, syncs it unless the policy is NONE, and stops the
+	 * writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		String error = lastError;
+		if (null != error) {
+			throw new IOException(error);
+		}
+	}
+
+	long getWritten() {
+		return written.get();
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	String describe() {
+		String error = lastError;
+		return String.format("Log %s: %d messages in %d writes, %d syncs (%s), %d rotations, %d dropped%s", file,
+				written.get(), writes.get(), syncs.get(), syncPolicy.name().toLowerCase(Locale.ROOT), rotations.get(),
+				dropped.get(), null == error ? "" : ", last error: " + error);
+	}
+
+	private void writeLoop() {
+		while (running || !queue.isEmpty()) {
+			if (queue.isEmpty()) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL));
+			}
+			writeQueued();
+			if (syncPolicy == SyncPolicy.INTERVAL && unsynced
+					&& System.currentTimeMillis() - syncedAt >= SYNC_INTERVAL) {
+				sync();
+			}
+		}
+		if (syncPolicy != SyncPolicy.NONE && unsynced) {
+			sync();
+		}
+		closeFile();
+	}
+
+	// Serializes the queued messages and writes them, a buffer full at a time.
+	// One JSON writer is reset for each line.
+	private void writeQueued() {
+		long count = 0;
+		Batch batch;
+		JsonBodyWriter line = JsonBodyWriter.acquire();
+		try {
+			while ((batch = queue.poll()) != null) {
+				for (ChatMessage message : batch.messages) {
+					line.reset();
+					line.beginObject()
+						.field("channel", batch.channelKey)
+						.field("user", message.getNick())
+						.field("message", message.getMessage())
+						.timestampField("sent", message.sentEpochMillis())
+						.endObject();
+					line.writeTo(buffer);
+					buffer.write('\n');
+				}
+				count += batch.messages.size();
+				if (buffer.size() >= MAX_BATCH_BYTES) {
+					write(count);
+					count = 0;
+				}
+			}
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream.
+		} finally {
+			line.release();
+		}
+		if (count > 0) {
+			write(count);
+		}
+	}
+
+	private void write(long count) {
+		queued.addAndGet(-count);
+		try {
+			if (null == out || fileBytes >= maxBytes || System.currentTimeMillis() - openedAt >= maxAgeMillis) {
+				rotate();
+			}
+			buffer.writeTo(out);
+			fileBytes += buffer.size();
+			unsynced = true;
+			writes.incrementAndGet();
+			written.addAndGet(count);
+			if (syncPolicy == SyncPolicy.BATCH) {
+				sync();
+			}
+		} catch (IOException e) {
+			// The file is opened again for the next batch.
+			lastError = e.getMessage();
+			dropped.addAndGet(count);
+			closeFile();
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	// Opens the file, first renaming a full or old one out of the way.
+	private void rotate() throws IOException {
+		boolean wasOpen = null != out;
+		if (wasOpen) {
+			if (syncPolicy != SyncPolicy.NONE && unsynced) {
+				sync();
+			}
+			closeFile();
+		}
+		if (Files.exists(file) && (wasOpen || Files.size(file) >= maxBytes)) {
+			Path rotated = file.resolveSibling(file.getFileName() + "." + LocalDateTime.now().format(ROTATED_SUFFIX));
+			for (int index = 1; Files.exists(rotated); index++) {
+				rotated = file.resolveSibling(
+						file.getFileName() + "." + LocalDateTime.now().format(ROTATED_SUFFIX) + "-" + index);
+			}
+			Files.move(file, rotated);
+			rotations.incrementAndGet();
+		}
+		out = new FileOutputStream(file.toFile(), true);
+		fileBytes = Files.size(file);
+		openedAt = System.currentTimeMillis();
+	}
+
+	private void sync() {
+		if (null == out) {
+			return;
+		}
+		try {
+			out.getChannel().force(false);
+			syncs.incrementAndGet();
+		} catch (IOException e) {
+			lastError = e.getMessage();
+		}
+		syncedAt = System.currentTimeMillis();
+		unsynced = false;
+	}
+
+	private void closeFile() {
+		if (null != out) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				lastError = e.getMessage();
+			}
+			out = null;
+		}
+	}
+}
@@ -1,40 +1,255 @@
 package oy.tol.chatclient;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
-
+/**
+ * A chat message. Messages decoded by ChatMessageDecoder are lazy: they keep
+ * a copy of the bytes of the nick and the text from the response and decode
+ * them only when first asked for, and the sent time is converted to a
+ * LocalDateTime only when asked for. Only the sent instant, the sort key, is
+ * parsed up front. Messages deduplicated, filtered out or never shown so cost
+ * little, and do not keep the whole response alive. The bytes are let go once
+ * both strings have been decoded.
+ * <p>
+ * A message posted by the user is shown before the server has it, as a
+ * pending message, until the server accepts it.
+ */
 public class ChatMessage {
-	public LocalDateTime sent;
-	public String nick;
-	public String message;
+	// Orders messages by the time they were sent.
+	public static final Comparator<ChatMessage> BY_SENT = new Comparator<ChatMessage>() {
+		@Override
+		public int compare(ChatMessage lhs, ChatMessage rhs) {
+			int result = Long.compare(lhs.sentSeconds, rhs.sentSeconds);
+			return result != 0 ? result : Integer.compare(lhs.sentNanos, rhs.sentNanos);
+		}
+	};
+
+	private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+	private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy.MM.dd hh:mm:ss");
+
+	// The sent instant, always known.
+	private final long sentSeconds;
+	private final int sentNanos;
+
+	// Null until decoded.
+	private LocalDateTime sent;
+	private String nick;
+	private String message;
+
+	// The nick and the text as quoted JSON strings from the response, and the
+	// offsets of their contents without the quotes. Null when both are decoded.
+	private byte[] source;
+	// Length of the copied bytes, 0 if the message was made from strings.
+	private final int sourceLength;
+	private final int nickStart;
+	private final int nickEnd;
+	private final int messageStart;
+	private final int messageEnd;
+
+	// True while a message posted by the user is not yet accepted by the server.
+	private volatile boolean pending = false;
+
+	private ChatMessage(String nick, String message, LocalDateTime sent, Instant instant) {
+		this.nick = nick;
+		this.message = message;
+		this.sent = sent;
+		sentSeconds = instant.getEpochSecond();
+		sentNanos = instant.getNano();
+		nickStart = nickEnd = messageStart = messageEnd = sourceLength = 0;
+	}
+
+	/**
+	 * A lazy message, see the class description. The strings are copied from
+	 * the response with their quotes, which decoding escapes needs.
+	 */
+	ChatMessage(byte[] response, int nickStart, int nickEnd, int messageStart, int messageEnd, Instant sent) {
+		int nickLength = nickEnd - nickStart;
+		int messageLength = messageEnd - messageStart;
+		source = new byte[nickLength + messageLength + 4];
+		System.arraycopy(response, nickStart - 1, source, 0, nickLength + 2);
+		System.arraycopy(response, messageStart - 1, source, nickLength + 2, messageLength + 2);
+		sourceLength = source.length;
+		this.nickStart = 1;
+		this.nickEnd = 1 + nickLength;
+		this.messageStart = nickLength + 3;
+		this.messageEnd = nickLength + 3 + messageLength;
+		sentSeconds = sent.getEpochSecond();
+		sentNanos = sent.getNano();
+	}
 
 	static public ChatMessage from(JSONObject jsonObject) throws JSONException {
-		ChatMessage message = new ChatMessage();
-		message.nick = jsonObject.getString("user");
+		String nick = jsonObject.getString("user");
 		String dateStr = jsonObject.getString("sent");
 		OffsetDateTime odt = OffsetDateTime.parse(dateStr);
-		message.sent = LocalDateTime.ofInstant(odt.toInstant(), ZoneId.systemDefault());
-		message.message = jsonObject.getString("message");
-		return message;
+		LocalDateTime sent = LocalDateTime.ofInstant(odt.toInstant(), ZoneId.systemDefault());
+		return new ChatMessage(nick, jsonObject.getString("message"), sent, odt.toInstant());
 	}
-	
+
+	/**
+	 * A message posted by the user, pending until confirmed. The sent time is
+	 * the one posted, so the copy from the server has the same fingerprint.
+	 */
+	static ChatMessage pending(String nick, String message, long sentMillis) {
+		Instant instant = Instant.ofEpochMilli(sentMillis);
+		ChatMessage pending = new ChatMessage(nick, message, LocalDateTime.ofInstant(instant, ZoneId.systemDefault()),
+				instant);
+		pending.pending = true;
+		return pending;
+	}
+
+	boolean isPending() {
+		return pending;
+	}
+
+	/**
+	 * Marks the message accepted by the server.
+	 */
+	void confirm() {
+		pending = false;
+	}
+
+	public String getNick() {
+		String value = nick;
+		if (null == value) {
+			value = decodeStrings(true);
+		}
+		return value;
+	}
+
+	public String getMessage() {
+		String value = message;
+		if (null == value) {
+			value = decodeStrings(false);
+		}
+		return value;
+	}
+
+	public LocalDateTime getSent() {
+		LocalDateTime value = sent;
+		if (null == value) {
+			value = LocalDateTime.ofInstant(Instant.ofEpochSecond(sentSeconds, sentNanos), ZoneId.systemDefault());
+			sent = value;
+		}
+		return value;
+	}
+
+	public long sentEpochMillis() {
+		return sentSeconds * 1000 + sentNanos / 1000000;
+	}
+
+	static long toEpochMillis(LocalDateTime time) {
+		return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * @return Length of the nick and the text together, in bytes of the
+	 *         response for a lazy message, decoded or not, so that it does not
+	 *         change. In chars for a message made from strings.
+	 */
+	int textLength() {
+		if (0 != sourceLength) {
+			return nickEnd - nickStart + messageEnd - messageStart;
+		}
+		return nick.length() + message.length();
+	}
+
+	/**
+	 * @return Bytes copied from the response for a lazy message, counted even
+	 *         after they are let go, 0 for a message made from strings.
+	 */
+	int sourceLength() {
+		return sourceLength;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the nick and the text as UTF-8, and the sent time.
+	 * Strings not yet decoded are hashed straight from the response bytes,
+	 * which are the same UTF-8 bytes unless the JSON string has escapes.
+	 */
+	synchronized long fingerprint() {
+		long hash = 0xcbf29ce484222325L;
+		hash = hashText(hash, nick, nickStart, nickEnd);
+		hash = hashText(hash, message, messageStart, messageEnd);
+		hash ^= sentEpochMillis();
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+
 	public String sentAsString() {
 		String str = "";
+		LocalDateTime sent = getSent();
 		LocalDateTime now = LocalDateTime.now();
 		long diff = Math.abs(ChronoUnit.HOURS.between(now, sent));
 		if (diff <= 24) {
-			str += sent.format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+			str += sent.format(timeFormatter);
 		} else {
-			str += sent.format(DateTimeFormatter.ofPattern("yyyy.MM.dd hh:mm:ss"));
+			str += sent.format(dateTimeFormatter);
 		}
 		return str;
 	}
-	
+
+	private synchronized String decodeStrings(boolean wantNick) {
+		if (null == nick) {
+			nick = decode(source, nickStart, nickEnd);
+		}
+		if (null == message && !wantNick) {
+			message = decode(source, messageStart, messageEnd);
+		}
+		if (null != nick && null != message) {
+			source = null;
+		}
+		return wantNick ? nick : message;
+	}
+
+	private static String decode(byte[] source, int start, int end) {
+		for (int index = start; index < end; index++) {
+			if (source[index] == '\\') {
+				// Include the quotes so the tokener reads it as a JSON string.
+				String quoted = new String(source, start - 1, end - start + 2, StandardCharsets.UTF_8);
+				return (String) new JSONTokener(quoted).nextValue();
+			}
+		}
+		return new String(source, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	private long hashText(long hash, String text, int start, int end) {
+		if (null == text && hasNoEscapes(start, end)) {
+			for (int index = start; index < end; index++) {
+				hash ^= source[index] & 0xFF;
+				hash *= 0x100000001b3L;
+			}
+		} else {
+			if (null == text) {
+				text = decode(source, start, end);
+			}
+			for (byte value : text.getBytes(StandardCharsets.UTF_8)) {
+				hash ^= value & 0xFF;
+				hash *= 0x100000001b3L;
+			}
+		}
+		// 0xFF is never in UTF-8, so ("ab", "c") and ("a", "bc") differ.
+		hash ^= 0xFF;
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+
+	private boolean hasNoEscapes(int start, int end) {
+		for (int index = start; index < end; index++) {
+			if (source[index] == '\\') {
+				return false;
+			}
+		}
+		return true;
+	}
 }
@@ -0,0 +1,459 @@
+package oy.tol.chatclient;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * ChatMessageDecoder turns a GET /chat response body, a JSON array of messages,
+ * into messages sorted by sent time. Small bodies are decoded on the calling
+ * thread. A large one, such as the whole history of a busy channel, is split
+ * into chunks at the commas between array elements, and the chunks are
+ * decoded and sorted in parallel on the common ForkJoinPool and merged back
+ * together pairwise, which is a parallel merge sort. Finding the chunk
+ * boundaries is one pass over the bytes tracking strings and nesting, much
+ * cheaper than parsing. Bytes of multi-byte UTF-8 characters are never ASCII,
+ * so the scan can work on the raw UTF-8 bytes.
+ * <p>
+ * The messages are lazy, see ChatMessage: the objects are scanned for the
+ * offsets of the user and message strings, and only the sent time is parsed.
+ * Other fields are skipped. The scans are still strict, so anything that is
+ * not valid JSON, such as trailing commas or content after the array, throws
+ * a JSONException.
+ */
+class ChatMessageDecoder {
+
+	// Bodies smaller than this are not worth splitting.
+	static final int PARALLEL_THRESHOLD_BYTES = 512 * 1024;
+	private static final int MIN_CHUNK_BYTES = 64 * 1024;
+	// Chunks per worker thread, so that a slow chunk does not leave the others idle.
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	// The fields of a message object, in the order their offsets are kept.
+	private static final String[] FIELDS = { "user", "message", "sent" };
+	private static final byte[][] FIELD_BYTES = { FIELDS[0].getBytes(StandardCharsets.US_ASCII),
+			FIELDS[1].getBytes(StandardCharsets.US_ASCII), FIELDS[2].getBytes(StandardCharsets.US_ASCII) };
+	private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	private ChatMessageDecoder() {
+	}
+
+	/**
+	 * @param body A JSON array of messages in UTF-8.
+	 * @return The messages sorted by sent time, equal times in the order of the
+	 *         body.
+	 * @throws org.json.JSONException If the body is not a valid array of messages.
+	 */
+	static List<ChatMessage> decode(byte[] body) {
+		if (body.length >= PARALLEL_THRESHOLD_BYTES && ForkJoinPool.getCommonPoolParallelism() > 1) {
+			return decodeParallel(body, ForkJoinPool.getCommonPoolParallelism());
+		}
+		return decodeSequential(body);
+	}
+
+	static List<ChatMessage> decodeSequential(byte[] body) {
+		int[] bounds = split(body, Integer.MAX_VALUE);
+		if (null == bounds) {
+			// Let JSON report what is wrong with it.
+			new JSONArray(new String(body, StandardCharsets.UTF_8));
+			throw new JSONException("A JSONArray text must end with ']'");
+		}
+		return decodeChunk(body, bounds[0], bounds[1], true);
+	}
+
+	static List<ChatMessage> decodeParallel(byte[] body, int parallelism) {
+		int chunkBytes = Math.max(MIN_CHUNK_BYTES, body.length / (parallelism * CHUNKS_PER_THREAD));
+		int[] bounds = split(body, chunkBytes);
+		if (null == bounds) {
+			return decodeSequential(body);
+		}
+		if (bounds.length <= 2) {
+			return new DecodeTask(body, bounds, 0, bounds.length / 2).compute();
+		}
+		return ForkJoinPool.commonPool().invoke(new DecodeTask(body, bounds, 0, bounds.length / 2));
+	}
+
+	/**
+	 * Finds chunks of about chunkBytes ending at commas between the elements of
+	 * the top level array.
+	 *
+	 * @return Start and end offsets of each chunk, in pairs, or null if the body
+	 *         is not an array.
+	 * @throws JSONException If the brackets do not match or there is something
+	 *                       after the array.
+	 */
+	static int[] split(byte[] body, int chunkBytes) {
+		int position = 0;
+		while (position < body.length && isWhitespace(body[position])) {
+			position++;
+		}
+		if (position == body.length || body[position] != '[') {
+			return null;
+		}
+		int[] bounds = new int[16];
+		int count = 0;
+		int chunkStart = position + 1;
+		int depth = 0;
+		// The opening brackets enclosing the position.
+		byte[] open = new byte[16];
+		boolean inString = false;
+		for (; position < body.length; position++) {
+			byte value = body[position];
+			if (inString) {
+				if (value == '\\') {
+					position++;
+				} else if (value == '"') {
+					inString = false;
+				}
+				continue;
+			}
+			if (value == '"') {
+				inString = true;
+			} else if (value == '{' || value == '[') {
+				if (depth == open.length) {
+					open = Arrays.copyOf(open, depth * 2);
+				}
+				open[depth++] = value;
+			} else if (value == '}' || value == ']') {
+				if (open[--depth] != (value == '}' ? '{' : '[')) {
+					throw new JSONException("Unmatched '" + (char) value + "' at " + position);
+				}
+				if (depth == 0) {
+					break;
+				}
+			} else if (value == ',' && depth == 1 && position - chunkStart >= chunkBytes) {
+				if (count + 2 > bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[count++] = chunkStart;
+				bounds[count++] = position;
+				chunkStart = position + 1;
+			}
+		}
+		if (depth != 0) {
+			return null;
+		}
+		if (skipWhitespace(body, position + 1, body.length) < body.length) {
+			throw new JSONException("Unexpected content after the array at " + (position + 1));
+		}
+		if (count + 2 > bounds.length) {
+			bounds = Arrays.copyOf(bounds, bounds.length + 2);
+		}
+		bounds[count++] = chunkStart;
+		bounds[count++] = position;
+		return Arrays.copyOf(bounds, count);
+	}
+
+	private static boolean isWhitespace(byte value) {
+		return value == ' ' || value == '\t' || value == '\n' || value == '\r';
+	}
+
+	// Decodes the elements between the commas of one chunk, sorted by sent time.
+	// Only the chunk of the whole array may be empty, the array then being empty.
+	private static List<ChatMessage> decodeChunk(byte[] body, int start, int end, boolean whole) {
+		List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		int position = skipWhitespace(body, start, end);
+		if (position == end && !whole) {
+			throw new JSONException("Expected a message at " + position);
+		}
+		while (position < end) {
+			position = skipWhitespace(body, decodeObject(body, position, end, messages), end);
+			if (position < end) {
+				expect(body, position++, ',');
+				position = skipWhitespace(body, position, end);
+				if (position == end) {
+					throw new JSONException("Expected a message at " + position);
+				}
+			}
+		}
+		messages.sort(ChatMessage.BY_SENT);
+		return messages;
+	}
+
+	/**
+	 * Scans one message object for the offsets of its user, message and sent
+	 * strings and adds it to the list as a lazy message.
+	 *
+	 * @return Position after the object.
+	 */
+	private static int decodeObject(byte[] body, int position, int end, List<ChatMessage> messages) {
+		expect(body, position++, '{');
+		// Start and end of the user, message and sent string contents.
+		int[] fields = { -1, -1, -1, -1, -1, -1 };
+		position = skipWhitespace(body, position, end);
+		if (position < end && body[position] == '}') {
+			position++;
+		} else {
+			while (true) {
+				expect(body, position, '"');
+				int keyEnd = stringEnd(body, position + 1, end);
+				int field = field(body, position + 1, keyEnd);
+				position = skipWhitespace(body, keyEnd + 1, end);
+				expect(body, position++, ':');
+				position = skipWhitespace(body, position, end);
+				if (position < end && body[position] == '"') {
+					int valueEnd = stringEnd(body, position + 1, end);
+					if (field >= 0) {
+						fields[2 * field] = position + 1;
+						fields[2 * field + 1] = valueEnd;
+					}
+					position = valueEnd + 1;
+				} else if (field >= 0) {
+					throw new JSONException("JSONObject[\"" + FIELDS[field] + "\"] is not a string.");
+				} else {
+					position = skipValue(body, position, end);
+				}
+				position = skipWhitespace(body, position, end);
+				if (position < end && body[position] == ',') {
+					position = skipWhitespace(body, position + 1, end);
+					continue;
+				}
+				expect(body, position++, '}');
+				break;
+			}
+		}
+		for (int field = 0; field < FIELDS.length; field++) {
+			if (fields[2 * field] < 0) {
+				throw new JSONException("JSONObject[\"" + FIELDS[field] + "\"] not found.");
+			}
+		}
+		Instant sent;
+		try {
+			sent = parseInstant(body, fields[4], fields[5]);
+		} catch (DateTimeParseException e) {
+			throw new JSONException("Invalid sent time: " + e.getMessage());
+		}
+		messages.add(new ChatMessage(body, fields[0], fields[1], fields[2], fields[3], sent));
+		return position;
+	}
+
+	// Index of the key in FIELDS, -1 if it is some other key.
+	private static int field(byte[] body, int start, int end) {
+		for (int field = 0; field < FIELD_BYTES.length; field++) {
+			if (Arrays.equals(body, start, end, FIELD_BYTES[field], 0, FIELD_BYTES[field].length)) {
+				return field;
+			}
+		}
+		return -1;
+	}
+
+	// Position of the closing quote of the string whose contents start at
+	// position. The escapes are checked here, and decoded only when read.
+	private static int stringEnd(byte[] body, int position, int end) {
+		for (; position < end; position++) {
+			byte value = body[position];
+			if (value == '\\') {
+				if (++position == end) {
+					break;
+				}
+				byte escaped = body[position];
+				if (escaped == 'u') {
+					if (position + 4 >= end || !isHex(body, position + 1, 4)) {
+						throw new JSONException("Invalid \\u escape at " + position);
+					}
+					position += 4;
+				} else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+					throw new JSONException("Invalid escape at " + position);
+				}
+			} else if (value == '"') {
+				return position;
+			} else if (value >= 0 && value < 0x20) {
+				throw new JSONException("Control character in string at " + position);
+			}
+		}
+		throw new JSONException("Unterminated string at " + position);
+	}
+
+	private static boolean isHex(byte[] body, int start, int count) {
+		for (int index = start; index < start + count; index++) {
+			byte value = body[index];
+			if (!(value >= '0' && value <= '9' || value >= 'a' && value <= 'f' || value >= 'A' && value <= 'F')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Position after a string, number, literal, object or array value, which
+	// is checked to be valid but not kept.
+	private static int skipValue(byte[] body, int position, int end) {
+		if (position >= end) {
+			throw new JSONException("Expected a value at " + position);
+		}
+		byte value = body[position];
+		if (value == '"') {
+			return stringEnd(body, position + 1, end) + 1;
+		}
+		if (value == '{' || value == '[') {
+			char close = value == '{' ? '}' : ']';
+			position = skipWhitespace(body, position + 1, end);
+			if (position < end && body[position] == close) {
+				return position + 1;
+			}
+			while (true) {
+				if (value == '{') {
+					expect(body, position, '"');
+					position = skipWhitespace(body, stringEnd(body, position + 1, end) + 1, end);
+					expect(body, position++, ':');
+					position = skipWhitespace(body, position, end);
+				}
+				position = skipWhitespace(body, skipValue(body, position, end), end);
+				if (position < end && body[position] == ',') {
+					position = skipWhitespace(body, position + 1, end);
+					continue;
+				}
+				expect(body, position, close);
+				return position + 1;
+			}
+		}
+		int start = position;
+		while (position < end && (Character.isLetterOrDigit(body[position]) || body[position] == '-'
+				|| body[position] == '+' || body[position] == '.')) {
+			position++;
+		}
+		String literal = new String(body, start, position - start, StandardCharsets.US_ASCII);
+		if (!literal.equals("true") && !literal.equals("false") && !literal.equals("null")
+				&& !NUMBER.matcher(literal).matches()) {
+			throw new JSONException("Invalid value at " + start);
+		}
+		return position;
+	}
+
+	private static int skipWhitespace(byte[] body, int position, int end) {
+		while (position < end && isWhitespace(body[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	private static void expect(byte[] body, int position, char expected) {
+		if (position >= body.length || body[position] != expected) {
+			throw new JSONException("Expected '" + expected + "' at " + position);
+		}
+	}
+
+	/**
+	 * Parses an ISO-8601 time with an offset, such as 2021-01-01T12:00:00.000Z,
+	 * from the bytes without creating a string. Forms not handled here, and
+	 * invalid times, go to OffsetDateTime.parse.
+	 */
+	static Instant parseInstant(byte[] body, int start, int end) {
+		int length = end - start;
+		if (length >= 20 && body[start + 4] == '-' && body[start + 7] == '-' && body[start + 10] == 'T'
+				&& body[start + 13] == ':' && body[start + 16] == ':') {
+			int year = digits(body, start, 4);
+			int month = digits(body, start + 5, 2);
+			int day = digits(body, start + 8, 2);
+			int hour = digits(body, start + 11, 2);
+			int minute = digits(body, start + 14, 2);
+			int second = digits(body, start + 17, 2);
+			int position = start + 19;
+			int nanos = 0;
+			boolean valid = true;
+			if (body[position] == '.') {
+				int scale = 100000000;
+				position++;
+				while (position < end && body[position] >= '0' && body[position] <= '9' && scale > 0) {
+					nanos += (body[position++] - '0') * scale;
+					scale /= 10;
+				}
+				valid = scale < 100000000;
+			}
+			// Without an offset ending the text the time is not parsed here.
+			boolean hasOffset = false;
+			int offsetSeconds = 0;
+			if (position == end - 1 && body[position] == 'Z') {
+				hasOffset = true;
+			} else if (position == end - 6 && (body[position] == '+' || body[position] == '-')
+					&& body[position + 3] == ':') {
+				int offsetHours = digits(body, position + 1, 2);
+				int offsetMinutes = digits(body, position + 4, 2);
+				if (offsetHours >= 0 && offsetHours <= 18 && offsetMinutes >= 0 && offsetMinutes < 60) {
+					hasOffset = true;
+					offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (body[position] == '-' ? -1 : 1);
+				}
+			}
+			if (valid && hasOffset && year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31
+					&& hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+				try {
+					long epochDay = LocalDate.of(year, month, day).toEpochDay();
+					long epochSecond = epochDay * 86400 + hour * 3600 + minute * 60 + second - offsetSeconds;
+					return Instant.ofEpochSecond(epochSecond, nanos);
+				} catch (DateTimeException e) {
+					// No such day in the month, OffsetDateTime reports it.
+				}
+			}
+		}
+		return OffsetDateTime.parse(new String(body, start, length, StandardCharsets.UTF_8)).toInstant();
+	}
+
+	// Value of count decimal digits, -1 if there is something else.
+	private static int digits(byte[] body, int start, int count) {
+		int value = 0;
+		for (int index = start; index < start + count; index++) {
+			if (body[index] < '0' || body[index] > '9') {
+				return -1;
+			}
+			value = value * 10 + body[index] - '0';
+		}
+		return value;
+	}
+
+	// Merges two sorted lists, taking from the left one first on equal times.
+	private static List<ChatMessage> merge(List<ChatMessage> left, List<ChatMessage> right) {
+		List<ChatMessage> merged = new ArrayList<ChatMessage>(left.size() + right.size());
+		int leftIndex = 0;
+		int rightIndex = 0;
+		while (leftIndex < left.size() && rightIndex < right.size()) {
+			if (ChatMessage.BY_SENT.compare(right.get(rightIndex), left.get(leftIndex)) < 0) {
+				merged.add(right.get(rightIndex++));
+			} else {
+				merged.add(left.get(leftIndex++));
+			}
+		}
+		merged.addAll(left.subList(leftIndex, left.size()));
+		merged.addAll(right.subList(rightIndex, right.size()));
+		return merged;
+	}
+
+	private static class DecodeTask extends RecursiveTask<List<ChatMessage>> {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] body;
+		private final int[] bounds;
+		// Range of chunks, bounds of chunk n are at 2n and 2n + 1.
+		private final int from;
+		private final int to;
+
+		DecodeTask(byte[] body, int[] bounds, int from, int to) {
+			this.body = body;
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<ChatMessage> compute() {
+			if (to - from == 1) {
+				return decodeChunk(body, bounds[2 * from], bounds[2 * from + 1], bounds.length == 2);
+			}
+			int middle = (from + to) >>> 1;
+			DecodeTask left = new DecodeTask(body, bounds, from, middle);
+			left.fork();
+			List<ChatMessage> right = new DecodeTask(body, bounds, middle, to).compute();
+			return merge(left.join(), right);
+		}
+	}
+}
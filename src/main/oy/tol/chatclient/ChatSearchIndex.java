@@ -0,0 +1,530 @@
+package oy.tol.chatclient;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * ChatSearchIndex is an inverted index over the chat messages the client has
+ * received, kept separately for each channel. Messages are added as they
+ * arrive from the server. Each message gets a running document number, and
+ * each word of the message text and the sender's nick has a posting list of
+ * the document numbers containing it. Messages evicted from the history are
+ * left as empty slots, and their postings are dropped when the documents are
+ * numbered again.
+ * <p>
+ * Query syntax: words separated by spaces, all of which must match. A word
+ * ending with * matches as a prefix, a word starting with @ matches the nick.
+ * from:date and to:date (yyyy-MM-dd or yyyy-MM-ddTHH:mm) limit the time range.
+ * The newest matches are returned first.
+ */
+class ChatSearchIndex {
+
+	private static final char NICK_PREFIX = '@';
+	private static final char WILDCARD = '*';
+
+	private final Map<String, ChannelIndex> channels = new ConcurrentHashMap<String, ChannelIndex>();
+
+	/**
+	 * Adds received messages to the index of the channel. Null channel is the
+	 * main channel.
+	 */
+	void add(String channel, List<ChatMessage> messages) {
+		if (null == messages || messages.isEmpty()) {
+			return;
+		}
+		channels.computeIfAbsent(ChatHttpClient.channelKey(channel), name -> new ChannelIndex()).add(messages);
+	}
+
+	/**
+	 * Searches the channel's messages.
+	 *
+	 * @param channel The channel to search, null for the main channel.
+	 * @param query   The query, see class description for the syntax.
+	 * @param limit   Max number of messages to return.
+	 * @return Matching messages, newest first.
+	 * @throws IllegalArgumentException If the query has an invalid date.
+	 */
+	List<ChatMessage> search(String channel, String query, int limit) {
+		return search(channel, query, limit, message -> true);
+	}
+
+	/**
+	 * Searches the channel's messages, leaving out those not accepted, e.g.
+	 * hidden by the message filter. Those do not count against the limit.
+	 *
+	 * @param accept Tells which matching messages to return.
+	 */
+	List<ChatMessage> search(String channel, String query, int limit, Predicate<ChatMessage> accept) {
+		ChannelIndex index = channels.get(ChatHttpClient.channelKey(channel));
+		if (null == index || limit <= 0) {
+			return Collections.emptyList();
+		}
+		Query parsed = Query.parse(query);
+		return index.search(parsed, limit, accept);
+	}
+
+	/**
+	 * Removes messages from the index of the channel, e.g. when they have been
+	 * evicted from the history. Their postings are dropped later, in bulk.
+	 */
+	void remove(String channel, List<ChatMessage> messages) {
+		ChannelIndex index = channels.get(ChatHttpClient.channelKey(channel));
+		if (null != index && null != messages && !messages.isEmpty()) {
+			index.remove(messages);
+		}
+	}
+
+	void remove(String channel) {
+		channels.remove(ChatHttpClient.channelKey(channel));
+	}
+
+	int size(String channel) {
+		ChannelIndex index = channels.get(ChatHttpClient.channelKey(channel));
+		return null == index ? 0 : index.size();
+	}
+
+	// Splits text into lower case words of letters and digits.
+	static void tokenize(String text, List<String> tokens) {
+		if (null == text) {
+			return;
+		}
+		int start = -1;
+		for (int index = 0; index <= text.length(); index++) {
+			boolean wordChar = index < text.length() && Character.isLetterOrDigit(text.charAt(index));
+			if (wordChar && start < 0) {
+				start = index;
+			} else if (!wordChar && start >= 0) {
+				tokens.add(text.substring(start, index).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+	}
+
+	// Tokens of the message text, and of the nick with the nick prefix.
+	private static void terms(ChatMessage message, List<String> terms) {
+		tokenize(message.getMessage(), terms);
+		int textTerms = terms.size();
+		tokenize(message.getNick(), terms);
+		for (int index = textTerms; index < terms.size(); index++) {
+			terms.set(index, NICK_PREFIX + terms.get(index));
+		}
+	}
+
+	/**
+	 * Growable array of ints. Posting lists are kept in ascending document order,
+	 * since documents are numbered in the order they are added.
+	 */
+	private static class IntList {
+		private int[] items = new int[4];
+		private int size = 0;
+
+		void addIfLast(int value) {
+			if (size > 0 && items[size - 1] == value) {
+				return;
+			}
+			if (size == items.length) {
+				int[] newItems = new int[size * 2];
+				System.arraycopy(items, 0, newItems, 0, size);
+				items = newItems;
+			}
+			items[size++] = value;
+		}
+
+		// Keeps the items of documents still in the index, numbered again.
+		void renumber(ChatMessage[] documents, int[] renumbered) {
+			int kept = 0;
+			for (int index = 0; index < size; index++) {
+				if (null != documents[items[index]]) {
+					items[kept++] = renumbered[items[index]];
+				}
+			}
+			size = kept;
+		}
+
+		// Position of the largest item <= target within [0, last], or -1 if none.
+		int floorPosition(int target, int last) {
+			int low = 0;
+			int high = last;
+			int found = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (items[middle] <= target) {
+					found = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Walks one query clause backwards through its posting lists. A clause for a
+	 * prefix has many lists and matches if any of them does, so the lists are kept
+	 * in a max-heap by their current document. Since the searched document only
+	 * gets smaller, each list is positioned at most once per step it takes.
+	 */
+	private static class Cursor {
+		private final IntList[] lists;
+		private final int[] positions;
+		private final int[] heap;
+		private int heapSize;
+
+		Cursor(IntList[] lists) {
+			this.lists = lists;
+			positions = new int[lists.length];
+			heap = new int[lists.length];
+			for (int index = 0; index < lists.length; index++) {
+				positions[index] = lists[index].size - 1;
+				heap[index] = index;
+			}
+			heapSize = lists.length;
+			for (int index = heapSize / 2 - 1; index >= 0; index--) {
+				siftDown(index);
+			}
+		}
+
+		// Largest matching document <= target, or -1 if none.
+		int floor(int target) {
+			while (heapSize > 0) {
+				int top = heap[0];
+				int document = current(top);
+				if (document <= target) {
+					return document;
+				}
+				int position = lists[top].floorPosition(target, positions[top]);
+				if (position < 0) {
+					heap[0] = heap[--heapSize];
+				} else {
+					positions[top] = position;
+				}
+				siftDown(0);
+			}
+			return -1;
+		}
+
+		private int current(int list) {
+			return lists[list].items[positions[list]];
+		}
+
+		private void siftDown(int index) {
+			while (true) {
+				int largest = index;
+				int left = 2 * index + 1;
+				int right = left + 1;
+				if (left < heapSize && current(heap[left]) > current(heap[largest])) {
+					largest = left;
+				}
+				if (right < heapSize && current(heap[right]) > current(heap[largest])) {
+					largest = right;
+				}
+				if (largest == index) {
+					return;
+				}
+				int swap = heap[index];
+				heap[index] = heap[largest];
+				heap[largest] = swap;
+				index = largest;
+			}
+		}
+	}
+
+	private static class ChannelIndex {
+		// Documents are grouped in blocks with the min and max sent time of each,
+		// so time range queries can skip blocks that cannot match.
+		private static final int BLOCK_SHIFT = 8;
+		// A prefix matching more than 1/16 of the documents is cheaper to check
+		// from the candidate messages than to walk through all its posting lists.
+		private static final int DENSE_PREFIX_SHIFT = 4;
+
+		private final NavigableMap<String, IntList> terms = new TreeMap<String, IntList>();
+		private ChatMessage[] documents = new ChatMessage[64];
+		private long[] sentMillis = new long[64];
+		private long[] blockMin = new long[1];
+		private long[] blockMax = new long[1];
+		private int documentCount = 0;
+		// Documents removed, their slots are null until the documents are numbered again.
+		private int removedCount = 0;
+		// Lowest document not removed, where removing the oldest starts looking.
+		private int firstLive = 0;
+
+		synchronized int size() {
+			return documentCount - removedCount;
+		}
+
+		synchronized void add(List<ChatMessage> messages) {
+			List<String> tokens = new ArrayList<String>();
+			for (ChatMessage message : messages) {
+				if (documentCount == documents.length) {
+					ChatMessage[] newDocuments = new ChatMessage[documentCount * 2];
+					System.arraycopy(documents, 0, newDocuments, 0, documentCount);
+					documents = newDocuments;
+					long[] newSent = new long[documentCount * 2];
+					System.arraycopy(sentMillis, 0, newSent, 0, documentCount);
+					sentMillis = newSent;
+				}
+				int document = documentCount++;
+				long sent = message.sentEpochMillis();
+				documents[document] = message;
+				sentMillis[document] = sent;
+				updateBlock(document, sent);
+
+				tokens.clear();
+				terms(message, tokens);
+				for (String token : tokens) {
+					terms.computeIfAbsent(token, term -> new IntList()).addIfLast(document);
+				}
+			}
+		}
+
+		/**
+		 * Removes the documents of the messages, leaving their slots empty. The
+		 * documents are looked for from both ends, since evicted messages are
+		 * the oldest and removed posts the newest. Once more than half of the
+		 * documents are removed, the rest are numbered again and the postings of
+		 * the removed ones dropped, all in one pass.
+		 */
+		synchronized void remove(List<ChatMessage> messages) {
+			Set<ChatMessage> removing = Collections.newSetFromMap(new IdentityHashMap<ChatMessage, Boolean>());
+			removing.addAll(messages);
+			int low = firstLive;
+			int high = documentCount - 1;
+			while (!removing.isEmpty() && low <= high) {
+				if (null != documents[low] && removing.remove(documents[low])) {
+					removeDocument(low);
+				}
+				low++;
+				if (low <= high && null != documents[high] && removing.remove(documents[high])) {
+					removeDocument(high);
+				}
+				high--;
+			}
+			while (firstLive < documentCount && null == documents[firstLive]) {
+				firstLive++;
+			}
+			if (removedCount > documentCount / 2) {
+				renumber();
+			}
+		}
+
+		private void removeDocument(int document) {
+			documents[document] = null;
+			removedCount++;
+		}
+
+		// Numbers the documents left from zero, in the same order, and drops the
+		// postings of the removed ones.
+		private void renumber() {
+			int[] renumbered = new int[documentCount];
+			int live = 0;
+			for (int document = 0; document < documentCount; document++) {
+				if (null != documents[document]) {
+					renumbered[document] = live++;
+				}
+			}
+			Iterator<IntList> iterator = terms.values().iterator();
+			while (iterator.hasNext()) {
+				IntList postings = iterator.next();
+				postings.renumber(documents, renumbered);
+				if (0 == postings.size) {
+					iterator.remove();
+				}
+			}
+			live = 0;
+			for (int document = 0; document < documentCount; document++) {
+				if (null != documents[document]) {
+					documents[live] = documents[document];
+					sentMillis[live] = sentMillis[document];
+					live++;
+				}
+			}
+			Arrays.fill(documents, live, documentCount, null);
+			documentCount = live;
+			removedCount = 0;
+			firstLive = 0;
+			for (int document = 0; document < documentCount; document++) {
+				updateBlock(document, sentMillis[document]);
+			}
+		}
+
+		private void updateBlock(int document, long sent) {
+			int block = document >> BLOCK_SHIFT;
+			if (block == blockMin.length) {
+				long[] newMin = new long[block * 2];
+				System.arraycopy(blockMin, 0, newMin, 0, block);
+				blockMin = newMin;
+				long[] newMax = new long[block * 2];
+				System.arraycopy(blockMax, 0, newMax, 0, block);
+				blockMax = newMax;
+			}
+			if ((document & ((1 << BLOCK_SHIFT) - 1)) == 0) {
+				blockMin[block] = sent;
+				blockMax[block] = sent;
+			} else {
+				blockMin[block] = Math.min(blockMin[block], sent);
+				blockMax[block] = Math.max(blockMax[block], sent);
+			}
+		}
+
+		synchronized List<ChatMessage> search(Query query, int limit, Predicate<ChatMessage> accept) {
+			List<Cursor> clauses = new ArrayList<Cursor>();
+			for (String term : query.terms) {
+				IntList postings = terms.get(term);
+				if (null == postings) {
+					return Collections.emptyList();
+				}
+				clauses.add(new Cursor(new IntList[] { postings }));
+			}
+			List<String> densePrefixes = new ArrayList<String>();
+			for (String prefix : query.prefixes) {
+				// All terms starting with the prefix sort right after it.
+				Map<String, IntList> matching = terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+				if (matching.isEmpty()) {
+					return Collections.emptyList();
+				}
+				long postingCount = 0;
+				for (IntList postings : matching.values()) {
+					postingCount += postings.size;
+				}
+				if (postingCount > (size() >> DENSE_PREFIX_SHIFT)) {
+					densePrefixes.add(prefix);
+				} else {
+					clauses.add(new Cursor(matching.values().toArray(new IntList[matching.size()])));
+				}
+			}
+
+			// Walk the documents from newest to oldest, jumping straight to the next
+			// document all clauses agree on.
+			List<ChatMessage> results = new ArrayList<ChatMessage>();
+			int candidate = skipBlocks(documentCount - 1, query);
+			while (candidate >= 0 && results.size() < limit) {
+				int next = candidate;
+				for (Cursor clause : clauses) {
+					next = clause.floor(next);
+					if (next < 0) {
+						break;
+					}
+				}
+				if (next < 0) {
+					break;
+				}
+				if (next == candidate) {
+					long sent = sentMillis[candidate];
+					if (null != documents[candidate] && sent >= query.from && sent <= query.to && hasPrefixes(documents[candidate], densePrefixes)
+							&& accept.test(documents[candidate])) {
+						results.add(documents[candidate]);
+					}
+					candidate--;
+				} else {
+					candidate = next;
+				}
+				candidate = skipBlocks(candidate, query);
+			}
+			return results;
+		}
+
+		private static boolean hasPrefixes(ChatMessage message, List<String> prefixes) {
+			if (prefixes.isEmpty()) {
+				return true;
+			}
+			List<String> tokens = new ArrayList<String>();
+			for (String prefix : prefixes) {
+				boolean nick = prefix.charAt(0) == NICK_PREFIX;
+				tokens.clear();
+				tokenize(nick ? message.getNick() : message.getMessage(), tokens);
+				boolean found = false;
+				for (String token : tokens) {
+					if (token.startsWith(nick ? prefix.substring(1) : prefix)) {
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Moves the candidate down past blocks with no messages in the time range.
+		private int skipBlocks(int candidate, Query query) {
+			if (query.from == Long.MIN_VALUE && query.to == Long.MAX_VALUE) {
+				return candidate;
+			}
+			while (candidate >= 0) {
+				int block = candidate >> BLOCK_SHIFT;
+				if (blockMax[block] >= query.from && blockMin[block] <= query.to) {
+					return candidate;
+				}
+				candidate = (block << BLOCK_SHIFT) - 1;
+			}
+			return candidate;
+		}
+	}
+
+	private static class Query {
+		List<String> terms = new ArrayList<String>();
+		List<String> prefixes = new ArrayList<String>();
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+
+		static Query parse(String text) {
+			Query query = new Query();
+			List<String> tokens = new ArrayList<String>();
+			for (String word : text.trim().split("\\s+")) {
+				if (word.isEmpty()) {
+					continue;
+				}
+				String lower = word.toLowerCase(Locale.ROOT);
+				if (lower.startsWith("from:")) {
+					query.from = parseTime(word.substring(5), false);
+					continue;
+				} else if (lower.startsWith("to:")) {
+					query.to = parseTime(word.substring(3), true);
+					continue;
+				}
+				boolean nick = word.charAt(0) == NICK_PREFIX;
+				boolean prefix = word.charAt(word.length() - 1) == WILDCARD;
+				tokens.clear();
+				tokenize(word, tokens);
+				for (int index = 0; index < tokens.size(); index++) {
+					String token = (nick ? NICK_PREFIX + tokens.get(index) : tokens.get(index));
+					if (prefix && index == tokens.size() - 1) {
+						query.prefixes.add(token);
+					} else {
+						query.terms.add(token);
+					}
+				}
+			}
+			return query;
+		}
+
+		private static long parseTime(String text, boolean endOfRange) {
+			try {
+				if (text.length() <= 10) {
+					LocalDate date = LocalDate.parse(text);
+					LocalDateTime time = endOfRange ? date.plusDays(1).atStartOfDay().minusNanos(1) : date.atStartOfDay();
+					return ChatMessage.toEpochMillis(time);
+				}
+				return ChatMessage.toEpochMillis(LocalDateTime.parse(text));
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Invalid date in search: " + text);
+			}
+		}
+	}
+}
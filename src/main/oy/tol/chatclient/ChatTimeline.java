@@ -0,0 +1,255 @@
+package oy.tol.chatclient;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * ChatTimeline keeps the messages of one channel in time order. Batches from
+ * the server are merged in one message at a time into a skip list keyed by the
+ * sent time and an arrival sequence number breaking ties, so merging k
+ * messages costs O(k log n). Responses to If-Modified-Since requests may
+ * repeat messages sent within the same second as the watermark. These are
+ * detected by a fingerprint of the nick, message and sent time kept in a
+ * compact hash set.
+ * <p>
+ * The oldest messages can be evicted to bound the memory used, the timeline
+ * then remembers up to which sent time it is no longer complete.
+ * <p>
+ * Pages of messages are read relative to the position of a message shown
+ * before, so a page costs O(log n + rows) however long the timeline is.
+ */
+class ChatTimeline {
+
+	private final ConcurrentSkipListMap<Key, ChatMessage> messages = new ConcurrentSkipListMap<Key, ChatMessage>();
+	private final LongHashSet fingerprints = new LongHashSet();
+	private long sequence = 0;
+	private long bytes = 0;
+	// Sent time of the newest evicted message, Long.MIN_VALUE if none evicted.
+	private volatile long evictedUpTo;
+
+	ChatTimeline() {
+		this(Long.MIN_VALUE);
+	}
+
+	/**
+	 * @param evictedUpTo Sent time up to which messages of the channel are
+	 *                    known to be missing, Long.MIN_VALUE if none.
+	 */
+	ChatTimeline(long evictedUpTo) {
+		this.evictedUpTo = evictedUpTo;
+	}
+
+	/**
+	 * Merges a batch of messages into the timeline.
+	 *
+	 * @param batch Messages from the server, may be null.
+	 * @return The messages that were not yet in the timeline, in time order.
+	 */
+	synchronized List<ChatMessage> merge(List<ChatMessage> batch) {
+		if (null == batch || batch.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<ChatMessage> added = new ArrayList<ChatMessage>(batch.size());
+		for (ChatMessage message : batch) {
+			if (fingerprints.add(fingerprint(message))) {
+				messages.put(new Key(message.sentEpochMillis(), sequence++), message);
+				bytes += estimateBytes(message);
+				added.add(message);
+			}
+		}
+		if (added.size() > 1) {
+			added.sort(ChatMessage.BY_SENT);
+		}
+		return added;
+	}
+
+	/**
+	 * Removes the message, e.g. a posted one the server did not accept.
+	 *
+	 * @return False if the message is not in the timeline.
+	 */
+	synchronized boolean remove(ChatMessage message) {
+		long sent = message.sentEpochMillis();
+		Map<Key, ChatMessage> sameTime = messages.subMap(new Key(sent, Long.MIN_VALUE), true,
+				new Key(sent, Long.MAX_VALUE), true);
+		for (Map.Entry<Key, ChatMessage> entry : sameTime.entrySet()) {
+			if (entry.getValue() == message) {
+				messages.remove(entry.getKey());
+				fingerprints.remove(fingerprint(message));
+				bytes -= estimateBytes(message);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Messages sent between the times, inclusive, oldest first.
+	 */
+	List<ChatMessage> between(LocalDateTime from, LocalDateTime to) {
+		Key fromKey = new Key(ChatMessage.toEpochMillis(from), Long.MIN_VALUE);
+		Key toKey = new Key(ChatMessage.toEpochMillis(to), Long.MAX_VALUE);
+		if (fromKey.compareTo(toKey) > 0) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<ChatMessage>(messages.subMap(fromKey, true, toKey, true).values());
+	}
+
+	/**
+	 * @return At most count latest messages, oldest first.
+	 */
+	List<ChatMessage> last(int count) {
+		List<ChatMessage> latest = new ArrayList<ChatMessage>(Math.max(0, Math.min(count, 1024)));
+		for (Map.Entry<Key, ChatMessage> entry : messages.descendingMap().entrySet()) {
+			if (latest.size() >= count) {
+				break;
+			}
+			latest.add(entry.getValue());
+		}
+		Collections.reverse(latest);
+		return latest;
+	}
+
+	/**
+	 * @return At most count latest messages sent before the time, oldest first.
+	 */
+	List<ChatMessage> before(long sentEpochMillis, int count) {
+		return pageBefore(new Key(sentEpochMillis, Long.MIN_VALUE), count).messages;
+	}
+
+	/**
+	 * @param position Page ends before this, null for the newest messages.
+	 * @return At most count messages before the position, oldest first.
+	 */
+	Page pageBefore(Key position, int count) {
+		Map<Key, ChatMessage> older = null == position ? messages.descendingMap()
+				: messages.headMap(position, false).descendingMap();
+		List<Map.Entry<Key, ChatMessage>> entries = new ArrayList<Map.Entry<Key, ChatMessage>>(count);
+		for (Map.Entry<Key, ChatMessage> entry : older.entrySet()) {
+			if (entries.size() >= count) {
+				break;
+			}
+			entries.add(entry);
+		}
+		Collections.reverse(entries);
+		return new Page(entries);
+	}
+
+	/**
+	 * @param position Page starts after this.
+	 * @return At most count messages after the position, oldest first.
+	 */
+	Page pageAfter(Key position, int count) {
+		List<Map.Entry<Key, ChatMessage>> entries = new ArrayList<Map.Entry<Key, ChatMessage>>(count);
+		for (Map.Entry<Key, ChatMessage> entry : messages.tailMap(position, false).entrySet()) {
+			if (entries.size() >= count) {
+				break;
+			}
+			entries.add(entry);
+		}
+		return new Page(entries);
+	}
+
+	int size() {
+		return messages.size();
+	}
+
+	/**
+	 * @return Estimated heap bytes used by the messages.
+	 */
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return Sent time in epoch ms of the newest evicted message; messages up
+	 *         to it may be missing. Long.MIN_VALUE if nothing has been evicted.
+	 */
+	long getEvictedUpTo() {
+		return evictedUpTo;
+	}
+
+	/**
+	 * Marks the messages up to the time as missing, e.g. received in an earlier
+	 * session and not fetched again.
+	 */
+	synchronized void markMissingUpTo(long sentEpochMillis) {
+		evictedUpTo = Math.max(evictedUpTo, sentEpochMillis);
+	}
+
+	/**
+	 * Evicts the oldest messages until there are at most maxCount messages
+	 * using at most maxBytes.
+	 *
+	 * @return The messages evicted, oldest first.
+	 */
+	synchronized List<ChatMessage> evictOldest(int maxCount, long maxBytes) {
+		List<ChatMessage> evicted = new ArrayList<ChatMessage>();
+		while (!messages.isEmpty() && (messages.size() > maxCount || bytes > maxBytes)) {
+			Map.Entry<Key, ChatMessage> oldest = messages.pollFirstEntry();
+			fingerprints.remove(fingerprint(oldest.getValue()));
+			bytes -= estimateBytes(oldest.getValue());
+			evictedUpTo = Math.max(evictedUpTo, oldest.getKey().sent);
+			evicted.add(oldest.getValue());
+		}
+		return evicted;
+	}
+
+	/**
+	 * Rough heap size of a message: the object with its date and key, the skip
+	 * list node, two strings of UTF-16 characters and the response bytes a lazy
+	 * message keeps until decoded. It does not change when the message is
+	 * decoded, so evicting subtracts what merging added.
+	 */
+	static long estimateBytes(ChatMessage message) {
+		int source = message.sourceLength();
+		return 160 + 2 * message.textLength() + (0 == source ? 0 : 16 + source);
+	}
+
+	/**
+	 * 64-bit fingerprint identifying a message by nick, text and sent time.
+	 */
+	static long fingerprint(ChatMessage message) {
+		return message.fingerprint();
+	}
+
+	/**
+	 * Consecutive messages of the timeline and the positions of the first and
+	 * the last of them, for reading the pages before and after.
+	 */
+	static final class Page {
+		final List<ChatMessage> messages;
+		// Null if the page is empty.
+		final Key first;
+		final Key last;
+
+		private Page(List<Map.Entry<Key, ChatMessage>> entries) {
+			messages = new ArrayList<ChatMessage>(entries.size());
+			for (Map.Entry<Key, ChatMessage> entry : entries) {
+				messages.add(entry.getValue());
+			}
+			first = entries.isEmpty() ? null : entries.get(0).getKey();
+			last = entries.isEmpty() ? null : entries.get(entries.size() - 1).getKey();
+		}
+	}
+
+	static final class Key implements Comparable<Key> {
+		final long sent;
+		final long sequence;
+
+		Key(long sent, long sequence) {
+			this.sent = sent;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			int result = Long.compare(sent, other.sent);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+
+/**
+ * CircuitBreaker stops sending requests to a server that keeps failing. After
+ * a number of failures in a row the circuit opens, and requests fail at once
+ * with an OpenException instead of waiting for timeouts. When the open time is
+ * over, one trial request is let through: if it succeeds the circuit closes,
+ * otherwise it opens again for twice as long, up to a maximum.
+ */
+class CircuitBreaker {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Thrown instead of sending a request while the circuit is open.
+	 */
+	static class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException(String server, long retryInMillis) {
+			super("Server " + server + " is failing, not trying again for " + retryInMillis + " ms");
+		}
+	}
+
+	private static final int FAILURE_THRESHOLD = 5;
+	private static final long MIN_OPEN_MILLIS = 1000;
+	private static final long MAX_OPEN_MILLIS = 30 * 1000;
+
+	private final String server;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long openMillis = MIN_OPEN_MILLIS;
+	private long openUntil = 0;
+
+	CircuitBreaker(String server) {
+		this.server = server;
+	}
+
+	/**
+	 * Call before sending a request.
+	 *
+	 * @throws OpenException If the request must not be sent now.
+	 */
+	synchronized void acquire() throws OpenException {
+		if (state == State.CLOSED) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (state == State.OPEN && now >= openUntil) {
+			// This request is the trial, others still fail until it completes.
+			state = State.HALF_OPEN;
+			return;
+		}
+		throw new OpenException(server, Math.max(0, openUntil - now));
+	}
+
+	synchronized void recordSuccess() {
+		state = State.CLOSED;
+		failures = 0;
+		openMillis = MIN_OPEN_MILLIS;
+	}
+
+	synchronized void recordFailure() {
+		failures++;
+		if (state == State.HALF_OPEN) {
+			openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+			open();
+		} else if (state == State.CLOSED && failures >= FAILURE_THRESHOLD) {
+			open();
+		}
+	}
+
+	/**
+	 * Call when the caller gave up on the request, e.g. its deadline passed, so
+	 * the server is neither blamed nor trusted for it. If the request was the
+	 * trial, the circuit goes back to open and the next request is the trial.
+	 */
+	synchronized void recordAbandoned() {
+		if (state == State.HALF_OPEN) {
+			state = State.OPEN;
+		}
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + openMillis;
+	}
+}
@@ -0,0 +1,104 @@
+package oy.tol.chatclient;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a request must be done, e.g. "this fetch must finish
+ * in 500 ms". Connect and read timeouts of the request are cut to the time
+ * remaining, and a guard disconnects the connection when the deadline passes,
+ * so that writing the request and reading a long response are bounded too.
+ * A request that runs out of time fails with a SocketTimeoutException.
+ */
+public final class Deadline {
+
+	/** No deadline, only the usual timeouts apply. */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+	// Disconnects connections whose deadline has passed.
+	private static final ScheduledThreadPoolExecutor watchdog = createWatchdog();
+
+	/**
+	 * Closes the guarded connection if the deadline passes first.
+	 */
+	interface Guard extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	private final long expiresAtNanos;
+
+	private Deadline(long expiresAtNanos) {
+		this.expiresAtNanos = expiresAtNanos;
+	}
+
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	public boolean isNone() {
+		return expiresAtNanos == Long.MAX_VALUE;
+	}
+
+	public boolean isExpired() {
+		return !isNone() && System.nanoTime() - expiresAtNanos >= 0;
+	}
+
+	/**
+	 * @return Milliseconds left, Long.MAX_VALUE if there is no deadline.
+	 */
+	public long remainingMillis() {
+		if (isNone()) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+	}
+
+	/**
+	 * @param limit The timeout to use if there is more time than that left.
+	 * @return The smaller of the limit and the time left, at least 1 ms, as 0
+	 *         would mean no timeout at all.
+	 * @throws SocketTimeoutException If the deadline has passed.
+	 */
+	int timeoutMillis(int limit) throws SocketTimeoutException {
+		check();
+		return (int) Math.max(1, Math.min(limit, remainingMillis()));
+	}
+
+	/**
+	 * @throws SocketTimeoutException If the deadline has passed.
+	 */
+	void check() throws SocketTimeoutException {
+		if (isExpired()) {
+			throw new SocketTimeoutException("Deadline exceeded");
+		}
+	}
+
+	/**
+	 * Disconnects the connection when the deadline passes, unless the guard is
+	 * closed before that.
+	 */
+	Guard guard(HttpURLConnection connection) {
+		if (isNone()) {
+			return () -> {
+			};
+		}
+		ScheduledFuture<?> disconnect = watchdog.schedule(connection::disconnect, expiresAtNanos - System.nanoTime(),
+				TimeUnit.NANOSECONDS);
+		return () -> disconnect.cancel(false);
+	}
+
+	private static ScheduledThreadPoolExecutor createWatchdog() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "deadline-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Most requests finish in time, do not keep their cancelled tasks around.
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+}
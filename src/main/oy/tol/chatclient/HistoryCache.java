@@ -0,0 +1,480 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.GeneralSecurityException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * HistoryCache holds the received messages of each channel in a ChatTimeline,
+ * within limits on the number of messages per channel, the total estimated
+ * bytes and the number of channels. Channels are kept in least recently used
+ * order, and when the limits are exceeded, channels not used for a while are
+ * dropped first, then the oldest messages of the rest. Evicting goes a tenth
+ * below the limit, so that it is not done again on the next merge.
+ * <p>
+ * When the heap is still nearly full after a garbage collection, the byte
+ * limit is halved and all but the latest used channel are dropped. The limit
+ * grows back while there is no more pressure.
+ * <p>
+ * Messages evicted from a channel are fetched again from the server with the
+ * loader when last(), before() or between() need them. They are returned, not
+ * cached again, so the limits hold. The search index of a channel is kept in
+ * sync with what the cache holds.
+ */
+class HistoryCache {
+
+	/**
+	 * Reads all messages of a channel from the server.
+	 */
+	interface Loader {
+		void load(String channelKey, ChatHttpClient.ChatMessageConsumer consumer)
+				throws IOException, GeneralSecurityException;
+	}
+
+	static final int DEFAULT_MAX_MESSAGES = 10000;
+	static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+	static final int DEFAULT_MAX_CHANNELS = 16;
+
+	// Fraction of the heap still in use after a collection that counts as pressure.
+	private static final double HEAP_PRESSURE_THRESHOLD = 0.8;
+	private static final double EVICT_TO = 0.9;
+	private static final long MIN_BYTES = 256 * 1024;
+	private static final long PRESSURE_RELIEF_MILLIS = 60 * 1000;
+	private static final long INACTIVE_MILLIS = 10 * 60 * 1000;
+	// Dropped channels whose missing history is remembered.
+	private static final int MAX_DROPPED = 1024;
+
+	private static class Channel {
+		final ChatTimeline timeline;
+		long lastUsed;
+
+		Channel(ChatTimeline timeline) {
+			this.timeline = timeline;
+		}
+	}
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final int maxChannels;
+	private final ChatSearchIndex searchIndex;
+	private final Loader loader;
+
+	// Access ordered, the least recently used channel first.
+	private final LinkedHashMap<String, Channel> channels = new LinkedHashMap<String, Channel>(16, 0.75f, true);
+	// Newest message time of dropped channels, all older messages are missing
+	// if the channel is used again.
+	private final LinkedHashMap<String, Long> dropped = new LinkedHashMap<String, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_DROPPED;
+		}
+	};
+	// Channels whose missing messages are only those of an earlier session.
+	private final Set<String> missingFromEarlier = new HashSet<String>();
+	private long byteBudget;
+	private long pressureAt = 0;
+	private long pressureCount = 0;
+	private long evictedCount = 0;
+	private NotificationListener heapListener = null;
+
+	HistoryCache(ChatSearchIndex searchIndex, Loader loader) {
+		this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_MAX_CHANNELS, searchIndex, loader);
+	}
+
+	/**
+	 * @param searchIndex Index kept in sync with the cache, may be null.
+	 * @param loader      Fetches evicted messages again, may be null.
+	 */
+	HistoryCache(int maxMessages, long maxBytes, int maxChannels, ChatSearchIndex searchIndex, Loader loader) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxChannels = maxChannels;
+		this.searchIndex = searchIndex;
+		this.loader = loader;
+		byteBudget = maxBytes;
+	}
+
+	/**
+	 * Merges messages from the server into the channel and indexes the new ones.
+	 *
+	 * @param channelName The channel, null for the main channel.
+	 * @return The messages not seen before, in time order.
+	 */
+	synchronized List<ChatMessage> merge(String channelName, List<ChatMessage> batch) {
+		String key = ChatHttpClient.channelKey(channelName);
+		List<ChatMessage> added = channel(key).timeline.merge(batch);
+		if (!added.isEmpty()) {
+			if (null != searchIndex) {
+				searchIndex.add(key, added);
+			}
+			enforceLimits(key);
+		}
+		return added;
+	}
+
+	/**
+	 * Removes a message from the channel and its search index.
+	 *
+	 * @return False if the message is not in the cache.
+	 */
+	synchronized boolean remove(String channelName, ChatMessage message) {
+		String key = ChatHttpClient.channelKey(channelName);
+		Channel channel = channels.get(key);
+		if (null == channel || !channel.timeline.remove(message)) {
+			return false;
+		}
+		if (null != searchIndex) {
+			searchIndex.remove(key, List.of(message));
+		}
+		return true;
+	}
+
+	/**
+	 * @return At most count latest messages of the channel, oldest first.
+	 *         Evicted ones are fetched from the server if needed.
+	 */
+	List<ChatMessage> last(String channelName, int count) throws IOException, GeneralSecurityException {
+		String key = ChatHttpClient.channelKey(channelName);
+		ChatTimeline timeline;
+		synchronized (this) {
+			timeline = channel(key).timeline;
+		}
+		List<ChatMessage> cached = timeline.last(count);
+		long evictedUpTo = timeline.getEvictedUpTo();
+		if (cached.size() >= count || evictedUpTo == Long.MIN_VALUE || null == loader) {
+			return cached;
+		}
+		// Keep only the newest of the missing ones while reading, in whatever
+		// order the server sends them.
+		final int missing = count - cached.size();
+		final LongHashSet seen = fingerprintsUpTo(cached, evictedUpTo);
+		final PriorityQueue<ChatMessage> older = new PriorityQueue<ChatMessage>(missing + 1, ChatMessage.BY_SENT);
+		loader.load(key, message -> {
+			if (message.sentEpochMillis() <= evictedUpTo && !seen.contains(ChatTimeline.fingerprint(message))) {
+				older.add(message);
+				if (older.size() > missing) {
+					older.poll();
+				}
+			}
+		});
+		List<ChatMessage> result = new ArrayList<ChatMessage>(older.size() + cached.size());
+		result.addAll(older);
+		result.sort(ChatMessage.BY_SENT);
+		result.addAll(cached);
+		return result;
+	}
+
+	/**
+	 * @param message A message of the channel, not necessarily in the cache.
+	 * @return At most count latest messages of the channel sent before the
+	 *         message, oldest first. Those sent at the same time come before it
+	 *         if the server sends them before it. Evicted ones are fetched from
+	 *         the server if needed.
+	 */
+	List<ChatMessage> before(String channelName, ChatMessage message, int count)
+			throws IOException, GeneralSecurityException {
+		String key = ChatHttpClient.channelKey(channelName);
+		ChatTimeline timeline;
+		synchronized (this) {
+			timeline = channel(key).timeline;
+		}
+		final long sentMillis = message.sentEpochMillis();
+		List<ChatMessage> cached = timeline.before(sentMillis, count);
+		long evictedUpTo = timeline.getEvictedUpTo();
+		if (cached.size() >= count || evictedUpTo == Long.MIN_VALUE || null == loader) {
+			return cached;
+		}
+		final long fingerprint = ChatTimeline.fingerprint(message);
+		final long upTo = Math.min(sentMillis, evictedUpTo);
+		final int missing = count - cached.size();
+		final LongHashSet seen = fingerprintsUpTo(cached, upTo);
+		final PriorityQueue<ChatMessage> older = new PriorityQueue<ChatMessage>(missing + 1, ChatMessage.BY_SENT);
+		final boolean[] reached = { false };
+		loader.load(key, loaded -> {
+			long sent = loaded.sentEpochMillis();
+			if (sent == sentMillis && !reached[0]) {
+				reached[0] = ChatTimeline.fingerprint(loaded) == fingerprint;
+			}
+			if (sent <= upTo && (sent < sentMillis || !reached[0])
+					&& !seen.contains(ChatTimeline.fingerprint(loaded))) {
+				older.add(loaded);
+				if (older.size() > missing) {
+					older.poll();
+				}
+			}
+		});
+		List<ChatMessage> result = new ArrayList<ChatMessage>(older.size() + cached.size());
+		result.addAll(older);
+		result.sort(ChatMessage.BY_SENT);
+		result.addAll(cached);
+		return result;
+	}
+
+	/**
+	 * @return Messages of the channel sent between the times, inclusive, oldest
+	 *         first. Evicted ones are fetched from the server if needed.
+	 */
+	List<ChatMessage> between(String channelName, LocalDateTime from, LocalDateTime to)
+			throws IOException, GeneralSecurityException {
+		String key = ChatHttpClient.channelKey(channelName);
+		ChatTimeline timeline;
+		synchronized (this) {
+			timeline = channel(key).timeline;
+		}
+		List<ChatMessage> cached = timeline.between(from, to);
+		long evictedUpTo = timeline.getEvictedUpTo();
+		final long fromMillis = ChatMessage.toEpochMillis(from);
+		if (evictedUpTo == Long.MIN_VALUE || fromMillis > evictedUpTo || null == loader) {
+			return cached;
+		}
+		final long toMillis = Math.min(ChatMessage.toEpochMillis(to), evictedUpTo);
+		final LongHashSet seen = fingerprintsUpTo(cached, toMillis);
+		final List<ChatMessage> result = new ArrayList<ChatMessage>();
+		loader.load(key, message -> {
+			long sent = message.sentEpochMillis();
+			if (sent >= fromMillis && sent <= toMillis && !seen.contains(ChatTimeline.fingerprint(message))) {
+				result.add(message);
+			}
+		});
+		result.addAll(cached);
+		result.sort(ChatMessage.BY_SENT);
+		return result;
+	}
+
+	/**
+	 * Tells that messages of the channel up to the time are not in the cache,
+	 * so that last(), before() and between() fetch them from the server when
+	 * needed.
+	 */
+	synchronized void markMissing(String channelName, long upToEpochMillis) {
+		String key = ChatHttpClient.channelKey(channelName);
+		Channel channel = channels.get(key);
+		if (null == channel || channel.timeline.getEvictedUpTo() == Long.MIN_VALUE) {
+			missingFromEarlier.add(key);
+		}
+		if (null != channel) {
+			channel.timeline.markMissingUpTo(upToEpochMillis);
+		} else {
+			Long droppedUpTo = dropped.get(key);
+			dropped.put(key, null == droppedUpTo ? upToEpochMillis : Math.max(droppedUpTo, upToEpochMillis));
+		}
+	}
+
+	/**
+	 * @return True if the only messages of the channel missing from the cache
+	 *         are those marked missing from an earlier session, none evicted
+	 *         in this one.
+	 */
+	synchronized boolean isMissingOnlyFromEarlier(String channelName) {
+		return missingFromEarlier.contains(ChatHttpClient.channelKey(channelName));
+	}
+
+	/**
+	 * @return The timeline of the channel, for reading it a page at a time.
+	 */
+	synchronized ChatTimeline timeline(String channelName) {
+		return channel(ChatHttpClient.channelKey(channelName)).timeline;
+	}
+
+	/**
+	 * Frees memory: halves the byte limit, drops all but the latest used channel
+	 * and evicts the oldest messages of that down to the new limit.
+	 */
+	synchronized void shrink() {
+		pressureCount++;
+		pressureAt = System.currentTimeMillis();
+		byteBudget = Math.min(byteBudget, Math.max(MIN_BYTES, getBytes() / 2));
+		int keep = 1;
+		Iterator<Map.Entry<String, Channel>> iterator = channels.entrySet().iterator();
+		while (channels.size() > keep && iterator.hasNext()) {
+			Map.Entry<String, Channel> entry = iterator.next();
+			iterator.remove();
+			drop(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+			evict(entry.getKey(), entry.getValue(), maxMessages, (long) (byteBudget * EVICT_TO));
+		}
+	}
+
+	/**
+	 * Starts listening to heap usage after garbage collections, shrinking the
+	 * cache when it passes the threshold.
+	 *
+	 * @return False if no heap pool supports collection usage thresholds.
+	 */
+	synchronized boolean startHeapMonitoring() {
+		if (null != heapListener) {
+			return true;
+		}
+		boolean supported = false;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			long max = pool.getUsage().getMax();
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+				pool.setCollectionUsageThreshold((long) (max * HEAP_PRESSURE_THRESHOLD));
+				supported = true;
+			}
+		}
+		if (!supported) {
+			return false;
+		}
+		heapListener = (Notification notification, Object handback) -> {
+			if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+				shrink();
+			}
+		};
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(heapListener, null, null);
+		return true;
+	}
+
+	synchronized void stopHeapMonitoring() {
+		if (null == heapListener) {
+			return;
+		}
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(heapListener);
+		} catch (ListenerNotFoundException e) {
+			// Already removed.
+		}
+		heapListener = null;
+	}
+
+	/**
+	 * @return Estimated bytes used by the messages of all channels.
+	 */
+	synchronized long getBytes() {
+		long bytes = 0;
+		for (Channel channel : channels.values()) {
+			bytes += channel.timeline.getBytes();
+		}
+		return bytes;
+	}
+
+	synchronized int getMessageCount() {
+		int count = 0;
+		for (Channel channel : channels.values()) {
+			count += channel.timeline.size();
+		}
+		return count;
+	}
+
+	synchronized int getChannelCount() {
+		return channels.size();
+	}
+
+	synchronized String describe() {
+		return String.format("History: %d messages in %d channels, %d of %d KB, %d evicted, %d heap pressure events",
+				getMessageCount(), channels.size(), getBytes() / 1024, byteBudget / 1024, evictedCount,
+				pressureCount);
+	}
+
+	private Channel channel(String key) {
+		Channel channel = channels.get(key);
+		if (null == channel) {
+			Long droppedUpTo = dropped.remove(key);
+			channel = new Channel(new ChatTimeline(null == droppedUpTo ? Long.MIN_VALUE : droppedUpTo));
+			channels.put(key, channel);
+			if (channels.size() > maxChannels) {
+				Iterator<Map.Entry<String, Channel>> eldest = channels.entrySet().iterator();
+				Map.Entry<String, Channel> entry = eldest.next();
+				eldest.remove();
+				drop(entry.getKey(), entry.getValue());
+			}
+		}
+		channel.lastUsed = System.currentTimeMillis();
+		return channel;
+	}
+
+	private void enforceLimits(String currentKey) {
+		Channel current = channels.get(currentKey);
+		if (current.timeline.size() > maxMessages) {
+			evict(currentKey, current, (int) (maxMessages * EVICT_TO), Long.MAX_VALUE);
+		}
+		long now = System.currentTimeMillis();
+		if (byteBudget < maxBytes && now - pressureAt > PRESSURE_RELIEF_MILLIS) {
+			byteBudget = Math.min(maxBytes, byteBudget * 2);
+			pressureAt = now;
+		}
+		long total = getBytes();
+		if (total <= byteBudget) {
+			return;
+		}
+		long target = (long) (byteBudget * EVICT_TO);
+		Iterator<Map.Entry<String, Channel>> iterator = channels.entrySet().iterator();
+		while (total > target && iterator.hasNext()) {
+			Map.Entry<String, Channel> entry = iterator.next();
+			if (now - entry.getValue().lastUsed < INACTIVE_MILLIS) {
+				// The rest have been used even more recently.
+				break;
+			}
+			if (!entry.getKey().equals(currentKey)) {
+				total -= entry.getValue().timeline.getBytes();
+				iterator.remove();
+				drop(entry.getKey(), entry.getValue());
+			}
+		}
+		if (total > target) {
+			// Every channel gives up the same share of its oldest messages.
+			double keep = target / (double) total;
+			for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+				long bytes = entry.getValue().timeline.getBytes();
+				evict(entry.getKey(), entry.getValue(), maxMessages, (long) (bytes * keep));
+			}
+		}
+	}
+
+	private void evict(String key, Channel channel, int count, long bytes) {
+		List<ChatMessage> evicted = channel.timeline.evictOldest(count, bytes);
+		if (!evicted.isEmpty()) {
+			missingFromEarlier.remove(key);
+			evictedCount += evicted.size();
+			if (null != searchIndex) {
+				searchIndex.remove(key, evicted);
+			}
+		}
+	}
+
+	private void drop(String key, Channel channel) {
+		List<ChatMessage> newest = channel.timeline.last(1);
+		long upTo = newest.isEmpty() ? channel.timeline.getEvictedUpTo() : newest.get(0).sentEpochMillis();
+		if (upTo != Long.MIN_VALUE) {
+			dropped.put(key, upTo);
+		}
+		if (channel.timeline.size() > 0) {
+			missingFromEarlier.remove(key);
+		}
+		evictedCount += channel.timeline.size();
+		if (null != searchIndex) {
+			searchIndex.remove(key);
+		}
+	}
+
+	private static LongHashSet fingerprintsUpTo(List<ChatMessage> messages, long upTo) {
+		LongHashSet fingerprints = new LongHashSet();
+		for (ChatMessage message : messages) {
+			if (message.sentEpochMillis() > upTo) {
+				break;
+			}
+			fingerprints.add(ChatTimeline.fingerprint(message));
+		}
+		return fingerprints;
+	}
+}
@@ -0,0 +1,275 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JsonBodyWriter serializes the flat request bodies the client sends (user,
+ * message, channelName, sent etc.) directly into a reusable UTF-8 byte buffer.
+ * This avoids building a JSONObject, turning it into a String and then into a
+ * byte array for every request. Writers are pooled; get one with acquire() and
+ * give it back with release() when the body has been written to the
+ * connection.
+ */
+class JsonBodyWriter {
+
+	private static final int INITIAL_CAPACITY = 512;
+	// Buffers grown larger than this are not kept in the pool.
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+	private static final int POOL_SIZE = 16;
+
+	private static final JsonBodyWriter[] pool = new JsonBodyWriter[POOL_SIZE];
+	private static int pooledCount = 0;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+	private boolean firstField = true;
+
+	private JsonBodyWriter() {
+	}
+
+	/**
+	 * Gets an empty writer from the pool, or creates a new one if the pool is
+	 * empty.
+	 */
+	static JsonBodyWriter acquire() {
+		synchronized (pool) {
+			if (pooledCount > 0) {
+				JsonBodyWriter writer = pool[--pooledCount];
+				pool[pooledCount] = null;
+				return writer;
+			}
+		}
+		return new JsonBodyWriter();
+	}
+
+	/**
+	 * Empties the writer for writing another body, keeping its buffer.
+	 */
+	void reset() {
+		length = 0;
+		firstField = true;
+	}
+
+	/**
+	 * Returns the writer to the pool. The writer must not be used after this.
+	 */
+	void release() {
+		reset();
+		if (buffer.length > MAX_RETAINED_CAPACITY) {
+			buffer = new byte[INITIAL_CAPACITY];
+		}
+		synchronized (pool) {
+			if (pooledCount < POOL_SIZE) {
+				pool[pooledCount++] = this;
+			}
+		}
+	}
+
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Writes the serialized bytes to the stream without copying them.
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+	}
+
+	JsonBodyWriter beginObject() {
+		ensureCapacity(1);
+		buffer[length++] = '{';
+		firstField = true;
+		return this;
+	}
+
+	JsonBodyWriter endObject() {
+		ensureCapacity(1);
+		buffer[length++] = '}';
+		return this;
+	}
+
+	/**
+	 * Writes a string field. Like JSONObject.put, a null value leaves the field
+	 * out.
+	 */
+	JsonBodyWriter field(String name, String value) {
+		if (null == value) {
+			return this;
+		}
+		fieldName(name);
+		string(value);
+		return this;
+	}
+
+	/**
+	 * Writes the time as a UTC timestamp in the format the server expects,
+	 * yyyy-MM-dd'T'HH:mm:ss.SSSZ.
+	 */
+	JsonBodyWriter timestampField(String name, long epochMillis) {
+		fieldName(name);
+		ensureCapacity(26);
+		long epochDay = Math.floorDiv(epochMillis, 86400000L);
+		int millisOfDay = (int) Math.floorMod(epochMillis, 86400000L);
+		// Civil date from days since epoch, see Howard Hinnant's date algorithms.
+		long z = epochDay + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+		buffer[length++] = '"';
+		digits(year, 4);
+		buffer[length++] = '-';
+		digits(month, 2);
+		buffer[length++] = '-';
+		digits(day, 2);
+		buffer[length++] = 'T';
+		digits(millisOfDay / 3600000, 2);
+		buffer[length++] = ':';
+		digits((millisOfDay / 60000) % 60, 2);
+		buffer[length++] = ':';
+		digits((millisOfDay / 1000) % 60, 2);
+		buffer[length++] = '.';
+		digits(millisOfDay % 1000, 3);
+		buffer[length++] = 'Z';
+		buffer[length++] = '"';
+		return this;
+	}
+
+	/**
+	 * Writes the text as is in UTF-8, for the plain text bodies of the early
+	 * server versions.
+	 */
+	JsonBodyWriter text(String value) {
+		utf8(value, false);
+		return this;
+	}
+
+	/**
+	 * Writes the bytes as they are, e.g. a recorded body.
+	 */
+	JsonBodyWriter bytes(byte[] value) {
+		ensureCapacity(value.length);
+		System.arraycopy(value, 0, buffer, length, value.length);
+		length += value.length;
+		return this;
+	}
+
+	private void fieldName(String name) {
+		ensureCapacity(1);
+		if (!firstField) {
+			buffer[length++] = ',';
+		}
+		firstField = false;
+		string(name);
+		ensureCapacity(1);
+		buffer[length++] = ':';
+	}
+
+	private void string(String value) {
+		ensureCapacity(1);
+		buffer[length++] = '"';
+		utf8(value, true);
+		ensureCapacity(1);
+		buffer[length++] = '"';
+	}
+
+	private void utf8(String value, boolean escape) {
+		final int count = value.length();
+		// A byte per char is reserved up front. Escapes and non-ASCII chars grow
+		// the buffer when met, keeping the byte reserved for each char left.
+		ensureCapacity(count);
+		for (int index = 0; index < count; index++) {
+			char c = value.charAt(index);
+			int left = count - index - 1;
+			if (c < 0x80) {
+				if (escape && (c == '"' || c == '\\' || c < 0x20)) {
+					ensureCapacity(6 + left);
+					escaped(c);
+				} else {
+					buffer[length++] = (byte) c;
+				}
+			} else if (c < 0x800) {
+				ensureCapacity(2 + left);
+				buffer[length++] = (byte) (0xC0 | (c >> 6));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && index + 1 < count
+					&& Character.isLowSurrogate(value.charAt(index + 1))) {
+				ensureCapacity(4 + left - 1);
+				int codePoint = Character.toCodePoint(c, value.charAt(++index));
+				buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Lone surrogate, encode as replacement like String.getBytes does.
+				buffer[length++] = (byte) '?';
+			} else {
+				ensureCapacity(3 + left);
+				buffer[length++] = (byte) (0xE0 | (c >> 12));
+				buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void escaped(char c) {
+		buffer[length++] = '\\';
+		switch (c) {
+			case '"':
+				buffer[length++] = '"';
+				break;
+			case '\\':
+				buffer[length++] = '\\';
+				break;
+			case '\n':
+				buffer[length++] = 'n';
+				break;
+			case '\r':
+				buffer[length++] = 'r';
+				break;
+			case '\t':
+				buffer[length++] = 't';
+				break;
+			case '\b':
+				buffer[length++] = 'b';
+				break;
+			case '\f':
+				buffer[length++] = 'f';
+				break;
+			default:
+				buffer[length++] = 'u';
+				buffer[length++] = '0';
+				buffer[length++] = '0';
+				buffer[length++] = HEX[(c >> 4) & 0xF];
+				buffer[length++] = HEX[c & 0xF];
+				break;
+		}
+	}
+
+	private void digits(int value, int width) {
+		for (int position = length + width - 1; position >= length; position--) {
+			buffer[position] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += width;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (length + additional > buffer.length) {
+			int newCapacity = Math.max(buffer.length * 2, length + additional);
+			byte[] newBuffer = new byte[newCapacity];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+}
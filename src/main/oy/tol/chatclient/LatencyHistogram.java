@@ -0,0 +1,119 @@
+package oy.tol.chatclient;
+
+/**
+ * LatencyHistogram counts durations in logarithmic buckets, 16 per power of
+ * two, so percentiles are known within about 6 % using a fixed 5 KB of memory
+ * however many samples are recorded. Durations are given in nanoseconds and
+ * bucketed in microseconds.
+ * <p>
+ * With a window, all counts are halved whenever the window is full, so that
+ * percentiles follow the recent samples rather than the whole history.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough for durations up to 2^40 microseconds.
+	private static final int BUCKETS = (40 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private final long window;
+	private long count = 0;
+	private double sumMicros = 0;
+
+	/**
+	 * Creates a histogram of all samples recorded.
+	 */
+	LatencyHistogram() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param window Number of samples after which the counts are halved.
+	 */
+	LatencyHistogram(long window) {
+		this.window = window;
+	}
+
+	synchronized void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts[bucketOf(micros)]++;
+		sumMicros += micros;
+		if (++count >= window) {
+			count = 0;
+			for (int index = 0; index < BUCKETS; index++) {
+				counts[index] /= 2;
+				count += counts[index];
+			}
+			sumMicros /= 2;
+		}
+	}
+
+	/**
+	 * @param quantile E.g. 0.95 for the 95th percentile.
+	 * @return The duration in nanoseconds, 0 if there are no samples.
+	 */
+	synchronized long percentile(double quantile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			seen += counts[index];
+			if (seen >= rank) {
+				return valueOf(index) * 1000;
+			}
+		}
+		return valueOf(BUCKETS - 1) * 1000;
+	}
+
+	synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Mean duration in nanoseconds, 0 if there are no samples.
+	 */
+	synchronized long getMean() {
+		return count == 0 ? 0 : (long) (sumMicros / count * 1000);
+	}
+
+	synchronized void add(LatencyHistogram other) {
+		synchronized (other) {
+			for (int index = 0; index < BUCKETS; index++) {
+				counts[index] += other.counts[index];
+			}
+			count += other.count;
+			sumMicros += other.sumMicros;
+		}
+	}
+
+	synchronized void clear() {
+		for (int index = 0; index < BUCKETS; index++) {
+			counts[index] = 0;
+		}
+		count = 0;
+		sumMicros = 0;
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+	}
+
+	// Middle of the range of values counted in the bucket.
+	private static long valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+		return lower + width / 2;
+	}
+}
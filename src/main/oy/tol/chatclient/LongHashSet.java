@@ -0,0 +1,121 @@
+package oy.tol.chatclient;
+
+/**
+ * A compact set of long values using open addressing with linear probing.
+ * Values are kept in a single long array, without boxing or per entry
+ * objects. Zero is used to mark free slots, so it is stored as a separate
+ * flag.
+ */
+class LongHashSet {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] slots;
+	private int size = 0;
+	private boolean containsZero = false;
+
+	LongHashSet() {
+		slots = new long[MIN_CAPACITY];
+	}
+
+	int size() {
+		return size + (containsZero ? 1 : 0);
+	}
+
+	boolean contains(long value) {
+		if (value == 0) {
+			return containsZero;
+		}
+		int mask = slots.length - 1;
+		for (int slot = index(value, mask); slots[slot] != 0; slot = (slot + 1) & mask) {
+			if (slots[slot] == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return True if the value was added, false if it already was in the set.
+	 */
+	boolean add(long value) {
+		if (value == 0) {
+			boolean added = !containsZero;
+			containsZero = true;
+			return added;
+		}
+		int mask = slots.length - 1;
+		int slot = index(value, mask);
+		while (slots[slot] != 0) {
+			if (slots[slot] == value) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = value;
+		// Keep the load factor at most 1/2.
+		if (++size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if the value was in the set and was removed.
+	 */
+	boolean remove(long value) {
+		if (value == 0) {
+			boolean removed = containsZero;
+			containsZero = false;
+			return removed;
+		}
+		int mask = slots.length - 1;
+		int slot = index(value, mask);
+		while (slots[slot] != value) {
+			if (slots[slot] == 0) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		// Shift the following entries of the probe sequence back so that lookups
+		// do not stop at the freed slot.
+		int free = slot;
+		for (int next = (free + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+			int home = index(slots[next], mask);
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				slots[free] = slots[next];
+				free = next;
+			}
+		}
+		slots[free] = 0;
+		size--;
+		return true;
+	}
+
+	void clear() {
+		slots = new long[MIN_CAPACITY];
+		size = 0;
+		containsZero = false;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = slots;
+		slots = new long[capacity];
+		int mask = capacity - 1;
+		for (long value : old) {
+			if (value != 0) {
+				int slot = index(value, mask);
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = value;
+			}
+		}
+	}
+
+	private static int index(long value, int mask) {
+		// Spread the bits, fingerprints may differ only in a few of them.
+		long hash = value * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,359 @@
+package oy.tol.chatclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageFilter decides whether a received message is shown, hidden or
+ * highlighted. Rules mute nicks, allow only some nicks, hide messages with a
+ * keyword or highlight messages with a keyword. Nicks and keywords are case
+ * insensitive, and keywords match anywhere in the text.
+ * <p>
+ * The keywords of all rules are compiled into one Aho-Corasick automaton with
+ * the failure links resolved into a transition table, so a message is matched
+ * against any number of keywords in a single pass over its text, one table
+ * lookup per character. Changing the rules compiles a new automaton and
+ * swaps it in, so messages are filtered without locking.
+ */
+class MessageFilter {
+
+	enum Action {
+		SHOW, HIDE, HIGHLIGHT
+	}
+
+	enum RuleType {
+		MUTE, ALLOW, HIDE, HIGHLIGHT
+	}
+
+	/**
+	 * A rule and how many messages it has matched.
+	 */
+	static class Rule {
+		final RuleType type;
+		final String value;
+		private final AtomicLong hits = new AtomicLong();
+
+		private Rule(RuleType type, String value) {
+			this.type = type;
+			this.value = value;
+		}
+
+		long getHits() {
+			return hits.get();
+		}
+
+		@Override
+		public String toString() {
+			return type.name().toLowerCase(Locale.ROOT) + " " + value;
+		}
+	}
+
+	// Rules in the order added, and the compiled form of them.
+	private List<Rule> rules = new ArrayList<Rule>();
+	private volatile Compiled compiled = new Compiled(Collections.<Rule>emptyList());
+	private final AtomicLong examined = new AtomicLong();
+
+	/**
+	 * Adds a rule, unless the same one is already there.
+	 *
+	 * @return False if the rule was already there.
+	 */
+	synchronized boolean add(RuleType type, String value) {
+		String normalized = lowerCase(value.trim());
+		if (normalized.isEmpty()) {
+			throw new IllegalArgumentException("Filter rule needs a nick or a keyword");
+		}
+		for (Rule rule : rules) {
+			if (rule.type == type && rule.value.equals(normalized)) {
+				return false;
+			}
+		}
+		List<Rule> changed = new ArrayList<Rule>(rules);
+		changed.add(new Rule(type, normalized));
+		install(changed);
+		return true;
+	}
+
+	/**
+	 * @param index Index of the rule in getRules().
+	 * @return False if there is no such rule.
+	 */
+	synchronized boolean remove(int index) {
+		if (index < 0 || index >= rules.size()) {
+			return false;
+		}
+		List<Rule> changed = new ArrayList<Rule>(rules);
+		changed.remove(index);
+		install(changed);
+		return true;
+	}
+
+	synchronized void clear() {
+		install(new ArrayList<Rule>());
+	}
+
+	synchronized List<Rule> getRules() {
+		return Collections.unmodifiableList(rules);
+	}
+
+	boolean isEmpty() {
+		return compiled.isEmpty();
+	}
+
+	/**
+	 * @return Number of messages filtered.
+	 */
+	long getExamined() {
+		return examined.get();
+	}
+
+	/**
+	 * Filters a received message, counting the rule hits.
+	 */
+	Action apply(ChatMessage message) {
+		return apply(message, true);
+	}
+
+	/**
+	 * @param count False to leave the hit counters as they are, when showing
+	 *              messages received earlier again.
+	 */
+	Action apply(ChatMessage message, boolean count) {
+		Compiled current = compiled;
+		if (current.isEmpty()) {
+			return Action.SHOW;
+		}
+		if (count) {
+			examined.incrementAndGet();
+		}
+		return current.apply(message, count);
+	}
+
+	// A char at a time, like the text is matched, so the length stays the same.
+	private static String lowerCase(String value) {
+		char[] characters = value.toCharArray();
+		for (int index = 0; index < characters.length; index++) {
+			characters[index] = Character.toLowerCase(characters[index]);
+		}
+		return new String(characters);
+	}
+
+	private void install(List<Rule> changed) {
+		rules = changed;
+		compiled = new Compiled(changed);
+	}
+
+	/**
+	 * The nick sets and the keyword automaton of a set of rules.
+	 */
+	private static class Compiled {
+		private final Map<String, Rule> muted = new HashMap<String, Rule>();
+		private final Map<String, Rule> allowed = new HashMap<String, Rule>();
+		private final Rule[] keywords;
+
+		// Characters used in the keywords are numbered from 1, all others are 0.
+		// Other than ASCII ones are looked up by binary search, in sorted order.
+		private final int[] asciiClass = new int[128];
+		private final char[] otherChars;
+		private final int[] otherClasses;
+		private final int width;
+		// Next state for each state and character class, failure links included.
+		private final int[] transitions;
+		// Indexes of the keywords ending at each state, null if none.
+		private final int[][] outputs;
+
+		Compiled(List<Rule> rules) {
+			List<Rule> keywordRules = new ArrayList<Rule>();
+			for (Rule rule : rules) {
+				if (rule.type == RuleType.MUTE) {
+					muted.put(rule.value, rule);
+				} else if (rule.type == RuleType.ALLOW) {
+					allowed.put(rule.value, rule);
+				} else {
+					keywordRules.add(rule);
+				}
+			}
+			keywords = keywordRules.toArray(new Rule[0]);
+
+			int classes = 1;
+			Map<Character, Integer> others = new TreeMap<Character, Integer>();
+			for (Rule rule : keywords) {
+				for (int index = 0; index < rule.value.length(); index++) {
+					char character = rule.value.charAt(index);
+					if (character < 128) {
+						if (asciiClass[character] == 0) {
+							asciiClass[character] = classes++;
+						}
+					} else if (!others.containsKey(character)) {
+						others.put(character, classes++);
+					}
+				}
+			}
+			width = classes;
+			otherChars = new char[others.size()];
+			otherClasses = new int[others.size()];
+			int other = 0;
+			for (Map.Entry<Character, Integer> entry : others.entrySet()) {
+				otherChars[other] = entry.getKey();
+				otherClasses[other++] = entry.getValue();
+			}
+
+			// The trie first, with -1 for no child.
+			List<int[]> children = new ArrayList<int[]>();
+			List<List<Integer>> ends = new ArrayList<List<Integer>>();
+			children.add(newNode());
+			ends.add(null);
+			for (int keyword = 0; keyword < keywords.length; keyword++) {
+				String value = keywords[keyword].value;
+				int state = 0;
+				for (int index = 0; index < value.length(); index++) {
+					int next = children.get(state)[classOf(value.charAt(index))];
+					if (next < 0) {
+						next = children.size();
+						children.get(state)[classOf(value.charAt(index))] = next;
+						children.add(newNode());
+						ends.add(null);
+					}
+					state = next;
+				}
+				if (null == ends.get(state)) {
+					ends.set(state, new ArrayList<Integer>());
+				}
+				ends.get(state).add(keyword);
+			}
+
+			// Then breadth first, so a state's failure link is done before its
+			// children: a missing child goes where the failure state goes, and a
+			// state also outputs what its failure state outputs.
+			int states = children.size();
+			transitions = new int[states * width];
+			outputs = new int[states][];
+			int[] failure = new int[states];
+			int[] queue = new int[states];
+			int head = 0;
+			int tail = 0;
+			for (int symbol = 0; symbol < width; symbol++) {
+				int child = children.get(0)[symbol];
+				if (child > 0) {
+					transitions[symbol] = child;
+					failure[child] = 0;
+					queue[tail++] = child;
+				}
+			}
+			outputs[0] = toArray(ends.get(0), null);
+			while (head < tail) {
+				int state = queue[head++];
+				outputs[state] = toArray(ends.get(state), outputs[failure[state]]);
+				for (int symbol = 0; symbol < width; symbol++) {
+					int child = children.get(state)[symbol];
+					if (child > 0) {
+						transitions[state * width + symbol] = child;
+						failure[child] = transitions[failure[state] * width + symbol];
+						queue[tail++] = child;
+					} else {
+						transitions[state * width + symbol] = transitions[failure[state] * width + symbol];
+					}
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return muted.isEmpty() && allowed.isEmpty() && keywords.length == 0;
+		}
+
+		Action apply(ChatMessage message, boolean count) {
+			if (!muted.isEmpty() || !allowed.isEmpty()) {
+				String nick = lowerCase(message.getNick());
+				Rule mute = muted.get(nick);
+				if (null != mute) {
+					hit(mute, count);
+					return Action.HIDE;
+				}
+				if (!allowed.isEmpty()) {
+					Rule allow = allowed.get(nick);
+					if (null == allow) {
+						return Action.HIDE;
+					}
+					hit(allow, count);
+				}
+			}
+			if (keywords.length == 0) {
+				return Action.SHOW;
+			}
+			String text = message.getMessage();
+			boolean[] matched = null;
+			int state = 0;
+			for (int index = 0; index < text.length(); index++) {
+				state = transitions[state * width + classOf(Character.toLowerCase(text.charAt(index)))];
+				int[] found = outputs[state];
+				if (null == found) {
+					continue;
+				}
+				for (int keyword : found) {
+					if (keywords[keyword].type == RuleType.HIDE) {
+						hit(keywords[keyword], count);
+						return Action.HIDE;
+					}
+					if (null == matched) {
+						matched = new boolean[keywords.length];
+					}
+					if (!matched[keyword]) {
+						matched[keyword] = true;
+						hit(keywords[keyword], count);
+					}
+				}
+			}
+			return null == matched ? Action.SHOW : Action.HIGHLIGHT;
+		}
+
+		private int classOf(char character) {
+			if (character < 128) {
+				return asciiClass[character];
+			}
+			int found = Arrays.binarySearch(otherChars, character);
+			return found < 0 ? 0 : otherClasses[found];
+		}
+
+		private int[] newNode() {
+			int[] node = new int[width];
+			Arrays.fill(node, -1);
+			return node;
+		}
+
+		private static int[] toArray(List<Integer> own, int[] inherited) {
+			if (null == own && null == inherited) {
+				return null;
+			}
+			Set<Integer> all = new HashSet<Integer>();
+			if (null != own) {
+				all.addAll(own);
+			}
+			if (null != inherited) {
+				for (int keyword : inherited) {
+					all.add(keyword);
+				}
+			}
+			int[] result = new int[all.size()];
+			int index = 0;
+			for (int keyword : all) {
+				result[index++] = keyword;
+			}
+			return result;
+		}
+
+		private static void hit(Rule rule, boolean count) {
+			if (count) {
+				rule.hits.incrementAndGet();
+			}
+		}
+	}
+}
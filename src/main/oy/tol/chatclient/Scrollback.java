@@ -0,0 +1,179 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scrollback pages through the history of a channel a screenful at a time,
+ * starting from the newest messages. It remembers the positions of the first
+ * and the last message shown, and reads only the rows of the next page from
+ * the timeline, so scrolling costs the same in a channel of a hundred or a
+ * million messages. Messages arriving or evicted meanwhile do not move the
+ * page shown.
+ * <p>
+ * Past the start of the messages in memory, the history is read through the
+ * HistoryCache, which fetches the evicted messages again from the server a
+ * few pages at a time. Those are kept here only while paging through them.
+ */
+class Scrollback {
+
+	// Pages fetched through the cache at a time when paging back.
+	static final int FETCH_PAGES = 5;
+
+	private final HistoryCache history;
+	private final String channelName;
+	private final ChatTimeline timeline;
+	private final int rows;
+	private ChatTimeline.Page page;
+	// Messages read through the cache, oldest first, and the range of them
+	// shown. Null while paging the timeline.
+	private List<ChatMessage> fetched = null;
+	private int fetchedFrom = 0;
+	private int fetchedTo = 0;
+	// True if the fetched messages end before the timeline page, which is
+	// shown again after them. False if they are the latest ones.
+	private boolean fetchedBeforePage = false;
+	// Set when the server had nothing before the page shown.
+	private boolean noneBefore = false;
+
+	/**
+	 * @param channelName The channel, null for the main channel.
+	 * @param rows        Messages on a page.
+	 */
+	Scrollback(HistoryCache history, String channelName, int rows) {
+		this.history = history;
+		this.channelName = channelName;
+		this.timeline = history.timeline(channelName);
+		this.rows = Math.max(1, rows);
+		page = timeline.pageBefore(null, this.rows);
+	}
+
+	/**
+	 * @return The newest page. If less than a page is in memory, the rest is
+	 *         fetched from the server.
+	 */
+	List<ChatMessage> latest() throws IOException, GeneralSecurityException {
+		latestInMemory();
+		if (page.messages.size() < rows && hasEvicted()) {
+			List<ChatMessage> last = history.last(channelName, rows);
+			if (last.size() > page.messages.size()) {
+				fetched = last;
+				fetchedFrom = 0;
+				fetchedTo = last.size();
+				fetchedBeforePage = false;
+				return last;
+			}
+		}
+		return page.messages;
+	}
+
+	/**
+	 * @return The newest page of the messages in memory, nothing is fetched.
+	 */
+	List<ChatMessage> latestInMemory() {
+		fetched = null;
+		noneBefore = false;
+		page = timeline.pageBefore(null, rows);
+		return page.messages;
+	}
+
+	/**
+	 * @return The page before the one shown, empty if this was the first.
+	 */
+	List<ChatMessage> older() throws IOException, GeneralSecurityException {
+		if (null != fetched) {
+			if (fetchedFrom > 0) {
+				fetchedTo = fetchedFrom;
+				fetchedFrom = Math.max(0, fetchedFrom - rows);
+				return fetched.subList(fetchedFrom, fetchedTo);
+			}
+			return noneBefore ? Collections.<ChatMessage>emptyList() : fetchBefore(fetched.get(0));
+		}
+		if (null == page.first) {
+			return page.messages;
+		}
+		ChatTimeline.Page older = timeline.pageBefore(page.first, rows);
+		if (older.messages.isEmpty()) {
+			return hasEvicted() && !noneBefore ? fetchBefore(page.messages.get(0)) : older.messages;
+		}
+		page = older;
+		return page.messages;
+	}
+
+	/**
+	 * @return The page after the one shown, the newest page when there is no
+	 *         longer a full page of newer messages.
+	 */
+	List<ChatMessage> newer() throws IOException, GeneralSecurityException {
+		if (null != fetched) {
+			if (fetchedTo < fetched.size()) {
+				fetchedFrom = fetchedTo;
+				fetchedTo = Math.min(fetched.size(), fetchedTo + rows);
+				return fetched.subList(fetchedFrom, fetchedTo);
+			}
+			if (!fetchedBeforePage) {
+				return latest();
+			}
+			fetched = null;
+			return page.messages;
+		}
+		if (null == page.last) {
+			return latest();
+		}
+		ChatTimeline.Page newer = timeline.pageAfter(page.last, rows);
+		if (newer.messages.size() < rows) {
+			return latest();
+		}
+		page = newer;
+		return page.messages;
+	}
+
+	/**
+	 * @return True if there are no messages before the page shown.
+	 */
+	boolean atStart() {
+		if (null != fetched) {
+			return noneBefore && 0 == fetchedFrom;
+		}
+		return null == page.first
+				|| (timeline.pageBefore(page.first, 1).messages.isEmpty() && (!hasEvicted() || noneBefore));
+	}
+
+	/**
+	 * @return True if messages older than those in memory have been evicted.
+	 */
+	boolean hasEvicted() {
+		return timeline.getEvictedUpTo() != Long.MIN_VALUE;
+	}
+
+	int getRows() {
+		return rows;
+	}
+
+	// Fetches a few pages before the message and shows the last of them. One
+	// more is asked for to tell whether there is anything before those.
+	private List<ChatMessage> fetchBefore(ChatMessage first) throws IOException, GeneralSecurityException {
+		int window = rows * FETCH_PAGES;
+		List<ChatMessage> before = new ArrayList<ChatMessage>(history.before(channelName, first, window + 1));
+		if (before.size() > window) {
+			before.remove(0);
+		} else {
+			noneBefore = true;
+		}
+		if (before.isEmpty()) {
+			return before;
+		}
+		if (null == fetched) {
+			fetchedBeforePage = true;
+		} else {
+			before.addAll(fetched);
+		}
+		fetchedTo = before.size() - (null == fetched ? 0 : fetched.size());
+		fetchedFrom = Math.max(0, fetchedTo - rows);
+		fetched = before;
+		return fetched.subList(fetchedFrom, fetchedTo);
+	}
+}
@@ -0,0 +1,117 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ServerDiagnostics keeps the latest failed requests of a client in a ring
+ * buffer of fixed size, so that a client getting error after error uses no
+ * more memory for them than one that gets a few. Each entry has the time, the
+ * request, the response code (-1 if there was no response) and the start of
+ * the error body from the server.
+ */
+public class ServerDiagnostics {
+
+	/**
+	 * One failed request.
+	 */
+	public static class Entry {
+		public final long timeMillis;
+		// Method and URL, e.g. GET https://localhost:8001/chat
+		public final String endpoint;
+		public final int status;
+		// Error body or exception message, truncated and on one line.
+		public final String message;
+
+		Entry(long timeMillis, String endpoint, int status, String message) {
+			this.timeMillis = timeMillis;
+			this.endpoint = endpoint;
+			this.status = status;
+			this.message = message;
+		}
+	}
+
+	static final int DEFAULT_CAPACITY = 32;
+	// Longer error bodies are cut, only this much is read from the server.
+	static final int MAX_MESSAGE_BYTES = 512;
+
+	private final Entry[] entries;
+	private int next = 0;
+	private long recorded = 0;
+
+	ServerDiagnostics() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	ServerDiagnostics(int capacity) {
+		entries = new Entry[capacity];
+	}
+
+	synchronized Entry record(String endpoint, int status, String message) {
+		Entry entry = new Entry(System.currentTimeMillis(), endpoint, status, message);
+		entries[next] = entry;
+		next = (next + 1) % entries.length;
+		recorded++;
+		return entry;
+	}
+
+	/**
+	 * Records an error response, reading at most MAX_MESSAGE_BYTES of the error
+	 * body from the connection.
+	 */
+	Entry record(HttpURLConnection connection, int status) {
+		String message;
+		try {
+			message = readErrorBody(connection);
+		} catch (IOException e) {
+			message = "Could not read the error body: " + e.getMessage();
+		}
+		return record(connection.getRequestMethod() + " " + connection.getURL(), status, message);
+	}
+
+	/**
+	 * @return The entries kept, oldest first.
+	 */
+	public synchronized List<Entry> getEntries() {
+		List<Entry> list = new ArrayList<Entry>(entries.length);
+		for (int count = 0; count < entries.length; count++) {
+			Entry entry = entries[(next + count) % entries.length];
+			if (null != entry) {
+				list.add(entry);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return Number of errors recorded in all, including those no longer kept.
+	 */
+	public synchronized long getRecordedCount() {
+		return recorded;
+	}
+
+	private static String readErrorBody(HttpURLConnection connection) throws IOException {
+		InputStream in = connection.getErrorStream();
+		if (null == in) {
+			return "";
+		}
+		try {
+			byte[] bytes = in.readNBytes(MAX_MESSAGE_BYTES + 1);
+			int length = Math.min(bytes.length, MAX_MESSAGE_BYTES);
+			// Cut before a char whose bytes do not all fit, not in the middle of it.
+			if (length < bytes.length) {
+				while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+					length--;
+				}
+			}
+			String message = new String(bytes, 0, length, StandardCharsets.UTF_8).replaceAll("\\s+", " ").trim();
+			return bytes.length > MAX_MESSAGE_BYTES ? message + "..." : message;
+		} finally {
+			in.close();
+		}
+	}
+}
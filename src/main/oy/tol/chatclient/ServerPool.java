@@ -0,0 +1,184 @@
+package oy.tol.chatclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServerPool holds a list of equivalent server endpoints and picks the one to
+ * send requests to. Each endpoint's latency is tracked as an exponentially
+ * weighted moving average (EWMA) of request and probe times. Requests go to
+ * the fastest healthy endpoint. An endpoint that fails is skipped until a
+ * backoff time has passed or a background probe finds it working again.
+ */
+class ServerPool {
+
+	/**
+	 * Measures the latency of an endpoint with a cheap request.
+	 */
+	interface Prober {
+		long probe(String server) throws Exception;
+	}
+
+	// Weight of a new latency sample in the average.
+	private static final double EWMA_ALPHA = 0.3;
+	static final long MIN_BACKOFF_MILLIS = 2 * 1000;
+	private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+	private static final long PROBE_INTERVAL_MILLIS = 5 * 1000;
+
+	private final List<Endpoint> endpoints;
+	private ScheduledExecutorService prober = null;
+
+	/**
+	 * @param servers Server addresses, e.g. https://localhost:8001/
+	 */
+	ServerPool(List<String> servers) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("Server pool needs at least one server");
+		}
+		List<Endpoint> list = new ArrayList<Endpoint>(servers.size());
+		for (String server : servers) {
+			list.add(new Endpoint(server));
+		}
+		endpoints = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * @return The fastest healthy endpoint. If none is healthy, the one which is
+	 *         soonest due to be retried.
+	 */
+	synchronized String select() {
+		long now = System.currentTimeMillis();
+		Endpoint best = null;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.isAvailable(now) && (null == best || endpoint.latencyMillis < best.latencyMillis)) {
+				best = endpoint;
+			}
+		}
+		if (null == best) {
+			for (Endpoint endpoint : endpoints) {
+				if (null == best || endpoint.retryAt < best.retryAt) {
+					best = endpoint;
+				}
+			}
+		}
+		return best.server;
+	}
+
+	/**
+	 * @return A different available endpoint to fail over to, or null if there is
+	 *         none.
+	 */
+	synchronized String selectOtherThan(String failed) {
+		long now = System.currentTimeMillis();
+		Endpoint best = null;
+		for (Endpoint endpoint : endpoints) {
+			if (!endpoint.server.equals(failed) && endpoint.isAvailable(now)
+					&& (null == best || endpoint.latencyMillis < best.latencyMillis)) {
+				best = endpoint;
+			}
+		}
+		return null == best ? null : best.server;
+	}
+
+	synchronized void recordSuccess(String server, long elapsedNanos) {
+		Endpoint endpoint = find(server);
+		if (null != endpoint) {
+			double millis = elapsedNanos / 1000000.0;
+			endpoint.latencyMillis = endpoint.samples == 0 ? millis
+					: EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * endpoint.latencyMillis;
+			endpoint.samples++;
+			endpoint.failures = 0;
+			endpoint.retryAt = 0;
+		}
+	}
+
+	synchronized void recordFailure(String server) {
+		Endpoint endpoint = find(server);
+		if (null != endpoint) {
+			endpoint.failures++;
+			long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(endpoint.failures - 1, 5));
+			endpoint.retryAt = System.currentTimeMillis() + backoff;
+		}
+	}
+
+	List<String> getServers() {
+		List<String> servers = new ArrayList<String>(endpoints.size());
+		for (Endpoint endpoint : endpoints) {
+			servers.add(endpoint.server);
+		}
+		return servers;
+	}
+
+	synchronized String describe() {
+		StringBuilder builder = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (Endpoint endpoint : endpoints) {
+			builder.append(endpoint.server).append(endpoint.isAvailable(now) ? " up" : " down");
+			if (endpoint.samples > 0) {
+				builder.append(String.format(" %.1f ms", endpoint.latencyMillis));
+			}
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Starts probing all endpoints in the background, so that latencies stay
+	 * current and failed endpoints are taken back into use when they recover.
+	 */
+	synchronized void startProbing(Prober probe) {
+		if (null != prober) {
+			return;
+		}
+		prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "server-probe");
+			thread.setDaemon(true);
+			return thread;
+		});
+		prober.scheduleWithFixedDelay(() -> {
+			for (Endpoint endpoint : endpoints) {
+				try {
+					recordSuccess(endpoint.server, probe.probe(endpoint.server));
+				} catch (Exception e) {
+					recordFailure(endpoint.server);
+				}
+			}
+		}, 0, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void close() {
+		if (null != prober) {
+			prober.shutdownNow();
+			prober = null;
+		}
+	}
+
+	private Endpoint find(String server) {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.server.equals(server)) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	private static class Endpoint {
+		final String server;
+		double latencyMillis = 0;
+		long samples = 0;
+		int failures = 0;
+		long retryAt = 0;
+
+		Endpoint(String server) {
+			this.server = server;
+		}
+
+		boolean isAvailable(long now) {
+			return failures == 0 || now >= retryAt;
+		}
+	}
+}
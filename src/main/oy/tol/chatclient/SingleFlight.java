@@ -0,0 +1,64 @@
+package oy.tol.chatclient;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SingleFlight merges identical calls made at the same time. The first caller
+ * with a key executes the call, and callers arriving with the same key while
+ * it is running wait for and share its result (or exception) instead of
+ * making the call again.
+ */
+class SingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	V execute(K key, Callable<V> call) throws Exception {
+		return execute(key, call, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param waitNanos How long to wait for the result of a call already running,
+	 *                  the caller's own call is not limited.
+	 * @throws TimeoutException If the running call did not finish in time.
+	 */
+	V execute(K key, Callable<V> call, long waitNanos) throws Exception {
+		CompletableFuture<V> own = new CompletableFuture<V>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+		if (null != running) {
+			coalesced.incrementAndGet();
+			try {
+				return waitNanos == Long.MAX_VALUE ? running.get() : running.get(waitNanos, TimeUnit.NANOSECONDS);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				throw e;
+			}
+		}
+		try {
+			V result = call.call();
+			own.complete(result);
+			return result;
+		} catch (Exception | Error e) {
+			own.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, own);
+		}
+	}
+
+	/**
+	 * @return How many calls have been served by sharing another call's result.
+	 */
+	long getCoalescedCount() {
+		return coalesced.get();
+	}
+}
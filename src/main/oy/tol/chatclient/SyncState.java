@@ -0,0 +1,210 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * SyncState keeps the Last-Modified watermarks of the channels in a file, by
+ * server and user, so that after a restart or a new login the first fetch of
+ * a channel asks only for the messages since the previous session instead of
+ * the whole history.
+ * <p>
+ * Changes are saved a second after the first unsaved one, together with any
+ * made meanwhile, by a background thread so that fetches never wait for the
+ * disk. The file is written to a temporary file, forced to disk and renamed
+ * over the old one, so it is always either the old or the new state, never
+ * half written.
+ */
+class SyncState implements AutoCloseable {
+
+	static final String DEFAULT_FILE = ".o3-chat-sync.json";
+	private static final long SAVE_DELAY = 1000; // ms
+	private static final int VERSION = 1;
+
+	// The chat server sends Last-Modified with milliseconds.
+	private static final DateTimeFormatter LAST_MODIFIED_MILLIS = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss.SSS zzz", Locale.ENGLISH);
+
+	private final Path file;
+	// Watermarks by channel, by server and user.
+	private final JSONObject accounts;
+	private boolean dirty = false;
+	private final Object saveLock = new Object();
+	private ScheduledFuture<?> pendingSave = null;
+	private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "sync-state-saver");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Reads the state from the file. A missing or unreadable file starts an
+	 * empty state, which only costs a full fetch of each channel.
+	 */
+	SyncState(Path file) {
+		this.file = file;
+		JSONObject read = null;
+		if (Files.exists(file)) {
+			try {
+				JSONObject root = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+				if (root.optInt("version") == VERSION) {
+					read = root.getJSONObject("accounts");
+				}
+			} catch (IOException | JSONException e) {
+				// Started over below.
+			}
+		}
+		accounts = null == read ? new JSONObject() : read;
+	}
+
+	static Path defaultFile() {
+		return Paths.get(System.getProperty("user.home"), DEFAULT_FILE);
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The saved watermarks of the user's channels on the server, by
+	 *         channel key.
+	 */
+	synchronized Map<String, String> restore(String server, String username) {
+		Map<String, String> watermarks = new HashMap<String, String>();
+		JSONObject channels = accounts.optJSONObject(accountKey(server, username));
+		if (null != channels) {
+			for (String channelKey : channels.keySet()) {
+				watermarks.put(channelKey, channels.getString(channelKey));
+			}
+		}
+		return watermarks;
+	}
+
+	/**
+	 * Sets the watermark of a channel, saved soon after.
+	 *
+	 * @param lastModified The new watermark, null to remove it.
+	 */
+	synchronized void update(String server, String username, String channelKey, String lastModified) {
+		String account = accountKey(server, username);
+		JSONObject channels = accounts.optJSONObject(account);
+		if (null == lastModified) {
+			if (null == channels || null == channels.remove(channelKey)) {
+				return;
+			}
+		} else {
+			if (null == channels) {
+				channels = new JSONObject();
+				accounts.put(account, channels);
+			}
+			if (lastModified.equals(channels.optString(channelKey, null))) {
+				return;
+			}
+			channels.put(channelKey, lastModified);
+		}
+		dirty = true;
+		if (null == pendingSave && !saver.isShutdown()) {
+			pendingSave = saver.schedule(this::saveQuietly, SAVE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes the state to the file now, if it has changed.
+	 */
+	void save() throws IOException {
+		// One save at a time, taking the state inside, so that an older state
+		// never overwrites a newer one. Updates only wait for the copying.
+		synchronized (saveLock) {
+			byte[] bytes;
+			synchronized (this) {
+				pendingSave = null;
+				if (!dirty) {
+					return;
+				}
+				dirty = false;
+				bytes = new JSONObject().put("version", VERSION).put("accounts", accounts).toString()
+						.getBytes(StandardCharsets.UTF_8);
+			}
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * Saves what is unsaved and stops the background saving.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (null != pendingSave) {
+				pendingSave.cancel(false);
+			}
+		}
+		saver.shutdown();
+		save();
+	}
+
+	/**
+	 * @return The time of a Last-Modified value in epoch ms, Long.MIN_VALUE if
+	 *         it cannot be parsed.
+	 */
+	static long toEpochMillis(String lastModified) {
+		for (DateTimeFormatter formatter : new DateTimeFormatter[] { LAST_MODIFIED_MILLIS,
+				DateTimeFormatter.RFC_1123_DATE_TIME }) {
+			try {
+				return ZonedDateTime.parse(lastModified, formatter).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				// Try the next one.
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+
+	private void saveQuietly() {
+		try {
+			save();
+		} catch (IOException e) {
+			// Tried again with the next change or at exit.
+			synchronized (this) {
+				dirty = true;
+			}
+		}
+	}
+
+	private static String accountKey(String server, String username) {
+		return server + " " + username;
+	}
+}
@@ -0,0 +1,337 @@
+package oy.tol.chatclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TrafficRecorder writes every request the client makes to a binary file: when
+ * it started and how long it took, the method, server and path, request and
+ * response headers, body sizes and optionally the bodies. TrafficReplay sends
+ * a recorded workload again with the original timing.
+ * <p>
+ * The file starts with "O3TR", a version byte, a flags byte and the start time
+ * in epoch ms. Records follow, an exchange record written when the response
+ * code arrives, and for GET /chat a body record when the body has been read.
+ * Numbers are variable length, and strings are written once and then referred
+ * to by their index in a dictionary both ends build the same way, so that
+ * repeated paths and header names take a byte or two. Authorization headers
+ * are never recorded, and ChatHttpClient leaves out the bodies of registration
+ * and user info requests, which carry the password.
+ */
+class TrafficRecorder implements AutoCloseable {
+
+	private static final byte[] MAGIC = { 'O', '3', 'T', 'R' };
+	private static final int VERSION = 1;
+	private static final int FLAG_BODIES = 1;
+	private static final int RECORD_EXCHANGE = 1;
+	private static final int RECORD_BODY = 2;
+	// Strings after this many are written out each time, so that varying header
+	// values do not grow the dictionary without bound.
+	private static final int MAX_DICTIONARY = 4096;
+
+	/**
+	 * One recorded request and its response.
+	 */
+	static class Exchange {
+		long sequence;
+		// Since the start of the recording.
+		long startMicros;
+		// Until the response code, -1 status if there was no response.
+		long durationMicros;
+		String method;
+		String server;
+		String path;
+		int status;
+		Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+		Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+		int requestBodySize;
+		// -1 if not known.
+		long responseBodySize = -1;
+		// Null if bodies were not recorded.
+		byte[] requestBody;
+		byte[] responseBody;
+	}
+
+	private final DataOutputStream out;
+	private final boolean recordBodies;
+	private final long startNanos = System.nanoTime();
+	private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	private long nextSequence = 0;
+	// After a failed write the file ends there, a partial record would garble the rest.
+	private boolean failed = false;
+	// The exchange each thread recorded last, for attaching the response body.
+	private final ThreadLocal<Long> lastExchange = new ThreadLocal<Long>();
+
+	TrafficRecorder(File file, boolean recordBodies) throws IOException {
+		this.recordBodies = recordBodies;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(recordBodies ? FLAG_BODIES : 0);
+		out.writeLong(System.currentTimeMillis());
+	}
+
+	boolean isRecordingBodies() {
+		return recordBodies;
+	}
+
+	/**
+	 * Records a request.
+	 *
+	 * @param startNanos      System.nanoTime() when the request was sent.
+	 * @param requestHeaders  Headers set on the request, Authorization is left out.
+	 * @param requestBody     The body, or null if none or bodies are not recorded.
+	 * @param requestBodySize Size of the body sent.
+	 * @param status          Response code, -1 if the request failed.
+	 * @param responseHeaders Headers of the response, may be null.
+	 */
+	synchronized void recordExchange(long startNanos, String method, String server, String path,
+			Map<String, List<String>> requestHeaders, byte[] requestBody, int requestBodySize, int status,
+			Map<String, List<String>> responseHeaders) {
+		long now = System.nanoTime();
+		long sequence = nextSequence++;
+		lastExchange.set(sequence);
+		if (failed) {
+			return;
+		}
+		try {
+			out.writeByte(RECORD_EXCHANGE);
+			writeNumber(sequence);
+			writeNumber(Math.max(0, TimeUnit.NANOSECONDS.toMicros(startNanos - this.startNanos)));
+			writeNumber(TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+			writeString(method);
+			writeString(server);
+			writeString(path);
+			writeNumber(status + 1);
+			writeHeaders(requestHeaders);
+			writeHeaders(responseHeaders);
+			writeNumber(requestBodySize);
+			boolean withBody = recordBodies && null != requestBody;
+			out.writeBoolean(withBody);
+			if (withBody) {
+				writeNumber(requestBody.length);
+				out.write(requestBody);
+			}
+		} catch (IOException e) {
+			// Recording must not break the client, the file just ends here.
+			failed = true;
+		}
+	}
+
+	/**
+	 * Records the response body of the exchange this thread recorded last.
+	 */
+	synchronized void recordResponseBody(byte[] body) {
+		Long sequence = lastExchange.get();
+		if (null == sequence || failed) {
+			return;
+		}
+		try {
+			out.writeByte(RECORD_BODY);
+			writeNumber(sequence);
+			writeNumber(body.length);
+			out.writeBoolean(recordBodies);
+			if (recordBodies) {
+				out.write(body);
+			}
+		} catch (IOException e) {
+			failed = true;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Reads a recording.
+	 *
+	 * @return The exchanges in the order they were recorded.
+	 * @throws IOException If the file is not a recording or cannot be read. A
+	 *                     recording cut short is read up to where it ends.
+	 */
+	static List<Exchange> read(File file) throws IOException {
+		try (InputStream stream = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+			return new Reader(new DataInputStream(stream)).read();
+		}
+	}
+
+	private void writeHeaders(Map<String, List<String>> headers) throws IOException {
+		int count = 0;
+		if (null != headers) {
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (isRecorded(header.getKey())) {
+					count++;
+				}
+			}
+		}
+		writeNumber(count);
+		if (count > 0) {
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (isRecorded(header.getKey())) {
+					writeString(header.getKey());
+					writeString(String.join(",", header.getValue()));
+				}
+			}
+		}
+	}
+
+	// The status line has a null name, and credentials are not recorded.
+	private static boolean isRecorded(String name) {
+		return null != name && !"Authorization".equalsIgnoreCase(name);
+	}
+
+	private void writeString(String value) throws IOException {
+		Integer index = dictionary.get(value);
+		if (null != index) {
+			writeNumber(index + 1);
+			return;
+		}
+		writeNumber(0);
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeNumber(bytes.length);
+		out.write(bytes);
+		if (dictionary.size() < MAX_DICTIONARY) {
+			dictionary.put(value, dictionary.size());
+		}
+	}
+
+	// Unsigned LEB128, seven bits a byte.
+	private void writeNumber(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static class Reader {
+		private final DataInputStream in;
+		private final List<String> dictionary = new ArrayList<String>();
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		List<Exchange> read() throws IOException {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for (int index = 0; index < MAGIC.length; index++) {
+				if (magic[index] != MAGIC[index]) {
+					throw new IOException("Not a traffic recording");
+				}
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported traffic recording version " + version);
+			}
+			in.readUnsignedByte();
+			in.readLong();
+			List<Exchange> exchanges = new ArrayList<Exchange>();
+			Map<Long, Exchange> bySequence = new HashMap<Long, Exchange>();
+			try {
+				int type;
+				while ((type = in.read()) >= 0) {
+					if (type == RECORD_EXCHANGE) {
+						Exchange exchange = readExchange();
+						exchanges.add(exchange);
+						bySequence.put(exchange.sequence, exchange);
+					} else if (type == RECORD_BODY) {
+						Exchange exchange = bySequence.get(readNumber());
+						int size = (int) readNumber();
+						byte[] body = in.readBoolean() ? readBytes(size) : null;
+						if (null != exchange) {
+							exchange.responseBodySize = size;
+							exchange.responseBody = body;
+						}
+					} else {
+						throw new IOException("Unknown record type " + type + " in traffic recording");
+					}
+				}
+			} catch (EOFException e) {
+				// Cut short, e.g. the client was killed while recording.
+			}
+			return exchanges;
+		}
+
+		private Exchange readExchange() throws IOException {
+			Exchange exchange = new Exchange();
+			exchange.sequence = readNumber();
+			exchange.startMicros = readNumber();
+			exchange.durationMicros = readNumber();
+			exchange.method = readString();
+			exchange.server = readString();
+			exchange.path = readString();
+			exchange.status = (int) readNumber() - 1;
+			readHeaders(exchange.requestHeaders);
+			readHeaders(exchange.responseHeaders);
+			exchange.requestBodySize = (int) readNumber();
+			if (in.readBoolean()) {
+				exchange.requestBody = readBytes((int) readNumber());
+			}
+			String length = exchange.responseHeaders.get("Content-Length");
+			if (null != length) {
+				try {
+					exchange.responseBodySize = Long.parseLong(length.trim());
+				} catch (NumberFormatException e) {
+					// Left unknown.
+				}
+			}
+			return exchange;
+		}
+
+		private void readHeaders(Map<String, String> headers) throws IOException {
+			long count = readNumber();
+			for (long index = 0; index < count; index++) {
+				String name = readString();
+				headers.put(name, readString());
+			}
+		}
+
+		private String readString() throws IOException {
+			int index = (int) readNumber();
+			if (index > 0) {
+				return dictionary.get(index - 1);
+			}
+			String value = new String(readBytes((int) readNumber()), StandardCharsets.UTF_8);
+			if (dictionary.size() < MAX_DICTIONARY) {
+				dictionary.add(value);
+			}
+			return value;
+		}
+
+		private byte[] readBytes(int length) throws IOException {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
+		}
+
+		private long readNumber() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int next = in.readUnsignedByte();
+				value |= (long) (next & 0x7F) << shift;
+				if ((next & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Invalid number in traffic recording");
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package oy.tol.chatclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TrafficReplay sends the requests of a TrafficRecorder recording again, to the
+ * server of the given client, with the recorded gaps between them divided by
+ * the speed. Requests are sent from a pool of threads, so a slow response
+ * does not hold back the ones due after it, and the recorded arrival pattern
+ * is kept. How late each request was sent compared to its schedule is
+ * measured too, as the replay itself can fall behind at high speeds.
+ */
+class TrafficReplay {
+
+	static final double MIN_SPEED = 1;
+	static final double MAX_SPEED = 100;
+
+	private final ChatHttpClient client;
+	private final List<TrafficRecorder.Exchange> exchanges;
+	private final double speed;
+	private final int threads;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram lateness = new LatencyHistogram();
+	private final AtomicLong failed = new AtomicLong();
+	private long elapsedNanos = 0;
+
+	/**
+	 * @param speed   1 for the recorded pace, up to 100 times faster.
+	 * @param threads Most requests in flight at a time.
+	 */
+	TrafficReplay(ChatHttpClient client, List<TrafficRecorder.Exchange> exchanges, double speed, int threads) {
+		if (speed < MIN_SPEED || speed > MAX_SPEED) {
+			throw new IllegalArgumentException("Replay speed must be from " + MIN_SPEED + " to " + MAX_SPEED);
+		}
+		this.client = client;
+		this.exchanges = new ArrayList<TrafficRecorder.Exchange>(exchanges);
+		// Recorded in the order the responses came, replayed in the order sent.
+		this.exchanges.sort((lhs, rhs) -> Long.compare(lhs.startMicros, rhs.startMicros));
+		this.speed = speed;
+		this.threads = threads;
+	}
+
+	/**
+	 * Replays all the requests and waits for their responses.
+	 */
+	void run() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "traffic-replay");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long firstMicros = exchanges.isEmpty() ? 0 : exchanges.get(0).startMicros;
+		long start = System.nanoTime();
+		for (TrafficRecorder.Exchange exchange : exchanges) {
+			long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(exchange.startMicros - firstMicros) / speed);
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			executor.execute(() -> send(exchange, due));
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	private void send(TrafficRecorder.Exchange exchange, long due) {
+		long start = System.nanoTime();
+		lateness.record(start - due);
+		try {
+			int responseCode = client.replay(exchange);
+			if (responseCode >= 400) {
+				failed.incrementAndGet();
+			}
+		} catch (Exception e) {
+			failed.incrementAndGet();
+		}
+		latency.record(System.nanoTime() - start);
+	}
+
+	int getRequestCount() {
+		return exchanges.size();
+	}
+
+	long getFailedCount() {
+		return failed.get();
+	}
+
+	long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return The recorded time from the first request to the last.
+	 */
+	long getRecordedSpanNanos() {
+		if (exchanges.isEmpty()) {
+			return 0;
+		}
+		return TimeUnit.MICROSECONDS
+				.toNanos(exchanges.get(exchanges.size() - 1).startMicros - exchanges.get(0).startMicros);
+	}
+
+	String describe() {
+		return String.format(
+				"Replayed %d requests at %.0fx in %.2f s (recorded %.2f s), %d failed%n"
+						+ "Response p50 %.2f ms, p95 %.2f ms, p99 %.2f ms%n"
+						+ "Sent late by p50 %.2f ms, p99 %.2f ms%n",
+				exchanges.size(), speed, elapsedNanos / 1e9, getRecordedSpanNanos() / 1e9, failed.get(),
+				latency.percentile(0.50) / 1e6, latency.percentile(0.95) / 1e6, latency.percentile(0.99) / 1e6,
+				lateness.percentile(0.50) / 1e6, lateness.percentile(0.99) / 1e6);
+	}
+}
@@ -0,0 +1,190 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * ChannelAnalytics with fixed receive and send times.
+ */
+public class ChannelAnalyticsTests {
+
+    // On a full hour, so that the seconds and minutes slots start at it.
+    private static final long START = Instant.parse("2021-03-01T12:00:00Z").toEpochMilli();
+
+    private static ChatMessage message(String nick, long sentMillis) {
+        return ChatSearchIndexTests.message(nick, "text", sentMillis);
+    }
+
+    private static List<ChatMessage> messages(int count, long sentMillis) {
+        List<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int n = 0; n < count; n++) {
+            messages.add(message("nick", sentMillis));
+        }
+        return messages;
+    }
+
+    private static ChannelAnalytics.NickCount find(List<ChannelAnalytics.NickCount> top, String nick) {
+        for (ChannelAnalytics.NickCount count : top) {
+            if (count.nick.equals(nick)) {
+                return count;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    @DisplayName("Counts leave the minute and the hour as time goes on")
+    void testWindowRollover() {
+        ChannelAnalytics analytics = new ChannelAnalytics();
+        analytics.record("test", messages(5, START - 30000), START);
+        ChannelAnalytics.Summary summary = analytics.summary("test", START);
+        assertEquals(5, summary.total);
+        assertEquals(5, summary.lastMinute);
+        assertEquals(5, summary.lastHour);
+
+        summary = analytics.summary("test", START + 29000);
+        assertEquals(5, summary.lastMinute);
+        summary = analytics.summary("test", START + 30000);
+        assertEquals(0, summary.lastMinute);
+        assertEquals(5, summary.lastHour);
+        // Sent in the minute before START, which leaves the hour at 59 minutes.
+        summary = analytics.summary("test", START + 58 * 60000 + 59999);
+        assertEquals(5, summary.lastHour);
+        summary = analytics.summary("test", START + 59 * 60000);
+        assertEquals(0, summary.lastHour);
+        assertEquals(5, summary.total);
+
+        // Sent a minute later, the same slot of the ring now counts only the new one.
+        analytics.record("test", messages(2, START + 30000), START + 30000);
+        summary = analytics.summary("test", START + 30000);
+        assertEquals(2, summary.lastMinute);
+        assertEquals(7, summary.lastHour);
+
+        // Sent before the hour, or ahead of the receiver's clock.
+        analytics.record("test", messages(3, START - 2 * 3600 * 1000), START + 30000);
+        analytics.record("test", messages(4, START + 3600 * 1000), START + 30000);
+        summary = analytics.summary("test", START + 30000);
+        assertEquals(14, summary.total);
+        assertEquals(6, summary.lastMinute);
+        assertEquals(11, summary.lastHour);
+    }
+
+    @Test
+    @DisplayName("A burst starts at ten messages in ten seconds and ends when they fall below")
+    void testBurstStartAndEnd() {
+        ChannelAnalytics analytics = new ChannelAnalytics();
+        analytics.record("test", messages(9, START), START);
+        assertEquals(0, analytics.summary("test", START).bursts);
+
+        analytics.record("test", List.of(message("nick", START + 500)), START + 500);
+        ChannelAnalytics.Summary summary = analytics.summary("test", START + 500);
+        assertEquals(1, summary.bursts);
+        assertEquals(START + 500, summary.lastBurstMillis);
+
+        // Going on in the next seconds is the same burst.
+        for (int second = 1; second < 10; second++) {
+            analytics.record("test", messages(3, START + second * 1000), START + second * 1000);
+        }
+        assertEquals(1, analytics.summary("test", START + 9000).bursts);
+
+        // Ten quiet seconds end it, and the next ten messages start another.
+        analytics.record("test", List.of(message("nick", START + 20000)), START + 20000);
+        assertEquals(1, analytics.summary("test", START + 20000).bursts);
+        analytics.record("test", messages(9, START + 21000), START + 21000);
+        summary = analytics.summary("test", START + 21000);
+        assertEquals(2, summary.bursts);
+        assertEquals(START + 21000, summary.lastBurstMillis);
+    }
+
+    @Test
+    @DisplayName("A burst must be three times the usual rate of the hour")
+    void testBurstAgainstUsualRate() {
+        ChannelAnalytics analytics = new ChannelAnalytics();
+        // A message a second for an hour, ten in each ten seconds. The first ten
+        // seconds are a burst against the quiet hour before, the rest are not.
+        long time = START;
+        for (; time < START + 3600 * 1000; time += 1000) {
+            analytics.record("test", List.of(message("nick", time)), time);
+        }
+        assertEquals(1, analytics.summary("test", time).bursts);
+        assertEquals(START + 9000, analytics.summary("test", time).lastBurstMillis);
+
+        // 27 in the last ten seconds is below three times the usual 9.9.
+        analytics.record("test", messages(18, time), time);
+        assertEquals(1, analytics.summary("test", time).bursts);
+        analytics.record("test", messages(4, time), time);
+        assertEquals(2, analytics.summary("test", time).bursts);
+        assertEquals(time, analytics.summary("test", time).lastBurstMillis);
+    }
+
+    @Test
+    @DisplayName("A new nick takes over the smallest counter with its count as the error")
+    void testSpaceSavingTakeover() {
+        ChannelAnalytics analytics = new ChannelAnalytics();
+        List<ChatMessage> batch = new ArrayList<ChatMessage>();
+        for (int n = 0; n < 5; n++) {
+            batch.add(message("heavy", START));
+        }
+        for (int n = 1; n < ChannelAnalytics.TOP_NICKS; n++) {
+            batch.add(message("nick" + n, START));
+            if (n <= 3) {
+                batch.add(message("nick" + n, START));
+            }
+        }
+        analytics.record("test", batch, START);
+        assertEquals(ChannelAnalytics.TOP_NICKS, analytics.summary("test", START).topNicks.size());
+
+        analytics.record("test", List.of(message("newcomer", START)), START);
+        List<ChannelAnalytics.NickCount> top = analytics.summary("test", START).topNicks;
+        assertEquals(ChannelAnalytics.TOP_NICKS, top.size());
+        ChannelAnalytics.NickCount newcomer = find(top, "newcomer");
+        assertNotNull(newcomer);
+        assertEquals(2, newcomer.count);
+        assertEquals(1, newcomer.error);
+        assertEquals(5, find(top, "heavy").count);
+        assertEquals(0, find(top, "heavy").error);
+        assertEquals(2, find(top, "nick1").count);
+        assertEquals("heavy", top.get(0).nick);
+
+        // Once the counters of one are gone, the next nick takes over one of two.
+        for (int n = 0; n < ChannelAnalytics.TOP_NICKS; n++) {
+            analytics.record("test", List.of(message("late" + n, START)), START);
+        }
+        top = analytics.summary("test", START).topNicks;
+        ChannelAnalytics.NickCount last = find(top, "late" + (ChannelAnalytics.TOP_NICKS - 1));
+        assertNotNull(last);
+        assertEquals(3, last.count);
+        assertEquals(2, last.error);
+        assertEquals(5, find(top, "heavy").count);
+    }
+
+    @Test
+    @DisplayName("Counts bound the true counts and frequent nicks stay in the top")
+    void testSpaceSavingBounds() {
+        ChannelAnalytics analytics = new ChannelAnalytics();
+        Map<String, Integer> actual = new HashMap<String, Integer>();
+        List<ChatMessage> batch = new ArrayList<ChatMessage>();
+        for (int n = 0; n < 3000; n++) {
+            String nick = n % 5 == 0 ? "frequent" : "nick" + (n * 7919 % 500);
+            actual.merge(nick, 1, Integer::sum);
+            batch.add(message(nick, START));
+        }
+        analytics.record("test", batch, START);
+        List<ChannelAnalytics.NickCount> top = analytics.summary("test", START).topNicks;
+        assertEquals("frequent", top.get(0).nick);
+        for (ChannelAnalytics.NickCount count : top) {
+            int real = actual.get(count.nick);
+            assertTrue(count.count >= real && count.count - count.error <= real, count.nick);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Channel metadata served from the ChannelDirectory, revalidated with a
+ * stand-in server and removed when the server no longer has the channel.
+ */
+public class ChannelDirectoryTests {
+
+    private StandInChatServer server = null;
+
+    @AfterEach
+    public void teardown() {
+        if (null != server) {
+            server.stop();
+        }
+    }
+
+    private ChatHttpClient client() throws Exception {
+        server = StandInChatServer.start();
+        return new ChatHttpClient(new StandInUser(server.getAddress()), null, false);
+    }
+
+    @Test
+    @DisplayName("Entries are fresh for the time to live, and fresh again when revalidated")
+    void testTtlExpiry() throws Exception {
+        ChannelDirectory directory = new ChannelDirectory(100);
+        ChannelDirectory.Entry entry = directory.put("room", "A room", "nick", "\"1\"", null);
+        assertTrue(directory.isFresh(entry));
+        Thread.sleep(150);
+        assertTrue(!directory.isFresh(directory.get("room")));
+
+        ChannelDirectory.Entry fresh = directory.revalidated(directory.get("room"));
+        assertTrue(directory.isFresh(fresh));
+        assertEquals("A room", directory.get("room").description);
+        assertEquals("\"1\"", directory.get("room").etag);
+        directory.setTtlMillis(0);
+        assertTrue(!directory.isFresh(fresh));
+    }
+
+    @Test
+    @DisplayName("A fresh entry is used without asking, a stale one is revalidated with its ETag")
+    void testRevalidation() throws Exception {
+        ChatHttpClient client = client();
+        ChannelDirectory directory = client.getChannelDirectory();
+        assertEquals(200, client.changeChannel("room").getInt("responseCode"));
+        assertEquals(1, server.getChangeChannelCount());
+        assertNotNull(directory.get("room").etag);
+
+        JSONObject cached = client.changeChannel("room");
+        assertEquals(200, cached.getInt("responseCode"));
+        assertEquals("Stand-in channel", cached.getString("description"));
+        assertEquals(1, server.getChangeChannelCount());
+
+        // Stale: the server answers 304 and the cached metadata is used.
+        directory.setTtlMillis(0);
+        JSONObject revalidated = client.changeChannel("room");
+        assertEquals(200, revalidated.getInt("responseCode"));
+        assertEquals("Stand-in channel", revalidated.getString("description"));
+        assertEquals("standin", revalidated.getString("createdBy"));
+        assertEquals(2, server.getChangeChannelCount());
+        assertTrue(directory.describe().contains("1 served from cache, 1 revalidated, 1 fetched"),
+                directory.describe());
+
+        // Changed on the server: the new metadata replaces the entry.
+        server.setDescription("Renamed room");
+        assertEquals("Renamed room", client.changeChannel("room").getString("description"));
+        assertEquals("Renamed room", directory.get("room").description);
+        assertTrue(directory.describe().contains("1 revalidated, 2 fetched"), directory.describe());
+    }
+
+    @Test
+    @DisplayName("A channel the server no longer has is removed from the directory")
+    void testNotFoundRemoves() throws Exception {
+        ChatHttpClient client = client();
+        ChannelDirectory directory = client.getChannelDirectory();
+        assertEquals(200, client.changeChannel("room").getInt("responseCode"));
+        assertEquals(200, client.changeChannel("other").getInt("responseCode"));
+
+        server.removeChannel("room");
+        // Still served while fresh.
+        assertEquals(200, client.changeChannel("room").getInt("responseCode"));
+        directory.setTtlMillis(0);
+        assertEquals(404, client.changeChannel("room").getInt("responseCode"));
+        assertNull(directory.get("room"));
+        assertNotNull(directory.get("other"));
+        assertEquals(1, directory.list().size());
+    }
+}
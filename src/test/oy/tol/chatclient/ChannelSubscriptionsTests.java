@@ -0,0 +1,115 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Merging the new messages of several channels into one stream with
+ * ChannelSubscriptions.merge.
+ */
+public class ChannelSubscriptionsTests {
+
+    private static final long START = 1614600000000L;
+
+    private static List<ChatMessage> messages(String channel, long... sentOffsets) {
+        List<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int index = 0; index < sentOffsets.length; index++) {
+            messages.add(ChatSearchIndexTests.message("nick", channel + " " + index, START + sentOffsets[index]));
+        }
+        return messages;
+    }
+
+    private static List<String> texts(List<ChannelSubscriptions.TaggedMessage> merged) {
+        List<String> texts = new ArrayList<String>();
+        for (ChannelSubscriptions.TaggedMessage tagged : merged) {
+            texts.add(tagged.message.getMessage());
+        }
+        return texts;
+    }
+
+    @Test
+    @DisplayName("Interleaved channels merge in time order, each message tagged with its channel")
+    void testInterleaved() {
+        Map<String, List<ChatMessage>> perChannel = new LinkedHashMap<String, List<ChatMessage>>();
+        perChannel.put("b", messages("b", 1, 4, 5, 9));
+        perChannel.put("a", messages("a", 0, 2, 3));
+        perChannel.put("c", messages("c", 6, 7, 8, 10, 11));
+        List<ChannelSubscriptions.TaggedMessage> merged = ChannelSubscriptions.merge(perChannel);
+        assertEquals(List.of("a 0", "b 0", "a 1", "a 2", "b 1", "b 2", "c 0", "c 1", "c 2", "b 3", "c 3", "c 4"),
+                texts(merged));
+        for (ChannelSubscriptions.TaggedMessage tagged : merged) {
+            assertTrue(tagged.message.getMessage().startsWith(tagged.channel + " "));
+        }
+    }
+
+    @Test
+    @DisplayName("Equal times keep their order within a channel and go by channel key between channels")
+    void testTies() {
+        Map<String, List<ChatMessage>> perChannel = new HashMap<String, List<ChatMessage>>();
+        perChannel.put("gamma", messages("gamma", 5, 5));
+        perChannel.put("main", messages("main", 0, 5, 5, 5));
+        perChannel.put("alpha", messages("alpha", 5, 6));
+        assertEquals(List.of("main 0", "alpha 0", "gamma 0", "gamma 1", "main 1", "main 2", "main 3", "alpha 1"),
+                texts(ChannelSubscriptions.merge(perChannel)));
+    }
+
+    @Test
+    @DisplayName("Channels without new messages are skipped")
+    void testEmpty() {
+        Map<String, List<ChatMessage>> perChannel = new HashMap<String, List<ChatMessage>>();
+        assertTrue(ChannelSubscriptions.merge(perChannel).isEmpty());
+        perChannel.put("empty", new ArrayList<ChatMessage>());
+        perChannel.put("none", null);
+        assertTrue(ChannelSubscriptions.merge(perChannel).isEmpty());
+        List<ChatMessage> only = messages("only", 3, 1);
+        perChannel.put("only", only);
+        // A single channel is taken as it is, not sorted.
+        List<ChannelSubscriptions.TaggedMessage> merged = ChannelSubscriptions.merge(perChannel);
+        assertEquals(2, merged.size());
+        assertSame(only.get(0), merged.get(0).message);
+        assertSame(only.get(1), merged.get(1).message);
+    }
+
+    @Test
+    @DisplayName("Many channels merge like sorting all messages by time and channel")
+    void testManyChannels() {
+        Random random = new Random(41);
+        Map<String, List<ChatMessage>> perChannel = new HashMap<String, List<ChatMessage>>();
+        List<ChannelSubscriptions.TaggedMessage> expected = new ArrayList<ChannelSubscriptions.TaggedMessage>();
+        for (int channel = 0; channel < 50; channel++) {
+            String key = "channel" + channel;
+            long[] offsets = new long[random.nextInt(40)];
+            long sent = random.nextInt(100);
+            for (int index = 0; index < offsets.length; index++) {
+                sent += random.nextInt(3) * 1000;
+                offsets[index] = sent;
+            }
+            List<ChatMessage> messages = messages(key, offsets);
+            perChannel.put(key, messages);
+            for (ChatMessage message : messages) {
+                expected.add(new ChannelSubscriptions.TaggedMessage(key, message));
+            }
+        }
+        // A stable sort keeps the order within each channel.
+        expected.sort(Comparator.comparing((ChannelSubscriptions.TaggedMessage tagged) -> tagged.message, ChatMessage.BY_SENT)
+                .thenComparing(tagged -> tagged.channel));
+        List<ChannelSubscriptions.TaggedMessage> merged = ChannelSubscriptions.merge(perChannel);
+        assertEquals(expected.size(), merged.size());
+        for (int index = 0; index < expected.size(); index++) {
+            assertEquals(expected.get(index).channel, merged.get(index).channel);
+            assertSame(expected.get(index).message, merged.get(index).message);
+        }
+    }
+}
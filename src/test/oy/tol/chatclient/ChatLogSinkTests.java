@@ -0,0 +1,138 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Messages written by ChatLogSink, read back from the log and its rotated
+ * files.
+ */
+public class ChatLogSinkTests {
+
+    private static final long START = 1614600000000L;
+
+    private Path directory = null;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("chatlog");
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static List<ChatMessage> batch(int first, int count) {
+        List<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int n = first; n < first + count; n++) {
+            messages.add(ChatSearchIndexTests.message("nick", "message " + n, START + n));
+        }
+        return messages;
+    }
+
+    // Lines of the log and the rotated logs, in the order the files were written.
+    private List<String> lines() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.sorted().collect(Collectors.toList());
+        }
+        // The current log sorts first, before the rotated ones with a suffix.
+        files.add(files.remove(0));
+        List<String> lines = new ArrayList<String>();
+        for (Path path : files) {
+            lines.addAll(Files.readAllLines(path, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    private static void awaitWritten(ChatLogSink sink, long count) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (sink.getWritten() < count && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, sink.getWritten());
+    }
+
+    @Test
+    @DisplayName("Close writes everything queued")
+    void testCloseFlushes() throws Exception {
+        Path file = directory.resolve("chat.log");
+        ChatLogSink sink = new ChatLogSink(file, ChatLogSink.SyncPolicy.BATCH);
+        List<ChatMessage> reused = new ArrayList<ChatMessage>();
+        for (int n = 0; n < 10; n++) {
+            reused.clear();
+            reused.addAll(batch(n * 1000, 1000));
+            sink.log(n % 2 == 0 ? null : "other", reused);
+        }
+        sink.close();
+        assertEquals(10000, sink.getWritten());
+        assertEquals(0, sink.getDropped());
+
+        List<String> lines = lines();
+        assertEquals(10000, lines.size());
+        for (int n = 0; n < lines.size(); n++) {
+            JSONObject line = new JSONObject(lines.get(n));
+            assertEquals("message " + n, line.getString("message"));
+            assertEquals((n / 1000) % 2 == 0 ? "main" : "other", line.getString("channel"));
+        }
+        sink.log(null, batch(0, 1));
+        assertEquals(10000, sink.getWritten());
+    }
+
+    @Test
+    @DisplayName("A full log is rotated and nothing is lost")
+    void testRotation() throws Exception {
+        Path file = directory.resolve("chat.log");
+        ChatLogSink sink = new ChatLogSink(file, ChatLogSink.SyncPolicy.NONE, 2000, ChatLogSink.DEFAULT_MAX_AGE);
+        for (int n = 0; n < 5; n++) {
+            sink.log("test", batch(n * 30, 30));
+            awaitWritten(sink, (n + 1) * 30);
+        }
+        sink.close();
+
+        try (Stream<Path> list = Files.list(directory)) {
+            assertEquals(5, list.count());
+        }
+        List<String> lines = lines();
+        assertEquals(150, lines.size());
+        for (int n = 0; n < lines.size(); n++) {
+            assertEquals("message " + n, new JSONObject(lines.get(n)).getString("message"));
+        }
+        assertTrue(Files.size(file) > 0);
+    }
+
+    @Test
+    @DisplayName("An old log is rotated when the client starts")
+    void testRotationOfExisting() throws Exception {
+        Path file = directory.resolve("chat.log");
+        Files.write(file, new byte[4000]);
+        ChatLogSink sink = new ChatLogSink(file, ChatLogSink.SyncPolicy.INTERVAL, 2000, ChatLogSink.DEFAULT_MAX_AGE);
+        sink.log("test", batch(0, 3));
+        sink.close();
+        assertEquals(3, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+        try (Stream<Path> list = Files.list(directory)) {
+            assertEquals(2, list.count());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+import org.json.JSONException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decoding GET /chat bodies with ChatMessageDecoder, valid and malformed.
+ */
+public class ChatMessageDecoderTests {
+
+    private static final String SENT = "\"sent\":\"2021-03-01T12:00:00.000Z\"";
+
+    private static List<ChatMessage> decode(String body) {
+        return ChatMessageDecoder.decodeSequential(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String object(String user, String message) {
+        return "{\"user\":\"" + user + "\",\"message\":\"" + message + "\"," + SENT + "}";
+    }
+
+    // An array of numbered messages, large enough to be decoded in parallel chunks.
+    private static String large() {
+        StringBuilder body = new StringBuilder("[");
+        for (int n = 0; body.length() < ChatMessageDecoder.PARALLEL_THRESHOLD_BYTES * 2; n++) {
+            if (n > 0) {
+                body.append(",\n");
+            }
+            body.append("{\"user\":\"nick\",\"message\":\"message ").append(n)
+                    .append("\",\"sent\":\"2021-03-01T12:00:").append(String.format("%02d", n % 60)).append("Z\"}");
+        }
+        return body.append("]").toString();
+    }
+
+    @Test
+    @DisplayName("Escapes in the strings are decoded")
+    void testEscapes() {
+        List<ChatMessage> messages = decode("[" + object("n\\u00e4ck", "\\\"quoted\\\" back\\\\slash\\/ tab\\tline\\n") + "]");
+        assertEquals(1, messages.size());
+        assertEquals("näck", messages.get(0).getNick());
+        assertEquals("\"quoted\" back\\slash/ tab\tline\n", messages.get(0).getMessage());
+    }
+
+    @Test
+    @DisplayName("Surrogate pairs decode the same escaped and as UTF-8")
+    void testSurrogatePairs() {
+        List<ChatMessage> escaped = decode("[" + object("nick", "smile \\ud83d\\ude00") + "]");
+        List<ChatMessage> raw = decode("[" + object("nick", "smile 😀") + "]");
+        assertEquals("smile 😀", escaped.get(0).getMessage());
+        assertEquals("smile 😀", raw.get(0).getMessage());
+        assertEquals(raw.get(0).fingerprint(), escaped.get(0).fingerprint());
+    }
+
+    @Test
+    @DisplayName("Empty arrays decode to no messages")
+    void testEmptyArray() {
+        assertTrue(decode("[]").isEmpty());
+        assertTrue(decode(" [ \n ] \r\n").isEmpty());
+    }
+
+    @Test
+    @DisplayName("Other fields are skipped")
+    void testOtherFields() {
+        List<ChatMessage> messages = decode("[{\"extra\":[1,-2.5e3,{\"a\":null},\"]\"],\"user\":\"nick\","
+                + "\"flag\":true,\"message\":\"text\"," + SENT + ",\"n\":0}]");
+        assertEquals("text", messages.get(0).getMessage());
+    }
+
+    @Test
+    @DisplayName("Malformed bodies throw a JSONException")
+    void testMalformed() {
+        String message = object("nick", "text");
+        String[] bodies = {
+            "[" + message + "] trailing",
+            "[" + message + "],",
+            "[" + message + "][]",
+            "[" + message + ",]",
+            "[," + message + "]",
+            "[" + message + ",," + message + "]",
+            "[" + message,
+            "[{\"user\":\"nick\",\"message\":\"text\"," + SENT + ",}]",
+            "[{\"user\":\"nick\",\"message\":\"text\"," + SENT + ",\"extra\":[1,2,]}]",
+            "[{\"user\":\"nick\",\"message\":\"text\"," + SENT + ",\"extra\":}]",
+            "[{\"user\":\"nick\",\"message\":\"text\"," + SENT + ",\"extra\":tru}]",
+            "[{\"user\":\"nick\",\"message\":\"text\"," + SENT + ",\"extra\":[1}]}]",
+            "[{\"user\":\"nick\",\"message\":\"text\"," + SENT + ",\"extra\":01}]",
+            "[" + object("nick", "bad \\x escape") + "]",
+            "[" + object("nick", "short \\u12") + "]",
+            "[" + object("nick", "raw \n newline") + "]",
+            "[{\"user\":\"nick\",\"message\":\"unterminated}]",
+            "[{\"user\":\"nick\"," + SENT + "}]",
+            "{\"user\":\"nick\"}",
+        };
+        for (String body : bodies) {
+            assertThrows(JSONException.class, () -> decode(body), body);
+        }
+    }
+
+    @Test
+    @DisplayName("Messages keep only their own bytes, counted the same before and after decoding")
+    void testOwnBytes() {
+        String padding = "x".repeat(100000);
+        List<ChatMessage> messages = decode("[{\"extra\":\"" + padding + "\",\"user\":\"n\\u00e4ck\",\"message\":\"h\u00e9j\","
+                + SENT + "}," + object("nick", "text") + "]");
+        ChatMessage message = messages.get(0);
+        assertTrue(message.sourceLength() < 32);
+        ChatTimeline timeline = new ChatTimeline();
+        timeline.merge(messages);
+        long estimate = ChatTimeline.estimateBytes(message);
+        assertTrue(estimate > 160 + message.sourceLength());
+        assertEquals("näck", message.getNick());
+        assertEquals("héj", message.getMessage());
+        assertEquals(estimate, ChatTimeline.estimateBytes(message));
+        timeline.evictOldest(0, Long.MAX_VALUE);
+        assertEquals(0, timeline.getBytes());
+    }
+
+    @Test
+    @DisplayName("Sent times agree with OffsetDateTime, and times without an offset are rejected")
+    void testSentTimes() {
+        String[] valid = {
+            "2021-01-01T12:00:00Z",
+            "2021-01-01T12:00:00.1Z",
+            "2021-01-01T12:00:00.123456789Z",
+            "2021-01-01T12:00:00.123+02:00",
+            "2021-01-01T12:00:00.123-05:30",
+            "1969-12-31T23:59:59.999Z",
+            "2020-02-29T00:00:00+18:00",
+        };
+        for (String time : valid) {
+            List<ChatMessage> messages = decode("[{\"user\":\"nick\",\"message\":\"text\",\"sent\":\"" + time + "\"}]");
+            assertEquals(OffsetDateTime.parse(time).toInstant().toEpochMilli(), messages.get(0).sentEpochMillis(), time);
+        }
+        String[] invalid = {
+            "2021-01-01T12:00:00.000",
+            "2021-01-01T12:00:00",
+            "2021-01-01T12:00:00+0200",
+            "2021-01-01T12:00:00.000Zjunk",
+            "2021-01-01T12:00:00.000+02:00x",
+            "2021-02-30T12:00:00Z",
+            "2021-01-01T24:00:00Z",
+            "2021-01-01T12:00:00+19:00",
+        };
+        for (String time : invalid) {
+            assertThrows(JSONException.class,
+                    () -> decode("[{\"user\":\"nick\",\"message\":\"text\",\"sent\":\"" + time + "\"}]"), time);
+            assertThrows(DateTimeParseException.class, () -> OffsetDateTime.parse(time), time);
+        }
+    }
+
+    @Test
+    @DisplayName("Parallel decoding gives the same messages and rejects the same errors")
+    void testParallel() {
+        String body = large();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        List<ChatMessage> sequential = ChatMessageDecoder.decodeSequential(bytes);
+        List<ChatMessage> parallel = ChatMessageDecoder.decodeParallel(bytes, 4);
+        assertEquals(sequential.size(), parallel.size());
+        for (int index = 0; index < sequential.size(); index++) {
+            assertEquals(sequential.get(index).getMessage(), parallel.get(index).getMessage());
+        }
+
+        String trailingComma = body.substring(0, body.length() - 1) + ",]";
+        assertThrows(JSONException.class,
+                () -> ChatMessageDecoder.decodeParallel(trailingComma.getBytes(StandardCharsets.UTF_8), 4));
+        String trailingContent = body + "{}";
+        assertThrows(JSONException.class,
+                () -> ChatMessageDecoder.decodeParallel(trailingContent.getBytes(StandardCharsets.UTF_8), 4));
+    }
+}
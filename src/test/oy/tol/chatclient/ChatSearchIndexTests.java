@@ -0,0 +1,207 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Searches of ChatSearchIndex, checked against the messages they should find.
+ */
+public class ChatSearchIndexTests {
+
+    private static final long START = Instant.parse("2021-03-01T12:00:00Z").toEpochMilli();
+    private static final int MESSAGES = 3000;
+
+    static ChatMessage message(String nick, String text, long sentMillis) {
+        return ChatMessage.from(new JSONObject().put("user", nick).put("message", text)
+                .put("sent", Instant.ofEpochMilli(sentMillis).toString()));
+    }
+
+    // Message n has alpha if divisible by 3, beta by 5 and gamma by 7.
+    private static List<ChatMessage> numbered() {
+        List<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int n = 0; n < MESSAGES; n++) {
+            StringBuilder text = new StringBuilder("message " + n);
+            if (n % 3 == 0) {
+                text.append(" alpha");
+            }
+            if (n % 5 == 0) {
+                text.append(" Beta");
+            }
+            if (n % 7 == 0) {
+                text.append(" gamma,");
+            }
+            messages.add(message("nick" + (n % 4), text.toString(), START + n * 60000L));
+        }
+        return messages;
+    }
+
+    @Test
+    @DisplayName("Words are intersected, newest match first")
+    void testIntersection() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        List<ChatMessage> messages = numbered();
+        index.add("test", messages);
+        assertEquals(MESSAGES, index.size("test"));
+
+        List<ChatMessage> found = index.search("test", "alpha beta gamma", MESSAGES);
+        List<ChatMessage> expected = new ArrayList<ChatMessage>();
+        for (int n = MESSAGES - 1; n >= 0; n--) {
+            if (n % 105 == 0) {
+                expected.add(messages.get(n));
+            }
+        }
+        assertEquals(expected, found);
+
+        found = index.search("test", "ALPHA @nick1", 5);
+        assertEquals(5, found.size());
+        int previous = Integer.MAX_VALUE;
+        for (ChatMessage message : found) {
+            int n = messages.indexOf(message);
+            assertTrue(n < previous);
+            assertTrue(n % 3 == 0 && n % 4 == 1);
+            previous = n;
+        }
+        // The newest message with both is the first one found.
+        int newest = MESSAGES - 1;
+        while (newest % 3 != 0 || newest % 4 != 1) {
+            newest--;
+        }
+        assertSame(messages.get(newest), found.get(0));
+    }
+
+    @Test
+    @DisplayName("Prefixes and time ranges limit the matches")
+    void testPrefixAndTime() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        List<ChatMessage> messages = numbered();
+        index.add(null, messages);
+
+        // Dates are in local time, like the sent times shown.
+        LocalDate firstDay = LocalDate.of(2021, 3, 1);
+        LocalDate thirdDay = LocalDate.of(2021, 3, 3);
+        List<ChatMessage> expected = new ArrayList<ChatMessage>();
+        List<ChatMessage> expectedLater = new ArrayList<ChatMessage>();
+        for (int n = MESSAGES - 1; n >= 0; n--) {
+            LocalDate day = messages.get(n).getSent().toLocalDate();
+            if (n % 7 == 0 && !day.isAfter(firstDay)) {
+                expected.add(messages.get(n));
+            }
+            if (!day.isBefore(thirdDay)) {
+                expectedLater.add(messages.get(n));
+            }
+        }
+        assertEquals(expected, index.search(null, "gam* to:2021-03-01", MESSAGES));
+        assertEquals(expectedLater, index.search("main", "@nic* from:2021-03-03", MESSAGES));
+        assertThrows(IllegalArgumentException.class, () -> index.search(null, "from:yesterday", 1));
+    }
+
+    @Test
+    @DisplayName("Queries without matches return nothing")
+    void testNoMatches() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        index.add("test", numbered());
+        assertTrue(index.search("test", "delta", 10).isEmpty());
+        assertTrue(index.search("test", "zz*", 10).isEmpty());
+        // Both words are there, never in the same message.
+        index.add("test", List.of(message("a", "only left", START), message("b", "only right", START)));
+        assertTrue(index.search("test", "left right", 10).isEmpty());
+        assertTrue(index.search("other", "alpha", 10).isEmpty());
+        assertTrue(index.search("test", "alpha", 0).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Removed channels are no longer found")
+    void testRemove() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        index.add("test", numbered());
+        index.add("kept", List.of(message("a", "alpha", START)));
+        index.remove("test");
+        assertEquals(0, index.size("test"));
+        assertTrue(index.search("test", "alpha", 10).isEmpty());
+        assertEquals(1, index.search("kept", "alpha", 10).size());
+
+        index.add("test", List.of(message("a", "alpha again", START)));
+        assertEquals(1, index.search("test", "alpha", 10).size());
+    }
+
+    @Test
+    @DisplayName("Removed messages are no longer found, the rest still are")
+    void testRemoveMessages() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        List<ChatMessage> messages = numbered();
+        index.add("test", messages);
+        // The first removal leaves the document numbers, the second numbers them again.
+        index.remove("test", messages.subList(0, 1000));
+        assertEquals(MESSAGES - 1000, index.size("test"));
+        index.remove("test", messages.subList(1000, 2000));
+        assertEquals(MESSAGES - 2000, index.size("test"));
+        index.remove("test", List.of(message("nick0", "message 2999", START)));
+        assertEquals(MESSAGES - 2000, index.size("test"));
+
+        ChatSearchIndex reference = new ChatSearchIndex();
+        reference.add("test", messages.subList(2000, MESSAGES));
+        for (String query : new String[] { "alpha", "beta gamma", "@nick1 alph*", "mess*", "to:2021-03-02" }) {
+            assertEquals(reference.search("test", query, MESSAGES), index.search("test", query, MESSAGES), query);
+        }
+        assertTrue(index.search("test", "1999", 10).isEmpty());
+        assertSame(messages.get(2000), index.search("test", "2000", 10).get(0));
+    }
+
+    @Test
+    @DisplayName("Messages removed anywhere are no longer found, before and after numbering again")
+    void testRemoveAnywhere() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        List<ChatMessage> messages = numbered();
+        index.add("test", messages);
+        List<ChatMessage> kept = new ArrayList<ChatMessage>(messages);
+        // The newest, then every other one of the rest in one batch.
+        index.remove("test", List.of(messages.get(MESSAGES - 1)));
+        kept.remove(MESSAGES - 1);
+        assertTrue(index.search("test", "2999", 10).isEmpty());
+        List<ChatMessage> batch = new ArrayList<ChatMessage>();
+        for (int n = 0; n < MESSAGES - 1; n += 2) {
+            batch.add(messages.get(n));
+            kept.remove(messages.get(n));
+        }
+        index.remove("test", batch);
+        assertEquals(kept.size(), index.size("test"));
+        assertTrue(index.search("test", "2998", 10).isEmpty());
+
+        // More than half removed now, the rest are numbered again.
+        index.remove("test", kept.subList(0, 10));
+        kept.subList(0, 10).clear();
+        List<ChatMessage> added = List.of(message("nick9", "message alpha late", START + MESSAGES * 60000L));
+        index.add("test", added);
+        kept.addAll(added);
+
+        ChatSearchIndex reference = new ChatSearchIndex();
+        reference.add("test", kept);
+        assertEquals(kept.size(), index.size("test"));
+        for (String query : new String[] { "alpha", "beta gamma", "@nick1 alph*", "mess*", "late", "@nick9" }) {
+            assertEquals(reference.search("test", query, MESSAGES), index.search("test", query, MESSAGES), query);
+        }
+    }
+
+    @Test
+    @DisplayName("Messages not accepted do not count against the limit")
+    void testAccept() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        index.add("test", numbered());
+        List<ChatMessage> found = index.search("test", "alpha", 10, message -> !message.getNick().equals("nick0"));
+        assertEquals(10, found.size());
+        for (ChatMessage message : found) {
+            assertTrue(!message.getNick().equals("nick0"));
+        }
+    }
+}
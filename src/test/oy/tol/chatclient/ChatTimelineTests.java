@@ -0,0 +1,124 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Merging, deduplication, paging and eviction of ChatTimeline.
+ */
+public class ChatTimelineTests {
+
+    private static final long START = Instant.parse("2021-03-01T12:00:00Z").toEpochMilli();
+
+    private static ChatMessage message(String text, long sentMillis) {
+        return ChatSearchIndexTests.message("nick", text, sentMillis);
+    }
+
+    @Test
+    @DisplayName("Messages are kept in sent order, arrival order within the same time")
+    void testOrder() {
+        ChatTimeline timeline = new ChatTimeline();
+        ChatMessage late = message("late", START + 2000);
+        ChatMessage early = message("early", START);
+        ChatMessage sameFirst = message("same 1", START + 1000);
+        ChatMessage sameSecond = message("same 2", START + 1000);
+        List<ChatMessage> added = timeline.merge(List.of(late, sameFirst, early));
+        assertEquals(List.of(early, sameFirst, late), added);
+        added = timeline.merge(List.of(sameSecond));
+        assertEquals(List.of(sameSecond), added);
+        assertEquals(List.of(early, sameFirst, sameSecond, late), timeline.last(10));
+        assertEquals(List.of(sameSecond, late), timeline.last(2));
+        assertTrue(timeline.merge(null).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Repeated messages are merged once")
+    void testDuplicates() {
+        ChatTimeline timeline = new ChatTimeline();
+        List<ChatMessage> first = new ArrayList<ChatMessage>();
+        for (int n = 0; n < 100; n++) {
+            first.add(message("message " + n, START + n * 1000L));
+        }
+        assertEquals(100, timeline.merge(first).size());
+        // Equal copies, as repeated at an If-Modified-Since boundary.
+        List<ChatMessage> repeated = new ArrayList<ChatMessage>();
+        for (int n = 95; n < 105; n++) {
+            repeated.add(message("message " + n, START + n * 1000L));
+        }
+        List<ChatMessage> added = timeline.merge(repeated);
+        assertEquals(5, added.size());
+        assertEquals("message 100", added.get(0).getMessage());
+        assertEquals(105, timeline.size());
+        // Same text at another time is another message.
+        assertEquals(1, timeline.merge(List.of(message("message 0", START + 500))).size());
+    }
+
+    @Test
+    @DisplayName("A removed message can be merged again")
+    void testRemove() {
+        ChatTimeline timeline = new ChatTimeline();
+        ChatMessage message = message("posted", START);
+        timeline.merge(List.of(message));
+        long bytes = timeline.getBytes();
+        assertTrue(timeline.remove(message));
+        assertFalse(timeline.remove(message));
+        assertEquals(0, timeline.size());
+        assertEquals(0, timeline.getBytes());
+        assertEquals(1, timeline.merge(List.of(message("posted", START))).size());
+        assertEquals(bytes, timeline.getBytes());
+    }
+
+    @Test
+    @DisplayName("Pages are read before and after the one shown")
+    void testPages() {
+        ChatTimeline timeline = new ChatTimeline();
+        List<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int n = 0; n < 25; n++) {
+            messages.add(message("message " + n, START + n * 1000L));
+        }
+        timeline.merge(messages);
+        ChatTimeline.Page latest = timeline.pageBefore(null, 10);
+        assertEquals(messages.subList(15, 25), latest.messages);
+        ChatTimeline.Page older = timeline.pageBefore(latest.first, 10);
+        assertEquals(messages.subList(5, 15), older.messages);
+        ChatTimeline.Page first = timeline.pageBefore(older.first, 10);
+        assertEquals(messages.subList(0, 5), first.messages);
+        ChatTimeline.Page none = timeline.pageBefore(first.first, 10);
+        assertTrue(none.messages.isEmpty());
+        assertNull(none.first);
+        assertEquals(messages.subList(15, 25), timeline.pageAfter(older.last, 10).messages);
+    }
+
+    @Test
+    @DisplayName("The oldest messages are evicted by count and by bytes")
+    void testEvict() {
+        ChatTimeline timeline = new ChatTimeline();
+        List<ChatMessage> messages = new ArrayList<ChatMessage>();
+        for (int n = 0; n < 100; n++) {
+            messages.add(message("message " + n, START + n * 1000L));
+        }
+        timeline.merge(messages);
+        assertEquals(Long.MIN_VALUE, timeline.getEvictedUpTo());
+        assertEquals(messages.subList(0, 40), timeline.evictOldest(60, Long.MAX_VALUE));
+        assertEquals(60, timeline.size());
+        assertSame(messages.get(40), timeline.last(60).get(0));
+        assertEquals(START + 39 * 1000L, timeline.getEvictedUpTo());
+
+        long perMessage = ChatTimeline.estimateBytes(messages.get(99));
+        timeline.evictOldest(Integer.MAX_VALUE, perMessage * 10);
+        assertEquals(10, timeline.size());
+        assertTrue(timeline.getBytes() <= perMessage * 10);
+        // Evicted messages are no longer duplicates.
+        assertEquals(1, timeline.merge(List.of(message("message 0", START))).size());
+    }
+}
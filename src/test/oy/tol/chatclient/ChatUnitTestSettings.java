@@ -24,6 +24,15 @@ public class ChatUnitTestSettings {
     public static String existingUser2 = null;
     public static String existingPassword2 = null;
 
+    // Performance test settings, from the optional performance element.
+    public static int performanceWorkers = 8;
+    public static int performanceDurationSeconds = 5;
+    public static int performanceRounds = 3;
+    public static int performanceWarmupSeconds = 2;
+    public static int performanceGetPercent = 50;
+    public static int performanceTolerancePercent = 50;
+    public static String performanceBaseline = "performance-baseline.properties";
+
     private static ChatHttpClient httpClient = null;
     public static TestDataProvider dataProvider = new TestDataProvider();
 
@@ -57,6 +66,8 @@ public class ChatUnitTestSettings {
             String tmpNum = doc.getElementsByTagName("serverversion").item(0).getTextContent();
             serverVersion = Integer.parseInt(tmpNum);
 
+            readPerformanceSettings(doc);
+
             httpClient = new ChatHttpClient(dataProvider, clientSideCertificate);
 
             NodeList usersList = doc.getElementsByTagName("user");
@@ -104,6 +115,32 @@ public class ChatUnitTestSettings {
                 existingPassword2 != null); 
     }
 
+    private static void readPerformanceSettings(Document doc) {
+        NodeList node = doc.getElementsByTagName("performance");
+        if (node == null || node.getLength() == 0) {
+            return;
+        }
+        Element performance = (Element) node.item(0);
+        performanceWorkers = intSetting(performance, "workers", performanceWorkers);
+        performanceDurationSeconds = intSetting(performance, "durationseconds", performanceDurationSeconds);
+        performanceRounds = Math.max(1, intSetting(performance, "rounds", performanceRounds));
+        performanceWarmupSeconds = intSetting(performance, "warmupseconds", performanceWarmupSeconds);
+        performanceGetPercent = intSetting(performance, "getpercent", performanceGetPercent);
+        performanceTolerancePercent = intSetting(performance, "tolerancepercent", performanceTolerancePercent);
+        NodeList baseline = performance.getElementsByTagName("baseline");
+        if (baseline.getLength() > 0 && baseline.item(0).getTextContent().trim().length() > 0) {
+            performanceBaseline = baseline.item(0).getTextContent().trim();
+        }
+    }
+
+    private static int intSetting(Element parent, String name, int defaultValue) {
+        NodeList node = parent.getElementsByTagName(name);
+        if (node.getLength() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(node.item(0).getTextContent().trim());
+    }
+
     public static class TestDataProvider implements ChatClientDataProvider {
         @Override
         public String getServer() {
@@ -0,0 +1,78 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.SocketTimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Opening, trial requests and closing of CircuitBreaker, on its own and in
+ * ChatHttpClient requests to a StandInChatServer.
+ */
+public class CircuitBreakerTests {
+
+    // Five failures open the circuit for a second at first.
+    private static final int FAILURES_TO_OPEN = 5;
+    private static final long OPEN_MILLIS = 1000;
+
+    private StandInChatServer server = null;
+
+    @AfterEach
+    public void teardown() {
+        if (null != server) {
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("A trial is let through after the open time and settled by its outcome")
+    void testTrial() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        for (int failure = 0; failure < FAILURES_TO_OPEN; failure++) {
+            breaker.acquire();
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only one trial at a time.
+        assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+        // An abandoned trial lets the next request try again at once.
+        breaker.recordAbandoned();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        breaker.acquire();
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordAbandoned();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    @DisplayName("A trial request running out of its deadline does not leave the circuit stuck")
+    void testDeadlineDuringTrial() throws Exception {
+        server = StandInChatServer.start();
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(server.getAddress()), null, false);
+        server.setFailing(503);
+        for (int failure = 0; failure < FAILURES_TO_OPEN; failure++) {
+            assertEquals(503, client.postChatMessage("Failing " + failure, null));
+        }
+        assertThrows(CircuitBreaker.OpenException.class, () -> client.postChatMessage("Not sent", null));
+
+        Thread.sleep(OPEN_MILLIS + 50);
+        server.setFailing(0);
+        server.setDelay(1000);
+        assertThrows(SocketTimeoutException.class, () -> client.postChatMessage("Trial", null, "replay",
+                System.currentTimeMillis(), Deadline.after(200)));
+
+        server.setDelay(0);
+        assertEquals(200, client.postChatMessage("After the trial", null));
+        assertEquals(200, client.postChatMessage("Closed again", null));
+    }
+}
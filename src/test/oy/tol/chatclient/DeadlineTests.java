@@ -0,0 +1,124 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Requests with a Deadline to a stand-in server that stalls before answering,
+ * and the adaptive timeouts learned from its response times.
+ */
+public class DeadlineTests {
+
+    private static final long STALL_MILLIS = 5000;
+    private static final long DEADLINE_MILLIS = 300;
+
+    private StandInChatServer server = null;
+
+    @AfterEach
+    public void teardown() {
+        if (null != server) {
+            server.stop();
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    // The connect and request timeouts of the server in the health report.
+    private static int[] timeouts(String address) {
+        Matcher matcher = Pattern.compile(Pattern.quote(address) + " .* timeouts (\\d+)/(\\d+) ms")
+                .matcher(ChatHttpClient.describeServerHealth());
+        assertTrue(matcher.find(), ChatHttpClient.describeServerHealth());
+        return new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) };
+    }
+
+    @Test
+    @DisplayName("Timeouts are cut to the time left, and an expired deadline fails at once")
+    void testTimeoutMillis() throws Exception {
+        assertEquals(10000, Deadline.NONE.timeoutMillis(10000));
+        assertEquals(Long.MAX_VALUE, Deadline.NONE.remainingMillis());
+        Deadline deadline = Deadline.after(DEADLINE_MILLIS);
+        int timeout = deadline.timeoutMillis(10000);
+        assertTrue(timeout >= 1 && timeout <= DEADLINE_MILLIS, Integer.toString(timeout));
+        assertEquals(100, deadline.timeoutMillis(100));
+
+        Deadline expired = Deadline.after(0);
+        assertTrue(expired.isExpired());
+        assertEquals(0, expired.remainingMillis());
+        assertThrows(SocketTimeoutException.class, expired::check);
+        assertThrows(SocketTimeoutException.class, () -> expired.timeoutMillis(10000));
+    }
+
+    @Test
+    @DisplayName("A fetch from a stalled server fails when the deadline passes, not at the read timeout")
+    void testDeadlineCutsRead() throws Exception {
+        server = StandInChatServer.start();
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(server.getAddress()), null, false);
+        assertEquals(200, client.fetchChatMessages(null, Deadline.after(10000)).responseCode);
+
+        server.setDelay(STALL_MILLIS);
+        long start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class, () -> client.fetchChatMessages(null, Deadline.after(DEADLINE_MILLIS)));
+        long elapsed = elapsedMillis(start);
+        assertTrue(elapsed >= DEADLINE_MILLIS - 10 && elapsed < STALL_MILLIS / 2, Long.toString(elapsed));
+    }
+
+    @Test
+    @DisplayName("The watchdog disconnects a read stalled past the deadline, whatever the read timeout")
+    void testWatchdogDisconnects() throws Exception {
+        server = StandInChatServer.start();
+        server.setDelay(STALL_MILLIS);
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getAddress() + "chat").openConnection();
+        connection.setReadTimeout((int) STALL_MILLIS * 4);
+        Deadline deadline = Deadline.after(DEADLINE_MILLIS);
+        long start = System.nanoTime();
+        try (Deadline.Guard guard = deadline.guard(connection)) {
+            assertThrows(IOException.class, connection::getResponseCode);
+        }
+        long elapsed = elapsedMillis(start);
+        assertTrue(elapsed >= DEADLINE_MILLIS - 10 && elapsed < STALL_MILLIS / 2, Long.toString(elapsed));
+    }
+
+    @Test
+    @DisplayName("Timeouts follow the 99th percentile response time within their floor and ceiling")
+    void testAdaptiveTimeouts() throws Exception {
+        server = StandInChatServer.start();
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(server.getAddress()), null, false);
+        assertEquals(200, client.getChatMessages(null));
+        // Too few samples, the fixed timeouts are used.
+        int[] timeouts = timeouts(server.getAddress());
+        assertEquals(10000, timeouts[0]);
+        assertEquals(30000, timeouts[1]);
+
+        // Fast responses bring both down to their floors.
+        for (int count = 0; count < 25; count++) {
+            assertEquals(200, client.getChatMessages(null));
+        }
+        timeouts = timeouts(server.getAddress());
+        assertEquals(1000, timeouts[0]);
+        assertEquals(2000, timeouts[1]);
+
+        // A slow response among them raises both to four times its time, but
+        // not past the ceilings.
+        server.setDelay(700);
+        assertEquals(200, client.getChatMessages(null));
+        timeouts = timeouts(server.getAddress());
+        assertTrue(timeouts[0] >= 2500 && timeouts[0] <= 10000, Integer.toString(timeouts[0]));
+        assertTrue(timeouts[1] >= 2500 && timeouts[1] <= 30000, Integer.toString(timeouts[1]));
+        assertEquals(timeouts[0], timeouts[1]);
+    }
+}
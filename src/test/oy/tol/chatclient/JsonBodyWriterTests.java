@@ -0,0 +1,144 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bodies written by JsonBodyWriter, checked against the same bodies built with
+ * org.json.
+ */
+public class JsonBodyWriterTests {
+
+    private static final DateTimeFormatter SENT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
+            .withZone(ZoneOffset.UTC);
+
+    private static byte[] bytes(JsonBodyWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        assertEquals(writer.length(), out.size());
+        return out.toByteArray();
+    }
+
+    // The body written with the writer, and what org.json sends for the same
+    // object, read back into objects to compare. org.json escapes some chars
+    // the writer leaves as they are, so the bytes themselves differ.
+    private static void assertSameAsJson(String user, String message) throws IOException {
+        JsonBodyWriter writer = JsonBodyWriter.acquire();
+        try {
+            writer.beginObject().field("user", user).field("message", message).endObject();
+            JSONObject expected = new JSONObject().put("user", user).put("message", message);
+            String sent = new String(expected.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+            String written = new String(bytes(writer), StandardCharsets.UTF_8);
+            assertEquals(new JSONObject(sent).toMap(), new JSONObject(written).toMap(), message);
+        } finally {
+            writer.release();
+        }
+    }
+
+    @Test
+    @DisplayName("Control characters, quotes and backslashes are escaped as org.json reads them")
+    void testEscapes() throws IOException {
+        StringBuilder controls = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            controls.append(c);
+        }
+        assertSameAsJson("nick", controls.toString());
+        assertSameAsJson("\"quoted\"", "back\\slash \\\" \\\\ \"");
+        assertSameAsJson("nick", "</script> \u007f \u0080      ");
+        assertSameAsJson("", "");
+
+        JsonBodyWriter writer = JsonBodyWriter.acquire();
+        writer.beginObject().field("m", "\b\f\n\r\t\u0001\u001f\"\\").endObject();
+        assertEquals("{\"m\":\"\\b\\f\\n\\r\\t\\u0001\\u001f\\\"\\\\\"}",
+                new String(bytes(writer), StandardCharsets.UTF_8));
+        writer.release();
+    }
+
+    @Test
+    @DisplayName("Astral characters are written as four bytes, lone surrogates as in String.getBytes")
+    void testSurrogates() throws IOException {
+        String astral = "smile 😀 and 𝄞";
+        assertSameAsJson("näck", astral);
+        String lone = "high \ud83d alone, low \ude00 alone, at end \ud83d";
+        assertSameAsJson("nick", lone);
+        assertSameAsJson("\ude00\ud83d", "reversed pair");
+
+        JsonBodyWriter writer = JsonBodyWriter.acquire();
+        writer.text(astral + lone);
+        assertArrayEquals((astral + lone).getBytes(StandardCharsets.UTF_8), bytes(writer));
+        writer.release();
+    }
+
+    @Test
+    @DisplayName("Timestamps before 1970 and on leap days are written like DateTimeFormatter does")
+    void testTimestamps() throws IOException {
+        String[] times = {
+            "1970-01-01T00:00:00.000Z",
+            "1969-12-31T23:59:59.999Z",
+            "1900-02-28T12:34:56.789Z",
+            "1900-03-01T00:00:00.000Z",
+            "1600-02-29T00:00:00.001Z",
+            "0001-01-01T00:00:00.000Z",
+            "2000-02-29T23:59:59.999Z",
+            "2020-02-29T12:00:00.000Z",
+            "2021-02-28T23:59:59.999Z",
+            "2021-03-01T00:00:00.000Z",
+            "2024-12-31T23:59:59.999Z",
+            "2100-03-01T00:00:00.000Z",
+            "9999-12-31T23:59:59.999Z",
+        };
+        JsonBodyWriter writer = JsonBodyWriter.acquire();
+        for (String time : times) {
+            long millis = Instant.parse(time).toEpochMilli();
+            writer.reset();
+            writer.beginObject().timestampField("sent", millis).endObject();
+            assertEquals("{\"sent\":\"" + SENT_FORMAT.format(Instant.ofEpochMilli(millis)) + "\"}",
+                    new String(bytes(writer), StandardCharsets.UTF_8), time);
+            assertEquals(time, new JSONObject(new String(bytes(writer), StandardCharsets.UTF_8)).getString("sent"));
+        }
+        // Every day of a leap and a common year, at a time of day before 1970 too.
+        for (long millis = Instant.parse("1967-01-01T01:02:03.004Z").toEpochMilli(); millis < Instant
+                .parse("1973-01-01T00:00:00Z").toEpochMilli(); millis += 86400000L) {
+            writer.reset();
+            writer.beginObject().timestampField("sent", millis).endObject();
+            assertEquals("{\"sent\":\"" + SENT_FORMAT.format(Instant.ofEpochMilli(millis)) + "\"}",
+                    new String(bytes(writer), StandardCharsets.UTF_8));
+        }
+        writer.release();
+    }
+
+    @Test
+    @DisplayName("Bodies larger than the initial buffer are written whole, also by a reused writer")
+    void testLargeBodies() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int n = 0; text.length() < 100000; n++) {
+            text.append("line ").append(n).append(" \"ä€😀\"\n\u0001\\");
+        }
+        for (int round = 0; round < 3; round++) {
+            assertSameAsJson("nick" + round, text.toString());
+        }
+        // Growing at each kind of char near the end of the first buffer.
+        for (int fill = 500; fill < 520; fill++) {
+            for (String tail : new String[] { "ä", "€", "😀", "\u0001", "\"" }) {
+                assertSameAsJson("nick", "x".repeat(fill) + tail.repeat(8));
+            }
+        }
+
+        JsonBodyWriter writer = JsonBodyWriter.acquire();
+        byte[] recorded = text.toString().getBytes(StandardCharsets.UTF_8);
+        writer.bytes(recorded);
+        assertArrayEquals(recorded, bytes(writer));
+        writer.release();
+    }
+}
@@ -0,0 +1,105 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * LongHashSet checked against a java.util.HashSet doing the same operations.
+ */
+public class LongHashSetTests {
+
+    @Test
+    @DisplayName("Duplicates are not added, zero included")
+    void testDuplicates() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.remove(0));
+        assertFalse(set.contains(0));
+        assertFalse(set.remove(0));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    @DisplayName("The set grows and keeps all values")
+    void testGrowth() {
+        LongHashSet set = new LongHashSet();
+        // Values differing only in the high bits, like close fingerprints.
+        for (long value = 1; value <= 100000; value++) {
+            assertTrue(set.add(value << 40));
+        }
+        assertEquals(100000, set.size());
+        for (long value = 1; value <= 100000; value++) {
+            assertTrue(set.contains(value << 40));
+            assertFalse(set.contains((value << 40) + 1));
+        }
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(1L << 40));
+    }
+
+    @Test
+    @DisplayName("Removed values can be added again and others are still found")
+    void testRemoveAndAddAgain() {
+        LongHashSet set = new LongHashSet();
+        List<Long> values = new ArrayList<Long>();
+        for (long value = 1; value <= 1000; value++) {
+            values.add(value * 7919);
+            set.add(value * 7919);
+        }
+        // Removing every other value leaves holes in the probe sequences.
+        for (int index = 0; index < values.size(); index += 2) {
+            assertTrue(set.remove(values.get(index)));
+            assertFalse(set.remove(values.get(index)));
+        }
+        for (int index = 0; index < values.size(); index++) {
+            assertEquals(index % 2 == 1, set.contains(values.get(index)));
+        }
+        for (int index = 0; index < values.size(); index += 2) {
+            assertTrue(set.add(values.get(index)));
+        }
+        assertEquals(values.size(), set.size());
+        for (long value : values) {
+            assertTrue(set.contains(value));
+        }
+    }
+
+    @Test
+    @DisplayName("Random operations give the same results as HashSet")
+    void testRandomOperations() {
+        Random random = new Random(4);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int operation = 0; operation < 200000; operation++) {
+            // A small range, so that values collide and are removed often.
+            long value = random.nextInt(5000) - 100;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.add(value), set.add(value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(value), set.remove(value));
+                    break;
+                default:
+                    assertEquals(expected.contains(value), set.contains(value));
+                    break;
+            }
+            assertEquals(expected.size(), set.size());
+        }
+    }
+}
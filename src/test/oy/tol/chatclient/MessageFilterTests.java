@@ -0,0 +1,30 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Keyword rules of MessageFilter with characters outside ASCII.
+ */
+public class MessageFilterTests {
+
+    private static ChatMessage message(String text) {
+        return ChatSearchIndexTests.message("nick", text, 0);
+    }
+
+    @Test
+    @DisplayName("Keywords with characters outside ASCII match in any case")
+    void testNonAsciiKeywords() {
+        MessageFilter filter = new MessageFilter();
+        filter.add(MessageFilter.RuleType.HIDE, "hyvää päivää");
+        filter.add(MessageFilter.RuleType.HIGHLIGHT, "€uro");
+        filter.add(MessageFilter.RuleType.HIDE, "спам");
+        assertEquals(MessageFilter.Action.HIDE, filter.apply(message("No HYVÄÄ PÄIVÄÄ kaikille")));
+        assertEquals(MessageFilter.Action.HIGHLIGHT, filter.apply(message("Maksoi 5 €uroa")));
+        assertEquals(MessageFilter.Action.HIDE, filter.apply(message("это СПАМ")));
+        assertEquals(MessageFilter.Action.SHOW, filter.apply(message("hyvää paivaa")));
+        assertEquals(MessageFilter.Action.SHOW, filter.apply(message("спа м €ur")));
+    }
+}
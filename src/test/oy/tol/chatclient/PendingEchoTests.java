@@ -0,0 +1,115 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Messages posted the way ChatClient.postMessage does: shown at once as a
+ * pending echo in the history, posted to a stand-in server, and recognized by
+ * nick, text and sent time when the server's copy is fetched.
+ */
+public class PendingEchoTests {
+
+    private static final String TEXT = "\"Hyvää\" päivää \\ 😀";
+
+    private StandInChatServer server = null;
+    private ChatHttpClient client = null;
+    private ChatSearchIndex index = null;
+    private HistoryCache history = null;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = StandInChatServer.start();
+        client = new ChatHttpClient(new StandInUser(server.getAddress()), null, false);
+        index = new ChatSearchIndex();
+        history = new HistoryCache(index, null);
+    }
+
+    @AfterEach
+    public void teardown() {
+        server.stop();
+    }
+
+    // The echo added to the history, as postMessage adds and prints it.
+    private ChatMessage echo(String nick, String text, long sentMillis) {
+        ChatMessage echo = ChatMessage.pending(nick, text, sentMillis);
+        assertEquals(List.of(echo), history.merge(null, List.of(echo)));
+        assertTrue(echo.isPending());
+        return echo;
+    }
+
+    // Messages of the next fetch that are new to the history, the ones printed.
+    private List<ChatMessage> fetchNew() throws Exception {
+        ChatFetchResult result = client.fetchChatMessages(null, Deadline.NONE);
+        assertEquals(200, result.responseCode);
+        return history.merge(null, result.messages);
+    }
+
+    @Test
+    @DisplayName("The server's copy of a posted message is not printed or kept again")
+    void testConfirmedThenFetched() throws Exception {
+        long sent = System.currentTimeMillis();
+        ChatMessage echo = echo("nick", TEXT, sent);
+        assertEquals(200, client.postChatMessage(TEXT, null, "nick", sent));
+        echo.confirm();
+
+        assertTrue(fetchNew().isEmpty());
+        assertEquals(1, history.timeline(null).size());
+        assertSame(echo, history.timeline(null).last(1).get(0));
+        assertFalse(echo.isPending());
+        assertEquals(List.of(echo), index.search(null, "päivää", 10));
+    }
+
+    @Test
+    @DisplayName("The copy fetched before the post returns is recognized too")
+    void testFetchedWhilePending() throws Exception {
+        long sent = System.currentTimeMillis();
+        ChatMessage echo = echo("nick", TEXT, sent);
+        assertEquals(200, client.postChatMessage(TEXT, null, "nick", sent));
+        // An automatic fetch gets the copy while the echo is still pending.
+        assertTrue(fetchNew().isEmpty());
+        echo.confirm();
+        assertTrue(fetchNew().isEmpty());
+        assertEquals(1, history.timeline(null).size());
+    }
+
+    @Test
+    @DisplayName("Only the same nick, text and sent time count as the same message")
+    void testOtherMessagesKept() throws Exception {
+        long sent = System.currentTimeMillis();
+        echo("nick", TEXT, sent);
+        assertEquals(200, client.postChatMessage(TEXT, null, "nick", sent));
+        assertEquals(200, client.postChatMessage(TEXT, null, "nick", sent + 1));
+        assertEquals(200, client.postChatMessage(TEXT, null, "other", sent));
+        assertEquals(200, client.postChatMessage(TEXT + " ", null, "nick", sent));
+
+        List<ChatMessage> printed = fetchNew();
+        assertEquals(3, printed.size());
+        assertEquals(4, history.timeline(null).size());
+        assertTrue(fetchNew().isEmpty());
+    }
+
+    @Test
+    @DisplayName("A message the server did not accept is removed from the history and the index")
+    void testRejectedRemoved() throws Exception {
+        long sent = System.currentTimeMillis();
+        ChatMessage echo = echo("nick", TEXT, sent);
+        server.setFailing(400);
+        assertEquals(400, client.postChatMessage(TEXT, null, "nick", sent));
+        assertTrue(history.remove(null, echo));
+        assertEquals(0, history.timeline(null).size());
+        assertTrue(index.search(null, "päivää", 10).isEmpty());
+
+        server.setFailing(0);
+        assertTrue(fetchNew().isEmpty());
+    }
+}
@@ -0,0 +1,219 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the client's throughput and latency with concurrent GET and POST
+ * requests against StandInChatServer, and compares the results with the
+ * baseline file kept in the repository. The results of each run are written to
+ * target/performance-results.properties; a run with
+ * -Dperformance.updatebaseline=true writes them to the baseline instead of
+ * comparing. Workers, duration, GET/POST mix, tolerance and the baseline file
+ * are set in the performance element of the test config XML.
+ */
+public class PerformanceTests {
+
+    // Latencies this close to the baseline are not regressions however large
+    // the relative change, timer and scheduling noise is about this much.
+    private static final double LATENCY_SLACK_MILLIS = 1.0;
+    private static final File RESULTS_FILE = new File("target", "performance-results.properties");
+
+    private static StandInChatServer server = null;
+
+    @BeforeAll
+    @DisplayName("Setting up the performance test environment")
+    public static void initialize() throws IOException {
+        // The stand-in server is used whatever the config says, so an unreadable
+        // config only means the default performance settings are used.
+        if (!ChatUnitTestSettings.readSettingsXML()) {
+            System.out.println("Using default performance test settings");
+        }
+        server = StandInChatServer.start();
+        System.out.println("Initializing PerformanceTests against " + server.getAddress());
+    }
+
+    @AfterAll
+    public static void teardown() {
+        if (null != server) {
+            server.stop();
+        }
+        System.out.println("Finished PerformanceTests.");
+    }
+
+    @Test
+    @DisplayName("Throughput and latency of concurrent gets and posts")
+    void testThroughputAndLatency() throws Exception {
+        final int workers = ChatUnitTestSettings.performanceWorkers;
+        final int getPercent = ChatUnitTestSettings.performanceGetPercent;
+        final int rounds = ChatUnitTestSettings.performanceRounds;
+        System.out.println("Running " + workers + " workers, " + getPercent + " % gets, " + rounds + " rounds of "
+                + ChatUnitTestSettings.performanceDurationSeconds + " s");
+
+        // Warm up the JIT and connections first, then measure. The best value of
+        // each metric over the rounds is used, as noise only makes things slower.
+        runWorkload(workers, getPercent, ChatUnitTestSettings.performanceWarmupSeconds);
+        Properties measured = new Properties();
+        for (int round = 0; round < rounds; round++) {
+            Workload result = runWorkload(workers, getPercent, ChatUnitTestSettings.performanceDurationSeconds);
+            assertTrue(result.errors.get() == 0, () -> result.errors.get() + " requests failed");
+            System.out.println(result.get.describe("GET "));
+            System.out.println(result.post.describe("POST"));
+            Properties roundResult = new Properties();
+            result.get.store(roundResult, "get");
+            result.post.store(roundResult, "post");
+            for (String key : roundResult.stringPropertyNames()) {
+                double value = Double.parseDouble(roundResult.getProperty(key));
+                String best = measured.getProperty(key);
+                boolean higherIsBetter = key.endsWith(".throughput");
+                if (null == best || (higherIsBetter ? value > Double.parseDouble(best)
+                        : value < Double.parseDouble(best))) {
+                    measured.setProperty(key, roundResult.getProperty(key));
+                }
+            }
+        }
+        measured.setProperty("workers", Integer.toString(workers));
+        measured.setProperty("getpercent", Integer.toString(getPercent));
+        System.out.println("Best of the rounds: " + new TreeMap<Object, Object>(measured));
+        RESULTS_FILE.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(RESULTS_FILE)) {
+            measured.store(out, "Performance test results");
+        }
+
+        File baselineFile = new File(ChatUnitTestSettings.performanceBaseline);
+        if (Boolean.getBoolean("performance.updatebaseline")) {
+            try (OutputStream out = new FileOutputStream(baselineFile)) {
+                measured.store(out, "Performance test baseline, compared with by PerformanceTests");
+            }
+            System.out.println("Wrote a new baseline to " + baselineFile.getAbsolutePath());
+            return;
+        }
+        // Without a baseline to compare with, passing would prove nothing.
+        String update = " Review " + RESULTS_FILE.getPath() + " and rerun with -Dperformance.updatebaseline=true"
+                + " to make those numbers the baseline.";
+        if (!baselineFile.exists()) {
+            fail("No performance baseline " + baselineFile.getAbsolutePath() + "." + update);
+        }
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(baselineFile)) {
+            baseline.load(in);
+        }
+        if (!measured.getProperty("workers").equals(baseline.getProperty("workers"))
+                || !measured.getProperty("getpercent").equals(baseline.getProperty("getpercent"))) {
+            fail("The baseline " + baselineFile.getPath() + " was measured with " + baseline.getProperty("workers")
+                    + " workers and " + baseline.getProperty("getpercent") + " % gets, not " + workers + " and "
+                    + getPercent + "." + update);
+        }
+
+        double tolerance = ChatUnitTestSettings.performanceTolerancePercent / 100.0;
+        List<String> regressions = new ArrayList<String>();
+        for (String op : new String[] { "get", "post" }) {
+            double throughput = Double.parseDouble(measured.getProperty(op + ".throughput"));
+            double baseThroughput = Double.parseDouble(baseline.getProperty(op + ".throughput"));
+            if (throughput < baseThroughput * (1 - tolerance)) {
+                regressions.add(String.format("%s throughput %.1f/s, baseline %.1f/s", op, throughput, baseThroughput));
+            }
+            for (String percentile : new String[] { "p50", "p95" }) {
+                String key = op + "." + percentile;
+                double millis = Double.parseDouble(measured.getProperty(key));
+                double baseMillis = Double.parseDouble(baseline.getProperty(key));
+                if (millis > baseMillis * (1 + tolerance) + LATENCY_SLACK_MILLIS) {
+                    regressions.add(String.format("%s %.2f ms, baseline %.2f ms", key, millis, baseMillis));
+                }
+            }
+        }
+        if (!regressions.isEmpty()) {
+            fail("Performance regressed more than " + ChatUnitTestSettings.performanceTolerancePercent + " %: "
+                    + String.join("; ", regressions));
+        }
+    }
+
+    private Workload runWorkload(int workers, int getPercent, int seconds) throws InterruptedException {
+        Workload workload = new Workload();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> threads = new ArrayList<Thread>(workers);
+        for (int count = 0; count < workers; count++) {
+            final String user = "perf" + count;
+            Thread thread = new Thread(() -> work(workload, user, getPercent, end), "perf-worker-" + count);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        workload.seconds = seconds;
+        return workload;
+    }
+
+    // Each worker has its own client, as a client posts one message at a time.
+    private void work(Workload workload, String user, int getPercent, long end) {
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(server.getAddress(), user), null, false);
+        int sequence = 0;
+        while (System.nanoTime() < end) {
+            boolean get = ThreadLocalRandom.current().nextInt(100) < getPercent;
+            long start = System.nanoTime();
+            try {
+                int code = get ? client.getChatMessages(null)
+                        : client.postChatMessage("Performance test message " + sequence++, null);
+                if (code >= 200 && code < 300) {
+                    (get ? workload.get : workload.post).record(System.nanoTime() - start);
+                } else {
+                    workload.errors.incrementAndGet();
+                }
+            } catch (Exception e) {
+                workload.errors.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Workload {
+        final Operation get = new Operation();
+        final Operation post = new Operation();
+        final AtomicLong errors = new AtomicLong();
+        int seconds;
+
+        private class Operation {
+            final LatencyHistogram latency = new LatencyHistogram();
+
+            void record(long nanos) {
+                latency.record(nanos);
+            }
+
+            double throughput() {
+                return seconds > 0 ? latency.getCount() / (double) seconds : 0;
+            }
+
+            void store(Properties properties, String op) {
+                properties.setProperty(op + ".throughput", String.format(Locale.ROOT, "%.1f", throughput()));
+                properties.setProperty(op + ".p50", String.format(Locale.ROOT, "%.3f", latency.percentile(0.50) / 1e6));
+                properties.setProperty(op + ".p95", String.format(Locale.ROOT, "%.3f", latency.percentile(0.95) / 1e6));
+                properties.setProperty(op + ".p99", String.format(Locale.ROOT, "%.3f", latency.percentile(0.99) / 1e6));
+            }
+
+            String describe(String op) {
+                return String.format("%s %.1f req/s, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms", op, throughput(),
+                        latency.percentile(0.50) / 1e6, latency.percentile(0.95) / 1e6,
+                        latency.percentile(0.99) / 1e6);
+            }
+        }
+    }
+}
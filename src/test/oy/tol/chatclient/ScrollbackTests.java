@@ -0,0 +1,149 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Paging through a channel whose older messages have been evicted from the
+ * HistoryCache, with a loader standing in for the server.
+ */
+public class ScrollbackTests {
+
+    private static final long START = Instant.parse("2021-03-01T12:00:00Z").toEpochMilli();
+    private static final int MESSAGES = 100;
+    private static final int MAX_MESSAGES = 30;
+    private static final int ROWS = 7;
+
+    private final List<ChatMessage> server = new ArrayList<ChatMessage>();
+    private int loads = 0;
+
+    private HistoryCache filledCache(ChatSearchIndex index) {
+        for (int n = 0; n < MESSAGES; n++) {
+            server.add(ChatSearchIndexTests.message("nick", "message " + n, START + n * 1000L));
+        }
+        HistoryCache cache = new HistoryCache(MAX_MESSAGES, Long.MAX_VALUE, 4, index, (channel, consumer) -> {
+            loads++;
+            for (ChatMessage message : server) {
+                // Copies, as a fetch from the server would give.
+                consumer.accept(ChatSearchIndexTests.message(message.getNick(), message.getMessage(),
+                        message.sentEpochMillis()));
+            }
+        });
+        for (ChatMessage message : server) {
+            cache.merge("test", List.of(message));
+        }
+        return cache;
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        List<String> texts = new ArrayList<String>();
+        for (ChatMessage message : messages) {
+            texts.add(message.getMessage());
+        }
+        return texts;
+    }
+
+    @Test
+    @DisplayName("Paging back past the messages in memory fetches the evicted ones a few pages at a time")
+    void testOlderThanCached() throws Exception {
+        HistoryCache cache = filledCache(null);
+        assertTrue(cache.getMessageCount() <= MAX_MESSAGES);
+        int window = ROWS * Scrollback.FETCH_PAGES;
+        int missing = MESSAGES - cache.getMessageCount();
+
+        Scrollback scrollback = new Scrollback(cache, "test", ROWS);
+        List<ChatMessage> page = scrollback.latest();
+        List<ChatMessage> shown = new ArrayList<ChatMessage>(page);
+        assertEquals(0, loads);
+        while (!scrollback.atStart()) {
+            page = scrollback.older();
+            assertTrue(!page.isEmpty());
+            shown.addAll(0, page);
+        }
+        assertEquals((missing + window - 1) / window, loads);
+        assertEquals(texts(server), texts(shown));
+        assertTrue(scrollback.older().isEmpty());
+
+        // Back to the newest, through the fetched pages and the timeline.
+        int next = page.size();
+        page = scrollback.newer();
+        assertEquals("message " + next, page.get(0).getMessage());
+        while (!page.get(page.size() - 1).getMessage().equals("message 99")) {
+            page = scrollback.newer();
+        }
+        assertEquals(ROWS, page.size());
+    }
+
+    @Test
+    @DisplayName("The latest page of a dropped channel is fetched again")
+    void testLatestOfDropped() throws Exception {
+        HistoryCache cache = filledCache(null);
+        cache.shrink();
+        cache.timeline("other");
+        cache.shrink();
+        assertEquals(0, cache.timeline("test").size());
+
+        Scrollback scrollback = new Scrollback(cache, "test", ROWS);
+        List<ChatMessage> page = scrollback.latest();
+        assertEquals(texts(server.subList(MESSAGES - ROWS, MESSAGES)), texts(page));
+        assertEquals(texts(server.subList(MESSAGES - 2 * ROWS, MESSAGES - ROWS)), texts(scrollback.older()));
+    }
+
+    @Test
+    @DisplayName("Messages before one are read in a bounded window")
+    void testBefore() throws Exception {
+        HistoryCache cache = filledCache(null);
+        ChatMessage anchor = ChatSearchIndexTests.message("nick", "message 50", START + 50 * 1000L);
+        assertEquals(texts(server.subList(45, 50)), texts(cache.before("test", anchor, 5)));
+        assertEquals(1, loads);
+
+        // Sent at the same time, before it on the server.
+        ChatMessage sameTime = ChatSearchIndexTests.message("nick", "same time", START + 50 * 1000L);
+        server.add(50, sameTime);
+        assertEquals(List.of("message 49", "same time"), texts(cache.before("test", anchor, 2)));
+
+        // In memory, not fetched again.
+        ChatMessage newest = server.get(MESSAGES);
+        assertEquals(texts(server.subList(MESSAGES - 3, MESSAGES)), texts(cache.before("test", newest, 3)));
+        assertEquals(2, loads);
+        assertTrue(cache.before("test", server.get(0), 5).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Messages missing from an earlier session are not fetched for the newest page")
+    void testMissingFromEarlier() throws Exception {
+        HistoryCache cache = filledCache(null);
+        cache.markMissing("restored", START + MESSAGES * 1000L);
+        assertTrue(cache.isMissingOnlyFromEarlier("restored"));
+        cache.merge("restored", List.of(ChatSearchIndexTests.message("nick", "new", START + MESSAGES * 1000L + 1)));
+        Scrollback scrollback = new Scrollback(cache, "restored", ROWS);
+        assertEquals(List.of("new"), texts(scrollback.latestInMemory()));
+        assertEquals(0, loads);
+
+        // Paging back still fetches them.
+        assertEquals(texts(server.subList(MESSAGES - ROWS, MESSAGES)), texts(scrollback.older()));
+        assertEquals(1, loads);
+
+        // Evicted in this session too.
+        assertTrue(!cache.isMissingOnlyFromEarlier("test"));
+        cache.markMissing("test", START);
+        assertTrue(!cache.isMissingOnlyFromEarlier("test"));
+    }
+
+    @Test
+    @DisplayName("Evicted messages are removed from the search index")
+    void testEvictedNotIndexed() {
+        ChatSearchIndex index = new ChatSearchIndex();
+        HistoryCache cache = filledCache(index);
+        assertEquals(cache.timeline("test").size(), index.size("test"));
+        assertTrue(index.search("test", "message 0", 10).isEmpty());
+        assertEquals(1, index.search("test", "message 99", 10).size());
+    }
+}
@@ -0,0 +1,109 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The ring buffer of ServerDiagnostics, and error bodies from a stand-in
+ * server recorded in it.
+ */
+public class ServerDiagnosticsTests {
+
+    private StandInChatServer server = null;
+
+    @AfterEach
+    public void teardown() {
+        if (null != server) {
+            server.stop();
+        }
+    }
+
+    private static void assertMessages(List<ServerDiagnostics.Entry> entries, int first, int last) {
+        assertEquals(last - first + 1, entries.size());
+        for (int index = 0; index < entries.size(); index++) {
+            assertEquals("error " + (first + index), entries.get(index).message);
+        }
+    }
+
+    // The entry recorded for a GET /chat answered with 400 and the body. Not a
+    // 5xx code, which would open the circuit breaker of the server.
+    private ServerDiagnostics.Entry recordBody(String body) throws Exception {
+        if (null == server) {
+            server = StandInChatServer.start();
+        }
+        server.setFailing(400, body);
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(server.getAddress()), null, false);
+        assertEquals(400, client.getChatMessages(null));
+        List<ServerDiagnostics.Entry> entries = client.getDiagnostics().getEntries();
+        assertEquals(1, entries.size());
+        assertEquals(400, entries.get(0).status);
+        assertEquals("GET " + server.getAddress() + "chat", entries.get(0).endpoint);
+        return entries.get(0);
+    }
+
+    @Test
+    @DisplayName("Entries are returned oldest first, before and after the buffer wraps around")
+    void testWraparound() {
+        ServerDiagnostics diagnostics = new ServerDiagnostics(4);
+        assertTrue(diagnostics.getEntries().isEmpty());
+        for (int n = 0; n < 3; n++) {
+            diagnostics.record("GET /chat", 500, "error " + n);
+        }
+        assertMessages(diagnostics.getEntries(), 0, 2);
+        diagnostics.record("GET /chat", 500, "error 3");
+        assertMessages(diagnostics.getEntries(), 0, 3);
+        diagnostics.record("GET /chat", 500, "error 4");
+        assertMessages(diagnostics.getEntries(), 1, 4);
+        for (int n = 5; n < 11; n++) {
+            diagnostics.record("GET /chat", 500, "error " + n);
+        }
+        assertMessages(diagnostics.getEntries(), 7, 10);
+        assertEquals(11, diagnostics.getRecordedCount());
+
+        ServerDiagnostics single = new ServerDiagnostics(1);
+        single.record("GET /chat", 503, "error 0");
+        single.record("GET /chat", 503, "error 1");
+        assertMessages(single.getEntries(), 1, 1);
+        assertEquals(2, single.getRecordedCount());
+    }
+
+    @Test
+    @DisplayName("Error bodies are kept on one line, whole up to MAX_MESSAGE_BYTES")
+    void testShortBodies() throws Exception {
+        assertEquals("Not found here", recordBody("  Not\tfound\r\n\n here \n").message);
+        assertEquals("", recordBody(null).message);
+        String exact = "x".repeat(ServerDiagnostics.MAX_MESSAGE_BYTES);
+        assertEquals(exact, recordBody(exact).message);
+    }
+
+    @Test
+    @DisplayName("Longer error bodies are cut at MAX_MESSAGE_BYTES, not in the middle of a char")
+    void testTruncation() throws Exception {
+        String longer = "y".repeat(ServerDiagnostics.MAX_MESSAGE_BYTES + 1);
+        assertEquals("y".repeat(ServerDiagnostics.MAX_MESSAGE_BYTES) + "...", recordBody(longer).message);
+
+        // A two, three and four byte char across the limit at each position.
+        for (String wide : new String[] { "ä", "€", "😀" }) {
+            int wideBytes = wide.getBytes(StandardCharsets.UTF_8).length;
+            for (int shift = 0; shift < wideBytes; shift++) {
+                String body = "z".repeat(ServerDiagnostics.MAX_MESSAGE_BYTES - shift) + wide + "tail";
+                String message = recordBody(body).message;
+                assertTrue(message.endsWith("..."), message);
+                String kept = message.substring(0, message.length() - 3);
+                assertFalse(kept.contains("�"), wide + " " + shift);
+                assertTrue(body.startsWith(kept), wide + " " + shift);
+                int keptBytes = kept.getBytes(StandardCharsets.UTF_8).length;
+                assertTrue(keptBytes <= ServerDiagnostics.MAX_MESSAGE_BYTES
+                        && keptBytes > ServerDiagnostics.MAX_MESSAGE_BYTES - wideBytes, Integer.toString(keptBytes));
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Endpoint selection of ServerPool from recorded latencies and failures, and
+ * failing over between two stand-in servers.
+ */
+public class ServerPoolTests {
+
+    private static final List<String> SERVERS = List.of("https://a/", "https://b/", "https://c/");
+
+    private ServerPool pool = null;
+    private StandInChatServer failing = null;
+    private StandInChatServer working = null;
+
+    @AfterEach
+    public void teardown() {
+        if (null != pool) {
+            pool.close();
+        }
+        if (null != failing) {
+            failing.stop();
+        }
+        if (null != working) {
+            working.stop();
+        }
+    }
+
+    private static long millis(double millis) {
+        return (long) (millis * 1000000);
+    }
+
+    @Test
+    @DisplayName("The fastest endpoint is selected, one without samples first")
+    void testSelection() {
+        pool = new ServerPool(SERVERS);
+        assertEquals("https://a/", pool.select());
+        pool.recordSuccess("https://a/", millis(30));
+        assertEquals("https://b/", pool.select());
+        pool.recordSuccess("https://b/", millis(10));
+        pool.recordSuccess("https://c/", millis(20));
+        assertEquals("https://b/", pool.select());
+        assertEquals("https://c/", pool.selectOtherThan("https://b/"));
+        // Not in the pool, ignored.
+        pool.recordSuccess("https://d/", millis(1));
+        assertEquals("https://b/", pool.select());
+        assertThrows(IllegalArgumentException.class, () -> new ServerPool(List.of()));
+    }
+
+    @Test
+    @DisplayName("Latency is a moving average weighting new samples by 0.3")
+    void testEwma() {
+        pool = new ServerPool(SERVERS);
+        pool.recordSuccess("https://c/", millis(100));
+        pool.recordSuccess("https://a/", millis(10));
+        assertTrue(pool.describe().contains("https://a/ up 10.0 ms"), pool.describe());
+        pool.recordSuccess("https://a/", millis(110));
+        assertTrue(pool.describe().contains("https://a/ up 40.0 ms"), pool.describe());
+        pool.recordSuccess("https://a/", millis(40));
+        assertTrue(pool.describe().contains("https://a/ up 40.0 ms"), pool.describe());
+
+        // A slower sample moves the average by its weight only.
+        pool.recordSuccess("https://b/", millis(30));
+        assertEquals("https://b/", pool.select());
+        pool.recordSuccess("https://b/", millis(60));
+        assertEquals("https://b/", pool.select());
+        pool.recordSuccess("https://b/", millis(60));
+        assertEquals("https://a/", pool.select());
+    }
+
+    @Test
+    @DisplayName("A failed endpoint is skipped until its backoff has passed or it succeeds")
+    void testBackoff() throws Exception {
+        pool = new ServerPool(SERVERS);
+        pool.recordSuccess("https://a/", millis(10));
+        pool.recordSuccess("https://b/", millis(20));
+        pool.recordSuccess("https://c/", millis(30));
+        pool.recordFailure("https://a/");
+        assertTrue(pool.describe().contains("https://a/ down"), pool.describe());
+        assertEquals("https://b/", pool.select());
+
+        // Once all have failed, the one due soonest is tried: a failed once,
+        // the others more often, backing off longer.
+        pool.recordFailure("https://b/");
+        pool.recordFailure("https://b/");
+        pool.recordFailure("https://c/");
+        pool.recordFailure("https://c/");
+        pool.recordFailure("https://c/");
+        assertEquals("https://a/", pool.select());
+        assertNull(pool.selectOtherThan("https://a/"));
+
+        Thread.sleep(ServerPool.MIN_BACKOFF_MILLIS + 100);
+        assertTrue(pool.describe().contains("https://a/ up"), pool.describe());
+        assertTrue(pool.describe().contains("https://b/ down"), pool.describe());
+        assertEquals("https://a/", pool.select());
+
+        // A success ends the backoff at once.
+        pool.recordSuccess("https://c/", millis(30));
+        assertTrue(pool.describe().contains("https://c/ up"), pool.describe());
+        assertEquals("https://c/", pool.selectOtherThan("https://a/"));
+    }
+
+    @Test
+    @DisplayName("A request to a failing server of the pool is retried on another one")
+    void testFailover() throws Exception {
+        failing = StandInChatServer.start();
+        failing.setFailing(503);
+        working = StandInChatServer.start();
+        pool = new ServerPool(List.of(failing.getAddress(), working.getAddress()));
+        StandInUser user = new StandInUser(failing.getAddress());
+        ChatHttpClient client = new ChatHttpClient(user, null, false);
+        client.setServerPool(pool);
+
+        long start = System.nanoTime();
+        assertEquals(200, client.getChatMessages(null));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+        // The background probe may already have taken the failing one back.
+        assertEquals(working.getAddress(), pool.selectOtherThan(failing.getAddress()));
+    }
+}
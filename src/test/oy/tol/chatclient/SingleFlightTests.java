@@ -0,0 +1,144 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Concurrent calls through SingleFlight, the first one held on a latch until
+ * the others have joined it.
+ */
+public class SingleFlightTests {
+
+    private static final int WAITERS = 4;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @AfterEach
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    private static void awaitCoalesced(SingleFlight<String, String> flight, long count) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (flight.getCoalescedCount() < count && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, flight.getCoalescedCount());
+    }
+
+    // Starts the first call, held until released, and the waiters with the same key.
+    private List<Future<String>> startCalls(SingleFlight<String, String> flight, CountDownLatch started,
+            CountDownLatch release, Exception failure) throws InterruptedException {
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        futures.add(executor.submit(() -> flight.execute("key", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await();
+            if (null != failure) {
+                throw failure;
+            }
+            return "result";
+        })));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int count = 0; count < WAITERS; count++) {
+            futures.add(executor.submit(() -> flight.execute("key", () -> {
+                calls.incrementAndGet();
+                return "own result";
+            })));
+        }
+        awaitCoalesced(flight, WAITERS);
+        return futures;
+    }
+
+    @Test
+    @DisplayName("Calls with the key of a running call share its result")
+    void testCoalescing() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> futures = startCalls(flight, started, release, null);
+
+        // Another key is not held by the running call.
+        assertEquals("other", flight.execute("other", () -> "other"));
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("result", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    @DisplayName("The exception of a call is thrown to every caller sharing it")
+    void testException() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IOException failure = new IOException("failed");
+        List<Future<String>> futures = startCalls(flight, started, release, failure);
+        release.countDown();
+        for (Future<String> future : futures) {
+            ExecutionException thrown = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+            assertSame(failure, thrown.getCause());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    @DisplayName("The key is removed when the call completes, also when it fails")
+    void testKeyRemoved() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> futures = startCalls(flight, started, release, new IOException("failed"));
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        }
+
+        // Made again, not served from the completed call.
+        assertEquals("again", flight.execute("key", () -> {
+            calls.incrementAndGet();
+            return "again";
+        }));
+        assertEquals(2, calls.get());
+        assertEquals(WAITERS, flight.getCoalescedCount());
+    }
+
+    @Test
+    @DisplayName("A waiter with a time limit stops waiting, the running call goes on")
+    void testWaitLimit() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> flight.execute("key", () -> {
+            started.countDown();
+            release.await();
+            return "result";
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertThrows(TimeoutException.class,
+                () -> flight.execute("key", () -> "own result", TimeUnit.MILLISECONDS.toNanos(50)));
+        release.countDown();
+        assertEquals("result", first.get(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,196 @@
+package oy.tol.chatclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal in-process chat server for the performance tests, so that they
+ * measure the client and not a server under development. Accepts any
+ * credentials, stores posted messages as they are and returns the latest ones
+ * to GET /chat. Any channel can be changed to. It can also be made to fail or
+ * to answer slowly.
+ */
+public class StandInChatServer {
+
+    private static final int MESSAGES_KEPT = 50;
+    private static final int THREADS = 16;
+
+    static {
+        // Without this the server's small header and body writes wait for
+        // delayed ACKs, adding some 40 ms to each response.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Deque<String> messages = new ArrayDeque<String>();
+    private volatile int failWith = 0;
+    private volatile String failBody = null;
+    private volatile long delayMillis = 0;
+    private volatile String lastModifiedSince = null;
+    // Description of every channel, its hash is the ETag of the channel.
+    private volatile String description = "Stand-in channel";
+    private final Set<String> removedChannels = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger changeChannelCount = new AtomicInteger();
+
+    private StandInChatServer() throws IOException {
+        // Port 0 lets the system pick a free port.
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(executor);
+        server.createContext("/chat", this::handleChat);
+        server.createContext("/registration", exchange -> respond(exchange, 200, null));
+        server.createContext("/changeChannel", this::handleChangeChannel);
+    }
+
+    public static StandInChatServer start() throws IOException {
+        StandInChatServer standIn = new StandInChatServer();
+        standIn.server.start();
+        return standIn;
+    }
+
+    public String getAddress() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param code Response code to answer /chat with, 0 to work normally.
+     */
+    public void setFailing(int code) {
+        setFailing(code, null);
+    }
+
+    /**
+     * @param code Response code to answer /chat with, 0 to work normally.
+     * @param body Error body sent with the code, null for none.
+     */
+    public void setFailing(int code, String body) {
+        failBody = body;
+        failWith = code;
+    }
+
+    /**
+     * @param millis How long to wait before answering /chat.
+     */
+    public void setDelay(long millis) {
+        delayMillis = millis;
+    }
+
+    /**
+     * @return The If-Modified-Since header of the latest GET /chat, null if none.
+     */
+    public String getLastModifiedSince() {
+        return lastModifiedSince;
+    }
+
+    /**
+     * @param text Description of every channel from now on, which changes their ETag.
+     */
+    public void setDescription(String text) {
+        description = text;
+    }
+
+    /**
+     * @param channelName Channel to answer /changeChannel with 404 from now on.
+     */
+    public void removeChannel(String channelName) {
+        removedChannels.add(channelName);
+    }
+
+    /**
+     * @return How many /changeChannel requests the server has had.
+     */
+    public int getChangeChannelCount() {
+        return changeChannelCount.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleChat(HttpExchange exchange) throws IOException {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failWith != 0) {
+            respond(exchange, failWith, failBody);
+            return;
+        }
+        if ("POST".equals(exchange.getRequestMethod())) {
+            String message = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            synchronized (messages) {
+                messages.addLast(message);
+                if (messages.size() > MESSAGES_KEPT) {
+                    messages.removeFirst();
+                }
+            }
+            respond(exchange, 200, null);
+        } else {
+            lastModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            String body;
+            synchronized (messages) {
+                body = "[" + String.join(",", messages) + "]";
+            }
+            exchange.getResponseHeaders().add("Last-Modified",
+                    ZonedDateTime.now(ZoneOffset.UTC).format(DateTimeFormatter.RFC_1123_DATE_TIME));
+            respond(exchange, 200, body);
+        }
+    }
+
+    private void handleChangeChannel(HttpExchange exchange) throws IOException {
+        changeChannelCount.incrementAndGet();
+        JSONObject request = new JSONObject(new String(exchange.getRequestBody().readAllBytes(),
+                StandardCharsets.UTF_8));
+        String channelName = request.getString("channelName");
+        if (removedChannels.contains(channelName)) {
+            respond(exchange, 404, null);
+            return;
+        }
+        String text = description;
+        String etag = "\"" + Integer.toHexString(text.hashCode()) + "\"";
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            respond(exchange, 304, null);
+            return;
+        }
+        JSONObject channel = new JSONObject().put("channelName", channelName)
+                .put("description", text).put("createdBy", "standin");
+        respond(exchange, 200, channel.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        if (null == body) {
+            exchange.sendResponseHeaders(code, -1);
+        } else {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,49 @@
+package oy.tol.chatclient;
+
+/**
+ * A user of a StandInChatServer, which accepts any credentials.
+ */
+public class StandInUser implements ChatClientDataProvider {
+
+    private final String server;
+    private final String username;
+
+    StandInUser(String server) {
+        this(server, "replay");
+    }
+
+    StandInUser(String server, String username) {
+        this.server = server;
+        this.username = username;
+    }
+
+    @Override
+    public String getServer() {
+        return server;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getPassword() {
+        return "password";
+    }
+
+    @Override
+    public String getNick() {
+        return username;
+    }
+
+    @Override
+    public String getEmail() {
+        return null;
+    }
+
+    @Override
+    public int getServerVersion() {
+        return 5;
+    }
+}
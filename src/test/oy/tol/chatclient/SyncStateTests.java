@@ -0,0 +1,54 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Watermarks saved in a SyncState and restored by a new ChatHttpClient, as
+ * after a restart of the client.
+ */
+public class SyncStateTests {
+
+    private static final String WATERMARK = "Mon, 01 Mar 2021 12:00:00 GMT";
+
+    private StandInChatServer server = null;
+    private Path file = null;
+
+    @AfterEach
+    public void teardown() throws Exception {
+        if (null != server) {
+            server.stop();
+        }
+        if (null != file) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Changing to a channel after a restart keeps its restored watermark")
+    void testChangeAfterRestart() throws Exception {
+        server = StandInChatServer.start();
+        file = Files.createTempFile("sync", ".json");
+        StandInUser user = new StandInUser(server.getAddress());
+        try (SyncState state = new SyncState(file)) {
+            state.update(user.getServer(), user.getUsername(), "room", WATERMARK);
+        }
+
+        try (SyncState state = new SyncState(file)) {
+            ChatHttpClient client = new ChatHttpClient(user, null, false);
+            client.setSyncState(state);
+            assertEquals(WATERMARK, client.restoreWatermarks().get("room"));
+            assertEquals(200, client.changeChannel("room").getInt("responseCode"));
+            assertEquals(WATERMARK, state.restore(user.getServer(), user.getUsername()).get("room"));
+
+            assertEquals(200, client.getChatMessages("room"));
+            assertEquals(WATERMARK, server.getLastModifiedSince());
+        }
+    }
+}
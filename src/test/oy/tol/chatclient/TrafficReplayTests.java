@@ -0,0 +1,142 @@
+package oy.tol.chatclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Records requests made to one StandInChatServer with TrafficRecorder and
+ * replays them with TrafficReplay to another.
+ */
+public class TrafficReplayTests {
+
+    private static final int POSTS = 5;
+    private static final long GAP_MILLIS = 100;
+
+    private StandInChatServer recorded = null;
+    private StandInChatServer replayed = null;
+    private File recording = null;
+
+    @AfterEach
+    public void teardown() {
+        ChatHttpClient.setTrafficRecorder(null);
+        if (null != recorded) {
+            recorded.stop();
+        }
+        if (null != replayed) {
+            replayed.stop();
+        }
+        if (null != recording) {
+            recording.delete();
+        }
+    }
+
+    @Test
+    @DisplayName("Recorded requests are read back and replayed faster")
+    void testRecordAndReplay() throws Exception {
+        recorded = StandInChatServer.start();
+        record(true);
+
+        List<TrafficRecorder.Exchange> exchanges = TrafficRecorder.read(recording);
+        assertEquals(POSTS * 2, exchanges.size());
+        for (TrafficRecorder.Exchange exchange : exchanges) {
+            assertEquals(200, exchange.status);
+            assertEquals("/chat", exchange.path);
+            assertNull(exchange.requestHeaders.get("Authorization"));
+            if ("POST".equals(exchange.method)) {
+                assertNotNull(exchange.requestBody);
+                assertEquals(exchange.requestBodySize, exchange.requestBody.length);
+            } else {
+                assertNotNull(exchange.responseBody);
+                assertEquals(exchange.responseBodySize, exchange.responseBody.length);
+            }
+        }
+
+        replayed = StandInChatServer.start();
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(replayed.getAddress()), null, false);
+        TrafficReplay replay = new TrafficReplay(client, exchanges, 10, 2);
+        replay.run();
+        System.out.print(replay.describe());
+        assertEquals(POSTS * 2, replay.getRequestCount());
+        assertEquals(0, replay.getFailedCount());
+        assertTrue(replay.getRecordedSpanNanos() >= (POSTS - 1) * GAP_MILLIS * 1000000);
+        assertTrue(replay.getElapsedNanos() < replay.getRecordedSpanNanos() / 2,
+                () -> "Replay took " + replay.getElapsedNanos() / 1e6 + " ms");
+        assertEquals(POSTS, client.getChatMessages(null) == 200 ? client.getNewMessages().size() : -1);
+    }
+
+    @Test
+    @DisplayName("Without bodies only the sizes are recorded and replay sends a stand-in body")
+    void testReplayWithoutBodies() throws Exception {
+        recorded = StandInChatServer.start();
+        record(false);
+
+        List<TrafficRecorder.Exchange> exchanges = TrafficRecorder.read(recording);
+        for (TrafficRecorder.Exchange exchange : exchanges) {
+            assertNull(exchange.requestBody);
+            assertNull(exchange.responseBody);
+            assertTrue(exchange.requestBodySize > 0 || "GET".equals(exchange.method));
+        }
+        replayed = StandInChatServer.start();
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(replayed.getAddress()), null, false);
+        TrafficReplay replay = new TrafficReplay(client, exchanges, 100, 2);
+        replay.run();
+        assertEquals(0, replay.getFailedCount());
+        assertEquals(POSTS, client.getChatMessages(null) == 200 ? client.getNewMessages().size() : -1);
+    }
+
+    @Test
+    @DisplayName("Registration bodies are not recorded, so the password is not either")
+    void testPasswordNotRecorded() throws Exception {
+        recorded = StandInChatServer.start();
+        recording = File.createTempFile("traffic", ".o3tr");
+        String password = "not-in-the-recording";
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(recorded.getAddress()) {
+            @Override
+            public String getPassword() {
+                return password;
+            }
+        }, null, false);
+        try (TrafficRecorder recorder = new TrafficRecorder(recording, true)) {
+            ChatHttpClient.setTrafficRecorder(recorder);
+            assertEquals(200, client.registerUser());
+            assertEquals(200, client.postChatMessage("Recorded message", null));
+        } finally {
+            ChatHttpClient.setTrafficRecorder(null);
+        }
+
+        List<TrafficRecorder.Exchange> exchanges = TrafficRecorder.read(recording);
+        assertEquals("/registration", exchanges.get(0).path);
+        assertNull(exchanges.get(0).requestBody);
+        assertTrue(exchanges.get(0).requestBodySize > password.length());
+        assertNotNull(exchanges.get(1).requestBody);
+        String bytes = new String(Files.readAllBytes(recording.toPath()), StandardCharsets.ISO_8859_1);
+        assertFalse(bytes.contains(password));
+    }
+
+    private void record(boolean bodies) throws Exception {
+        recording = File.createTempFile("traffic", ".o3tr");
+        ChatHttpClient client = new ChatHttpClient(new StandInUser(recorded.getAddress()), null, false);
+        try (TrafficRecorder recorder = new TrafficRecorder(recording, bodies)) {
+            ChatHttpClient.setTrafficRecorder(recorder);
+            for (int count = 0; count < POSTS; count++) {
+                assertEquals(200, client.postChatMessage("Recorded message " + count, null));
+                assertEquals(200, client.getChatMessages(null));
+                Thread.sleep(GAP_MILLIS);
+            }
+        } finally {
+            ChatHttpClient.setTrafficRecorder(null);
+        }
+    }
+}